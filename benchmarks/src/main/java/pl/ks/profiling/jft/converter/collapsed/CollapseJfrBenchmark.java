@@ -0,0 +1,98 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import org.openjdk.jmc.common.IMCStackTrace;
+import org.openjdk.jmc.common.IMCThread;
+import org.openjdk.jmc.common.item.IItem;
+import org.openjdk.jmc.common.item.IMemberAccessor;
+import org.openjdk.jmc.flightrecorder.JfrAttributes;
+import org.openjdk.jmc.flightrecorder.internal.EventArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import static pl.ks.profiling.jft.converter.collapsed.JfrParser.isAsyncAllocNewTLABEvent;
+import static pl.ks.profiling.jft.converter.collapsed.JfrParser.isAsyncAllocOutsideTLABEvent;
+import static pl.ks.profiling.jft.converter.collapsed.JfrParser.isAsyncWallEvent;
+import static pl.ks.profiling.jft.converter.collapsed.JfrParser.isLockEvent;
+
+/**
+ * Every invocation processes all the events of the recording, so the scores are events per second, and with
+ * {@code -prof gc} the normalized allocation rate is bytes per event. Writing is also divided by the number of
+ * events the written stacks were aggregated from.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(RecordingState.EVENTS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CollapseJfrBenchmark {
+    private static final OutputCompression COMPRESSION = new OutputCompression(true, Deflater.DEFAULT_COMPRESSION, 1);
+
+    @Benchmark
+    public void fetchFlatStackTrace(RecordingState state, Blackhole blackhole) {
+        SymbolCache symbolCache = new SymbolCache();
+        for (EventArray eventArray : state.flightRecording.getArrays()) {
+            if (!isAsyncWallEvent(eventArray) && !isLockEvent(eventArray) && !isAsyncAllocNewTLABEvent(eventArray) && !isAsyncAllocOutsideTLABEvent(eventArray)) {
+                continue;
+            }
+            IMemberAccessor<IMCStackTrace, IItem> stackTraceAccessor = JfrAttributes.EVENT_STACKTRACE.getAccessor(eventArray.getType());
+            IMemberAccessor<IMCThread, IItem> threadAccessor = JfrAttributes.EVENT_THREAD.getAccessor(eventArray.getType());
+            for (IItem event : eventArray.getEvents()) {
+                blackhole.consume(JfrParser.fetchFlatStackTrace(event, stackTraceAccessor, threadAccessor, symbolCache));
+            }
+        }
+    }
+
+    @Benchmark
+    public CollapsedStacks aggregate(RecordingState state) {
+        CollapsedStacks collapsedStacks = new CollapsedStacks();
+        JftToCollapseStacks.processFlightRecording(state.flightRecording, null, null, collapsedStacks, new SymbolCache(collapsedStacks.frameDictionary));
+        return collapsedStacks;
+    }
+
+    @Benchmark
+    public void saveFile(RecordingState state) throws IOException {
+        CollapsedStackWriter.saveFile(state.dir.toString(), "wall.collapsed", state.collapsedStacks, StackCounter.WALL, COMPRESSION);
+    }
+
+    @Benchmark
+    public CollapsedStacks parseFile(RecordingState state) {
+        CollapsedStacks collapsedStacks = new CollapsedStacks();
+        JftToCollapseStacks.parseFile(state.recordingFile, null, null, false, collapsedStacks);
+        return collapsedStacks;
+    }
+
+    @Benchmark
+    public CollapsedStacks parseFilePipelined(RecordingState state) throws InterruptedException {
+        CollapsedStacks collapsedStacks = new CollapsedStacks();
+        JftToCollapseStacks.parseFilesPipelined(Collections.singletonList(state.recordingFile), null, null, collapsedStacks);
+        return collapsedStacks;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import org.openjdk.jmc.flightrecorder.internal.EventArrays;
+import org.openjdk.jmc.flightrecorder.internal.FlightRecordingLoader;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Synthetic recording of {@link #EVENTS} events, decoded and aggregated once per trial.
+ */
+@State(Scope.Benchmark)
+public class RecordingState {
+    static final int EVENTS = 100_000;
+
+    @Param({"16", "48"})
+    int stackDepth;
+
+    @Param({"100", "10000"})
+    int uniqueStacks;
+
+    @Param({"WALL", "MIXED"})
+    SyntheticRecording.EventMix eventMix;
+
+    Path dir;
+    Path recordingFile;
+    EventArrays flightRecording;
+    CollapsedStacks collapsedStacks;
+
+    @Setup
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("collapse-jfr-benchmark");
+        recordingFile = dir.resolve("synthetic.jfr");
+        SyntheticRecording.generate(recordingFile, stackDepth, uniqueStacks, EVENTS, eventMix);
+        try (InputStream input = Files.newInputStream(recordingFile)) {
+            flightRecording = FlightRecordingLoader.loadStream(input, false, false);
+        }
+        collapsedStacks = new CollapsedStacks();
+        JftToCollapseStacks.processFlightRecording(flightRecording, null, null, collapsedStacks, new SymbolCache(collapsedStacks.frameDictionary));
+        long events = collapsedStacks.sum(StackCounter.WALL) + collapsedStacks.sum(StackCounter.ALLOC_COUNT) + collapsedStacks.sum(StackCounter.LOCK);
+        if (events != EVENTS) {
+            throw new IllegalStateException("Converter processed " + events + " of " + EVENTS + " events of the synthetic recording");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,454 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Writes single chunk recordings in the JFR 2.0 format with the event types, fields and constant pools of
+ * Async-profiler recordings. Events of {@link #THREADS} threads are written one by one, every event has the stack
+ * picked by its stack id: one of four methods on every one of the stack depth levels, so stacks with different ids
+ * differ.
+ */
+public class SyntheticRecording {
+    static final int THREADS = 4;
+
+    private static final String[] CLASSES = {"java/lang/String", "[B", "[Ljava/lang/Object;", "java/util/ArrayList", "java/util/HashMap"};
+    private static final String FRAME_CLASS = "pl/ks/profiling/jft/converter/collapsed/SyntheticRecording";
+    private static final int FRAME_METHODS = 4;
+    private static final String[] STATES = {"STATE_RUNNABLE", "STATE_SLEEPING"};
+
+    private static final long START_NANOS = 1_600_000_000_000_000_000L;
+    private static final long START_TICKS = 1_000_000_000L;
+    private static final long TICKS_PER_SECOND = 1_000_000_000L;
+    private static final long EVENT_INTERVAL_TICKS = 100_000L;
+    private static final int HEADER_SIZE = 68;
+    private static final int CONSTANT_POOLS = 8;
+
+    private static final int BOOLEAN = 4;
+    private static final int INT = 10;
+    private static final int LONG = 11;
+    private static final int STRING = 20;
+    private static final int CLASS = 21;
+    private static final int THREAD = 22;
+    private static final int FRAME_TYPE = 24;
+    private static final int THREAD_STATE = 25;
+    private static final int STACK_TRACE = 26;
+    private static final int STACK_FRAME = 27;
+    private static final int METHOD = 28;
+    private static final int PACKAGE = 29;
+    private static final int SYMBOL = 30;
+    private static final int EXECUTION_SAMPLE = 101;
+    private static final int ALLOCATION_IN_NEW_TLAB = 102;
+    private static final int ALLOCATION_OUTSIDE_TLAB = 103;
+    private static final int MONITOR_ENTER = 104;
+    private static final int LABEL = 201;
+    private static final int TIMESTAMP = 203;
+    private static final int TIMESPAN = 204;
+    private static final int DATA_AMOUNT = 205;
+    private static final int UNSIGNED = 207;
+
+    public enum EventMix {
+        /**
+         * Execution samples only, half of them in the runnable state.
+         */
+        WALL,
+        /**
+         * 70% execution samples, 10% allocations in new TLAB, 10% allocations outside TLAB, 10% monitor enters.
+         */
+        MIXED
+    }
+
+    static void generate(Path file, int stackDepth, int uniqueStacks, int events, EventMix eventMix) throws IOException {
+        if (stackDepth < 31 && uniqueStacks > 1L << (2 * stackDepth)) {
+            throw new IllegalArgumentException("Stack depth " + stackDepth + " allows at most " + (1L << (2 * stackDepth)) + " unique stacks");
+        }
+        Buffer chunk = new Buffer();
+        chunk.write(new byte[HEADER_SIZE], 0, HEADER_SIZE);
+        Buffer event = new Buffer();
+
+        long metadataOffset = chunk.size();
+        writeMetadata(event);
+        chunk.writeEvent(event);
+
+        Random random = new Random(0);
+        for (int i = 0; i < events; i++) {
+            writeEvent(event, random, eventMix, START_TICKS + i * EVENT_INTERVAL_TICKS, 1 + i % THREADS, 1 + random.nextInt(uniqueStacks));
+            chunk.writeEvent(event);
+        }
+
+        long constantPoolOffset = chunk.size();
+        writeConstantPools(event, stackDepth, uniqueStacks);
+        chunk.writeEvent(event);
+
+        ByteBuffer header = ByteBuffer.wrap(chunk.toByteArray());
+        header.put("FLR\0".getBytes(StandardCharsets.US_ASCII));
+        header.putShort((short) 2);
+        header.putShort((short) 0);
+        header.putLong(chunk.size());
+        header.putLong(constantPoolOffset);
+        header.putLong(metadataOffset);
+        header.putLong(START_NANOS);
+        header.putLong(events * EVENT_INTERVAL_TICKS);
+        header.putLong(START_TICKS);
+        header.putLong(TICKS_PER_SECOND);
+        header.putInt(1);
+        Files.write(file, header.array());
+    }
+
+    private static void writeEvent(Buffer event, Random random, EventMix eventMix, long ticks, int thread, int stackTrace) {
+        int type = eventMix == EventMix.WALL ? 0 : random.nextInt(10);
+        if (type < 7) {
+            event.writeLong(EXECUTION_SAMPLE);
+            event.writeLong(ticks);
+            event.writeLong(thread);
+            event.writeLong(stackTrace);
+            event.writeLong(1 + random.nextInt(STATES.length));
+        } else if (type == 7) {
+            event.writeLong(ALLOCATION_IN_NEW_TLAB);
+            event.writeLong(ticks);
+            event.writeLong(thread);
+            event.writeLong(stackTrace);
+            event.writeLong(2 + random.nextInt(CLASSES.length));
+            event.writeLong(16 + random.nextInt(1024));
+            event.writeLong(64 * 1024);
+        } else if (type == 8) {
+            event.writeLong(ALLOCATION_OUTSIDE_TLAB);
+            event.writeLong(ticks);
+            event.writeLong(thread);
+            event.writeLong(stackTrace);
+            event.writeLong(2 + random.nextInt(CLASSES.length));
+            event.writeLong(64 * 1024 + random.nextInt(1024 * 1024));
+        } else {
+            event.writeLong(MONITOR_ENTER);
+            event.writeLong(ticks);
+            event.writeLong(EVENT_INTERVAL_TICKS / 2);
+            event.writeLong(thread);
+            event.writeLong(stackTrace);
+            event.writeLong(2 + random.nextInt(CLASSES.length));
+            event.writeLong(1 + (thread % THREADS));
+            event.writeLong(0);
+        }
+    }
+
+    /**
+     * Constant pools of the whole chunk. Keys start from 1: class 1 declares the methods of the frames, classes
+     * 2.. are the allocated and monitor classes, stack trace {@code id + 1} is the stack with id {@code id}.
+     */
+    private static void writeConstantPools(Buffer event, int stackDepth, int uniqueStacks) {
+        Map<String, Integer> symbols = new LinkedHashMap<>();
+        Map<String, Integer> packages = new LinkedHashMap<>();
+        List<String> classes = new ArrayList<>();
+        classes.add(FRAME_CLASS);
+        for (String className : CLASSES) {
+            classes.add(className);
+        }
+
+        event.writeLong(1);
+        event.writeLong(START_TICKS);
+        event.writeLong(0);
+        event.writeLong(0);
+        event.write(1);
+        event.writeLong(CONSTANT_POOLS);
+
+        event.writeLong(THREAD);
+        event.writeLong(THREADS);
+        for (int i = 0; i < THREADS; i++) {
+            event.writeLong(1 + i);
+            event.writeString("bench-worker-" + i);
+            event.writeLong(1000 + i);
+            event.writeString("bench-worker-" + i);
+            event.writeLong(1 + i);
+        }
+
+        event.writeLong(THREAD_STATE);
+        event.writeLong(STATES.length);
+        for (int i = 0; i < STATES.length; i++) {
+            event.writeLong(1 + i);
+            event.writeString(STATES[i]);
+        }
+
+        event.writeLong(FRAME_TYPE);
+        event.writeLong(1);
+        event.writeLong(1);
+        event.writeString("JIT compiled");
+
+        event.writeLong(STACK_TRACE);
+        event.writeLong(uniqueStacks);
+        int[] methods = new int[stackDepth];
+        for (int stackId = 0; stackId < uniqueStacks; stackId++) {
+            long bits = stackId;
+            for (int level = 0; level < stackDepth; level++) {
+                methods[level] = (int) (bits & 3);
+                bits >>>= 2;
+            }
+            event.writeLong(1 + stackId);
+            event.write(0);
+            event.writeLong(stackDepth);
+            for (int level = stackDepth - 1; level >= 0; level--) {
+                event.writeLong(1 + methods[level]);
+                event.writeLong(10 + methods[level]);
+                event.writeLong(0);
+                event.writeLong(1);
+            }
+        }
+
+        event.writeLong(METHOD);
+        event.writeLong(FRAME_METHODS);
+        for (int i = 0; i < FRAME_METHODS; i++) {
+            event.writeLong(1 + i);
+            event.writeLong(1);
+            event.writeLong(symbol(symbols, "frame" + i));
+            event.writeLong(symbol(symbols, "()V"));
+            event.writeLong(0x0a);
+            event.write(0);
+        }
+
+        event.writeLong(CLASS);
+        event.writeLong(classes.size());
+        for (int i = 0; i < classes.size(); i++) {
+            String className = classes.get(i);
+            int packageEnd = Math.max(className.lastIndexOf('/'), 0);
+            String packageName = className.startsWith("[") ? "" : className.substring(0, packageEnd);
+            event.writeLong(1 + i);
+            event.writeLong(symbol(symbols, className));
+            event.writeLong(packages.computeIfAbsent(packageName, name -> packages.size() + 1));
+            event.writeLong(1);
+        }
+
+        event.writeLong(PACKAGE);
+        event.writeLong(packages.size());
+        for (Map.Entry<String, Integer> packageName : packages.entrySet()) {
+            event.writeLong(packageName.getValue());
+            event.writeLong(symbol(symbols, packageName.getKey()));
+        }
+
+        event.writeLong(SYMBOL);
+        event.writeLong(symbols.size());
+        for (Map.Entry<String, Integer> symbol : symbols.entrySet()) {
+            event.writeLong(symbol.getValue());
+            event.writeString(symbol.getKey());
+        }
+    }
+
+    private static int symbol(Map<String, Integer> symbols, String symbol) {
+        return symbols.computeIfAbsent(symbol, key -> symbols.size() + 1);
+    }
+
+    private static void writeMetadata(Buffer event) {
+        Element metadata = new Element("metadata");
+        metadata.add(type("boolean", BOOLEAN));
+        metadata.add(type("int", INT));
+        metadata.add(type("long", LONG));
+        metadata.add(type("java.lang.String", STRING));
+        metadata.add(type("java.lang.Class", CLASS)
+                .add(field("name", SYMBOL, true, "Name"))
+                .add(field("package", PACKAGE, true, "Package"))
+                .add(field("modifiers", INT, false, "Access Modifiers")));
+        metadata.add(type("java.lang.Thread", THREAD)
+                .add(field("osName", STRING, false, "OS Thread Name"))
+                .add(field("osThreadId", LONG, false, "OS Thread Id"))
+                .add(field("javaName", STRING, false, "Java Thread Name"))
+                .add(field("javaThreadId", LONG, false, "Java Thread Id")));
+        metadata.add(type("jdk.types.FrameType", FRAME_TYPE).attribute("simpleType", "true")
+                .add(field("description", STRING, false, "Description")));
+        metadata.add(type("jdk.types.ThreadState", THREAD_STATE).attribute("simpleType", "true")
+                .add(field("name", STRING, false, "Name")));
+        metadata.add(type("jdk.types.StackTrace", STACK_TRACE)
+                .add(field("truncated", BOOLEAN, false, "Truncated"))
+                .add(field("frames", STACK_FRAME, false, "Stack Frames").attribute("dimension", "1")));
+        metadata.add(type("jdk.types.StackFrame", STACK_FRAME)
+                .add(field("method", METHOD, true, "Java Method"))
+                .add(field("lineNumber", INT, false, "Line Number"))
+                .add(field("bytecodeIndex", INT, false, "Bytecode Index"))
+                .add(field("type", FRAME_TYPE, true, "Frame Type")));
+        metadata.add(type("jdk.types.Method", METHOD)
+                .add(field("type", CLASS, true, "Type"))
+                .add(field("name", SYMBOL, true, "Name"))
+                .add(field("descriptor", SYMBOL, true, "Descriptor"))
+                .add(field("modifiers", INT, false, "Access Modifiers"))
+                .add(field("hidden", BOOLEAN, false, "Hidden")));
+        metadata.add(type("jdk.types.Package", PACKAGE)
+                .add(field("name", SYMBOL, true, "Name")));
+        metadata.add(type("jdk.types.Symbol", SYMBOL).attribute("simpleType", "true")
+                .add(field("string", STRING, false, "String")));
+        metadata.add(eventType("jdk.ExecutionSample", EXECUTION_SAMPLE, "Method Profiling Sample")
+                .add(field("sampledThread", THREAD, true, "Thread"))
+                .add(field("stackTrace", STACK_TRACE, true, "Stack Trace"))
+                .add(field("state", THREAD_STATE, true, "Thread State")));
+        metadata.add(eventType("jdk.ObjectAllocationInNewTLAB", ALLOCATION_IN_NEW_TLAB, "Allocation in new TLAB")
+                .add(field("eventThread", THREAD, true, "Event Thread"))
+                .add(field("stackTrace", STACK_TRACE, true, "Stack Trace"))
+                .add(field("objectClass", CLASS, true, "Object Class"))
+                .add(bytes(field("allocationSize", LONG, false, "Allocation Size")))
+                .add(bytes(field("tlabSize", LONG, false, "TLAB Size"))));
+        metadata.add(eventType("jdk.ObjectAllocationOutsideTLAB", ALLOCATION_OUTSIDE_TLAB, "Allocation outside TLAB")
+                .add(field("eventThread", THREAD, true, "Event Thread"))
+                .add(field("stackTrace", STACK_TRACE, true, "Stack Trace"))
+                .add(field("objectClass", CLASS, true, "Object Class"))
+                .add(bytes(field("allocationSize", LONG, false, "Allocation Size"))));
+        metadata.add(eventType("jdk.JavaMonitorEnter", MONITOR_ENTER, "Java Monitor Blocked")
+                .add(field("duration", LONG, false, "Duration").add(annotation(TIMESPAN, "TICKS")))
+                .add(field("eventThread", THREAD, true, "Event Thread"))
+                .add(field("stackTrace", STACK_TRACE, true, "Stack Trace"))
+                .add(field("monitorClass", CLASS, true, "Monitor Class"))
+                .add(field("previousOwner", THREAD, true, "Previous Monitor Owner"))
+                .add(field("address", LONG, false, "Monitor Address").add(annotation(UNSIGNED, null))));
+        metadata.add(annotationType("jdk.jfr.Label", LABEL));
+        metadata.add(annotationType("jdk.jfr.Timestamp", TIMESTAMP));
+        metadata.add(annotationType("jdk.jfr.Timespan", TIMESPAN));
+        metadata.add(annotationType("jdk.jfr.DataAmount", DATA_AMOUNT));
+        metadata.add(type("jdk.jfr.Unsigned", UNSIGNED).attribute("superType", "java.lang.annotation.Annotation"));
+        Element root = new Element("root")
+                .add(metadata)
+                .add(new Element("region").attribute("locale", "en_US").attribute("gmtOffset", "0"));
+
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        root.collectStrings(strings);
+        event.writeLong(0);
+        event.writeLong(START_TICKS);
+        event.writeLong(0);
+        event.writeLong(1);
+        event.writeLong(strings.size());
+        for (String string : strings.keySet()) {
+            event.writeString(string);
+        }
+        root.writeTo(event, strings);
+    }
+
+    private static Element type(String name, int id) {
+        return new Element("class").attribute("name", name).attribute("id", Integer.toString(id));
+    }
+
+    private static Element eventType(String name, int id, String label) {
+        return type(name, id).attribute("superType", "jdk.jfr.Event")
+                .add(annotation(LABEL, label))
+                .add(field("startTime", LONG, false, "Start Time").add(annotation(TIMESTAMP, "TICKS")));
+    }
+
+    private static Element annotationType(String name, int id) {
+        return type(name, id).attribute("superType", "java.lang.annotation.Annotation")
+                .add(new Element("field").attribute("name", "value").attribute("class", Integer.toString(STRING)));
+    }
+
+    private static Element field(String name, int type, boolean constantPool, String label) {
+        Element field = new Element("field").attribute("name", name).attribute("class", Integer.toString(type));
+        if (constantPool) {
+            field.attribute("constantPool", "true");
+        }
+        return field.add(annotation(LABEL, label));
+    }
+
+    private static Element bytes(Element field) {
+        return field.add(annotation(UNSIGNED, null)).add(annotation(DATA_AMOUNT, "BYTES"));
+    }
+
+    private static Element annotation(int type, String value) {
+        Element annotation = new Element("annotation").attribute("class", Integer.toString(type));
+        return value == null ? annotation : annotation.attribute("value", value);
+    }
+
+    private static class Element {
+        final String name;
+        final Map<String, String> attributes = new LinkedHashMap<>();
+        final List<Element> children = new ArrayList<>();
+
+        Element(String name) {
+            this.name = name;
+        }
+
+        Element attribute(String key, String value) {
+            attributes.put(key, value);
+            return this;
+        }
+
+        Element add(Element child) {
+            children.add(child);
+            return this;
+        }
+
+        void collectStrings(Map<String, Integer> strings) {
+            strings.putIfAbsent(name, strings.size());
+            for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                strings.putIfAbsent(attribute.getKey(), strings.size());
+                strings.putIfAbsent(attribute.getValue(), strings.size());
+            }
+            for (Element child : children) {
+                child.collectStrings(strings);
+            }
+        }
+
+        void writeTo(Buffer buffer, Map<String, Integer> strings) {
+            buffer.writeLong(strings.get(name));
+            buffer.writeLong(attributes.size());
+            for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                buffer.writeLong(strings.get(attribute.getKey()));
+                buffer.writeLong(strings.get(attribute.getValue()));
+            }
+            buffer.writeLong(children.size());
+            for (Element child : children) {
+                child.writeTo(buffer, strings);
+            }
+        }
+    }
+
+    /**
+     * Chunk or event bytes with compressed integers: 7 bits per byte, only non-negative values below 2^56 are
+     * written.
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+        void writeLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            write(3);
+            writeLong(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        /**
+         * Appends the event with its size written on 4 bytes like Async-profiler does, and resets it.
+         */
+        void writeEvent(Buffer event) {
+            int size = event.size() + 4;
+            if (size >= 1 << 28) {
+                throw new IllegalStateException("Event of " + size + " bytes does not fit in the size field");
+            }
+            write(size & 0x7F | 0x80);
+            write(size >>> 7 & 0x7F | 0x80);
+            write(size >>> 14 & 0x7F | 0x80);
+            write(size >>> 21);
+            write(event.buf, 0, event.size());
+            event.reset();
+        }
+    }
+}
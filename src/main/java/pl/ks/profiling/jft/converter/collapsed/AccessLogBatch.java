@@ -0,0 +1,299 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Collapsed stacks of many access log requests gathered in one pass over the recordings. Requests are indexed
+ * per thread by their time range, every event is matched against the requests of its thread and counted for
+ * each of them. Stacks are stored once in a shared trie, the counters in one map keyed by request, stack node
+ * and counter, so a stack seen in many requests does not take more memory than its counters.
+ */
+class AccessLogBatch {
+    private static final Pattern FIELD = Pattern.compile("\\[([^\\]]*)\\]");
+    private static final Pattern DURATION = Pattern.compile("(\\d+) ms");
+    private static final int NODE_SHIFT = 3;
+    private static final int REQUEST_SHIFT = 34;
+
+    final CollapsedStacks collapsedStacks = new CollapsedStacks();
+    final List<Request> requests;
+    private final Map<String, ThreadRequests> threadRequests = new HashMap<>();
+    private ThreadRequests[] threadRequestsByFrameId = new ThreadRequests[64];
+    private final LongLongHashMap values = new LongLongHashMap();
+    private int[] matches = new int[16];
+    private int matchCount;
+
+    AccessLogBatch(List<Request> requests) {
+        this.requests = requests;
+        Map<String, List<Request>> byThread = new HashMap<>();
+        for (Request request : requests) {
+            byThread.computeIfAbsent(request.thread, thread -> new ArrayList<>()).add(request);
+        }
+        byThread.forEach((thread, threadList) -> threadRequests.put(thread, new ThreadRequests(threadList)));
+    }
+
+    /**
+     * Reads the requests lasting at least the given time from the access log entries in the format
+     * {@code [17/Sep/2020:13:03:23 +0200] [POST /app/request HTTP/1.1] [302] [- bytes] [23513 ms] [http-nio-8080-exec-250]}.
+     * Time range of a request is the same as with the -al filter.
+     */
+    static List<Request> readRequests(Path accessLog, long minDurationMs) throws IOException {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z", Locale.US);
+        List<Request> requests = new ArrayList<>();
+        List<String> fields = new ArrayList<>();
+        String lastDate = null;
+        Instant lastInstant = null;
+        int lineNumber = 0;
+        try (BufferedReader reader = Files.newBufferedReader(accessLog, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                fields.clear();
+                Matcher matcher = FIELD.matcher(line);
+                while (matcher.find()) {
+                    fields.add(matcher.group(1));
+                }
+                if (fields.size() < 6) {
+                    continue;
+                }
+                Matcher duration = DURATION.matcher(fields.get(4));
+                if (!duration.matches()) {
+                    continue;
+                }
+                long durationMs = Long.parseLong(duration.group(1));
+                if (durationMs < minDurationMs) {
+                    continue;
+                }
+                if (!fields.get(0).equals(lastDate)) {
+                    try {
+                        lastInstant = Instant.ofEpochMilli(dateFormat.parse(fields.get(0)).getTime());
+                        lastDate = fields.get(0);
+                    } catch (ParseException e) {
+                        System.out.println("Skipping line " + lineNumber + ", wrong date: " + fields.get(0));
+                        continue;
+                    }
+                }
+                long end = lastInstant.plus(1, ChronoUnit.SECONDS).toEpochMilli();
+                long start = lastInstant.minus(durationMs, ChronoUnit.MILLIS).toEpochMilli();
+                requests.add(new Request(requests.size(), lineNumber, fields.get(1), fields.get(5).trim().toLowerCase(), durationMs, start, end));
+            }
+        }
+        return requests;
+    }
+
+    /**
+     * Finds requests of the thread running at the timestamp, they are counted by the next {@link #add} call.
+     *
+     * @return number of found requests
+     */
+    int findRequests(int threadFrameId, long timestamp) {
+        matchCount = 0;
+        ThreadRequests requestsOfThread = getThreadRequests(threadFrameId);
+        if (requestsOfThread == null) {
+            return 0;
+        }
+        long[] starts = requestsOfThread.starts;
+        int i = upperBound(starts, timestamp) - 1;
+        for (; i >= 0 && starts[i] >= timestamp - requestsOfThread.maxLength; i--) {
+            if (requestsOfThread.ends[i] >= timestamp) {
+                if (matchCount == matches.length) {
+                    matches = Arrays.copyOf(matches, matchCount * 2);
+                }
+                matches[matchCount++] = requestsOfThread.ids[i];
+            }
+        }
+        return matchCount;
+    }
+
+    void add(EventType eventType, int node, long value) {
+        switch (eventType) {
+            case WALL:
+                add(StackCounter.WALL, node, 1);
+                break;
+            case CPU:
+                add(StackCounter.CPU, node, 1);
+                break;
+            case ALLOC:
+                add(StackCounter.ALLOC_COUNT, node, 1);
+                add(StackCounter.ALLOC_SIZE, node, value);
+                break;
+            case LOCK:
+                add(StackCounter.LOCK, node, 1);
+                break;
+        }
+    }
+
+    private void add(StackCounter counter, int node, long value) {
+        for (int i = 0; i < matchCount; i++) {
+            values.add(((long) matches[i] << REQUEST_SHIFT) | ((long) node << NODE_SHIFT) | counter.ordinal(), value);
+        }
+    }
+
+    /**
+     * Writes the collapsed stack files of every request with samples to the directory, named after the line of
+     * the request in the access log, plus requests.txt describing them. Only files of the selected counters are
+     * written.
+     */
+    void saveFiles(Path dir, EventSelection eventSelection, OutputCompression compression) throws IOException {
+        Files.createDirectories(dir);
+        System.out.println("Writing " + requests.size() + " requests to dir: " + dir);
+        long[] keys = values.getSortedKeys();
+        long[] samples = new long[requests.size()];
+        StackCounter[] stackCounters = StackCounter.values();
+        StringBuilder line = new StringBuilder();
+        int i = 0;
+        while (i < keys.length) {
+            int requestId = (int) (keys[i] >>> REQUEST_SHIFT);
+            Request request = requests.get(requestId);
+            Writer[] outputs = new Writer[stackCounters.length];
+            try {
+                for (; i < keys.length && (int) (keys[i] >>> REQUEST_SHIFT) == requestId; i++) {
+                    int node = (int) ((keys[i] >>> NODE_SHIFT) & Integer.MAX_VALUE);
+                    StackCounter counter = stackCounters[(int) (keys[i] & 7)];
+                    if (!eventSelection.isSelected(counter)) {
+                        continue;
+                    }
+                    if (counter == StackCounter.WALL) {
+                        samples[requestId] += values.get(keys[i]);
+                    }
+                    if (outputs[counter.ordinal()] == null) {
+                        outputs[counter.ordinal()] = new BufferedWriter(new OutputStreamWriter(compression.create(dir.toString(), request.getFileName(counter))), 64 * 1024);
+                    }
+                    line.setLength(0);
+                    collapsedStacks.appendStack(line, node);
+                    line.append(' ').append(values.get(keys[i])).append('\n');
+                    outputs[counter.ordinal()].write(line.toString());
+                }
+            } finally {
+                for (Writer output : outputs) {
+                    if (output != null) {
+                        output.close();
+                    }
+                }
+            }
+        }
+
+        boolean wall = eventSelection.isSelected(StackCounter.WALL);
+        try (Writer summary = Files.newBufferedWriter(dir.resolve("requests.txt"), StandardCharsets.UTF_8)) {
+            for (Request request : requests) {
+                summary.write("line " + request.lineNumber + " [" + request.thread + "] [" + request.durationMs + " ms] ["
+                        + request.description + "]" + (wall ? " wall samples: " + samples[request.id] : "") + "\n");
+            }
+        }
+    }
+
+    long estimatedBytes() {
+        return collapsedStacks.estimatedBytes() + values.estimatedBytes();
+    }
+
+    private ThreadRequests getThreadRequests(int threadFrameId) {
+        if (threadFrameId >= threadRequestsByFrameId.length) {
+            threadRequestsByFrameId = Arrays.copyOf(threadRequestsByFrameId, Math.max(threadFrameId + 1, threadRequestsByFrameId.length * 2));
+        }
+        ThreadRequests requestsOfThread = threadRequestsByFrameId[threadFrameId];
+        if (requestsOfThread == null) {
+            requestsOfThread = threadRequests.getOrDefault(collapsedStacks.frameDictionary.getFrame(threadFrameId).toLowerCase(), ThreadRequests.NONE);
+            threadRequestsByFrameId[threadFrameId] = requestsOfThread;
+        }
+        return requestsOfThread == ThreadRequests.NONE ? null : requestsOfThread;
+    }
+
+    private static int upperBound(long[] values, long value) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] <= value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    static class Request {
+        final int id;
+        final int lineNumber;
+        final String description;
+        final String thread;
+        final long durationMs;
+        final long start;
+        final long end;
+
+        Request(int id, int lineNumber, String description, String thread, long durationMs, long start, long end) {
+            this.id = id;
+            this.lineNumber = lineNumber;
+            this.description = description;
+            this.thread = thread;
+            this.durationMs = durationMs;
+            this.start = start;
+            this.end = end;
+        }
+
+        String getFileName(StackCounter counter) {
+            return "line-" + lineNumber + "." + counter.getName() + ".collapsed";
+        }
+    }
+
+    /**
+     * Requests of one thread sorted by start. Requests of a thread may overlap, so all the requests starting
+     * not earlier than the longest one before the timestamp are checked.
+     */
+    private static class ThreadRequests {
+        static final ThreadRequests NONE = new ThreadRequests(new ArrayList<>());
+
+        final long[] starts;
+        final long[] ends;
+        final int[] ids;
+        final long maxLength;
+
+        ThreadRequests(List<Request> requests) {
+            requests.sort((first, second) -> Long.compare(first.start, second.start));
+            starts = new long[requests.size()];
+            ends = new long[requests.size()];
+            ids = new int[requests.size()];
+            long longest = 0;
+            for (int i = 0; i < requests.size(); i++) {
+                starts[i] = requests.get(i).start;
+                ends[i] = requests.get(i).end;
+                ids[i] = requests.get(i).id;
+                longest = Math.max(longest, ends[i] - starts[i]);
+            }
+            maxLength = longest;
+        }
+    }
+}
@@ -1,13 +1,40 @@
 package pl.ks.profiling.jft.converter.collapsed;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
 public class Arguments {
     String path = null;
     ParserType parserType = null;
     TimestampFeature timestampFeature = TimestampFeature.DISABLED;
+    long timeSeriesBucketWidth = 0;
     String commonLogDateStr = null;
     String durationTimeMsStr = null;
     String thread = null;
+    List<String> threadGroups = new ArrayList<>();
+    String accessLogFile = null;
+    long accessLogMinDurationMs = 0;
 
     int warmUp = 0;
     int coolDown = 0;
+    int threads = 1;
+    boolean streaming = false;
+    boolean pipeline = false;
+    boolean compression = true;
+    int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    OutputFormat outputFormat = OutputFormat.COLLAPSED;
+    double flameGraphMinWidth = 0.01;
+    boolean buildIndex = false;
+    long indexBucketWidth = 100;
+    int serverPort = 0;
+    String incrementalState = null;
+    boolean watch = false;
+    boolean stats = false;
+    String events = null;
+    String normalizationRules = null;
+    long approximateMemoryMb = 0;
+    long spillMemoryMb = 0;
+    String mergeDir = null;
+    long cacheSizeMb = Runtime.getRuntime().maxMemory() / 2 / 1024 / 1024;
 }
@@ -11,17 +11,68 @@ public class ArgumentsParser {
             } else if (arg.equals("-f")) {
                 arguments.parserType = ParserType.FILE;
                 arguments.path = args[++i];
+            } else if (arg.equals("-b")) {
+                arguments.parserType = ParserType.BINARY;
+                arguments.path = args[++i];
+            } else if (arg.equals("-o")) {
+                arguments.outputFormat = OutputFormat.valueOf(args[++i].toUpperCase());
+            } else if (arg.equals("-minwidth")) {
+                arguments.flameGraphMinWidth = Double.valueOf(args[++i]);
             } else if (arg.equals("-w")) {
                 arguments.warmUp = Integer.valueOf(args[++i]);
             } else if (arg.equals("-c")) {
                 arguments.coolDown = Integer.valueOf(args[++i]);
             } else if (arg.equals("-ts")) {
                 arguments.timestampFeature = TimestampFeature.ENABLED;
+            } else if (arg.equals("-tsb")) {
+                arguments.timeSeriesBucketWidth = Long.valueOf(args[++i]);
             } else if (arg.equals("-al")) {
                 arguments.commonLogDateStr = args[++i];
                 arguments.durationTimeMsStr = args[++i];
+            } else if (arg.equals("-alf")) {
+                arguments.accessLogFile = args[++i];
+                arguments.accessLogMinDurationMs = Long.valueOf(args[++i]);
             } else if (arg.equals("-t")) {
                 arguments.thread = args[++i];
+            } else if (arg.equals("-tg")) {
+                arguments.threadGroups.add(args[++i]);
+            } else if (arg.equals("-s")) {
+                arguments.streaming = true;
+            } else if (arg.equals("-pipeline")) {
+                arguments.pipeline = true;
+            } else if (arg.equals("-z")) {
+                arguments.compressionLevel = Integer.valueOf(args[++i]);
+                if (arguments.compressionLevel < 0 || arguments.compressionLevel > 9) {
+                    throw new IllegalArgumentException("Compression level must be 0-9: " + arguments.compressionLevel);
+                }
+            } else if (arg.equals("-u")) {
+                arguments.compression = false;
+            } else if (arg.equals("-p")) {
+                arguments.threads = Integer.valueOf(args[++i]);
+            } else if (arg.equals("-i")) {
+                arguments.buildIndex = true;
+            } else if (arg.equals("-ib")) {
+                arguments.indexBucketWidth = Long.valueOf(args[++i]);
+            } else if (arg.equals("-server")) {
+                arguments.serverPort = Integer.valueOf(args[++i]);
+            } else if (arg.equals("-m")) {
+                arguments.cacheSizeMb = Long.valueOf(args[++i]);
+            } else if (arg.equals("-inc")) {
+                arguments.incrementalState = args[++i];
+            } else if (arg.equals("-watch")) {
+                arguments.watch = true;
+            } else if (arg.equals("--stats")) {
+                arguments.stats = true;
+            } else if (arg.equals("-e") || arg.equals("--events")) {
+                arguments.events = args[++i];
+            } else if (arg.equals("-norm")) {
+                arguments.normalizationRules = args[++i];
+            } else if (arg.equals("-a")) {
+                arguments.approximateMemoryMb = Long.valueOf(args[++i]);
+            } else if (arg.equals("-spill")) {
+                arguments.spillMemoryMb = Long.valueOf(args[++i]);
+            } else if (arg.equals("-merge")) {
+                arguments.mergeDir = args[++i];
             }
         }
         return arguments;
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Compact binary form of {@link CollapsedStacks}, with all the counters in one file:
+ * <pre>
+ * magic "CJFR", version
+ * frame count, frames as (length, UTF-8 bytes)
+ * bit mask of the counters present in the file
+ * stack count, stacks as (length of the prefix shared with the previous stack, length of the rest,
+ *                         frame ids of the rest, values of the present counters)
+ * </pre>
+ * All the numbers after the version are varints.
+ */
+class BinaryStacksFormat {
+    static final String FILE_NAME = "stacks.bin";
+
+    private static final byte[] MAGIC = {'C', 'J', 'F', 'R'};
+    private static final int VERSION = 1;
+
+    static void write(CollapsedStacks collapsedStacks, OutputStream outputStream) throws IOException {
+        StackTrie stackTrie = collapsedStacks.stackTrie;
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(outputStream, 64 * 1024));
+
+        StackCounter[] counters = StackCounter.values();
+        int counterMask = 0;
+        int stackCount = 0;
+        for (int node = 1; node < stackTrie.size(); node++) {
+            boolean present = false;
+            for (StackCounter counter : counters) {
+                if (stackTrie.isPresent(node, counter)) {
+                    counterMask |= 1 << counter.ordinal();
+                    present = true;
+                }
+            }
+            if (present) {
+                stackCount++;
+            }
+        }
+        writeHeader(output, collapsedStacks.frameDictionary, counterMask, stackCount);
+
+        int[] previousPath = new int[0];
+        long[] values = new long[counters.length];
+        for (int node = 1; node < stackTrie.size(); node++) {
+            if (!isPresent(stackTrie, node, counterMask)) {
+                continue;
+            }
+            int[] path = stackTrie.getPath(node);
+            for (StackCounter counter : counters) {
+                values[counter.ordinal()] = stackTrie.get(node, counter);
+            }
+            writeStack(output, path, path.length, getSharedPrefix(path, path.length, previousPath, previousPath.length), values, counterMask);
+            previousPath = path;
+        }
+        output.flush();
+    }
+
+    static void writeHeader(DataOutputStream output, FrameDictionary frameDictionary, int counterMask, long stackCount) throws IOException {
+        output.write(MAGIC);
+        output.write(VERSION);
+        writeVarLong(output, frameDictionary.size());
+        for (int i = 0; i < frameDictionary.size(); i++) {
+            byte[] frame = frameDictionary.getFrame(i).getBytes(StandardCharsets.UTF_8);
+            writeVarLong(output, frame.length);
+            output.write(frame);
+        }
+        writeVarLong(output, counterMask);
+        writeVarLong(output, stackCount);
+    }
+
+    /**
+     * @param values values of all the counters by ordinal, only the ones in the counter mask are written
+     */
+    static void writeStack(DataOutputStream output, int[] path, int depth, int sharedPrefix, long[] values, int counterMask) throws IOException {
+        writeVarLong(output, sharedPrefix);
+        writeVarLong(output, depth - sharedPrefix);
+        for (int i = sharedPrefix; i < depth; i++) {
+            writeVarLong(output, path[i]);
+        }
+        for (StackCounter counter : StackCounter.values()) {
+            if ((counterMask & (1 << counter.ordinal())) != 0) {
+                writeVarLong(output, values[counter.ordinal()]);
+            }
+        }
+    }
+
+    static int getSharedPrefix(int[] path, int depth, int[] previousPath, int previousDepth) {
+        int sharedPrefix = 0;
+        while (sharedPrefix < depth && sharedPrefix < previousDepth && path[sharedPrefix] == previousPath[sharedPrefix]) {
+            sharedPrefix++;
+        }
+        return sharedPrefix;
+    }
+
+    static CollapsedStacks read(Path file) throws IOException {
+        try (StackReader reader = StackReader.open(file)) {
+            return read(reader);
+        }
+    }
+
+    private static CollapsedStacks read(StackReader reader) throws IOException {
+        CollapsedStacks collapsedStacks = new CollapsedStacks();
+        int[] frameIds = new int[reader.frames.length];
+        for (int i = 0; i < frameIds.length; i++) {
+            frameIds[i] = collapsedStacks.frameDictionary.getId(reader.frames[i]);
+        }
+
+        StackTrie stackTrie = collapsedStacks.stackTrie;
+        // nodes of the previous stack, so the shared prefix does not have to be looked up again
+        int[] pathNodes = new int[64];
+        while (reader.next()) {
+            if (reader.depth > pathNodes.length) {
+                pathNodes = Arrays.copyOf(pathNodes, Math.max(reader.depth, pathNodes.length * 2));
+            }
+            int node = reader.sharedPrefix == 0 ? StackTrie.ROOT : pathNodes[reader.sharedPrefix - 1];
+            for (int level = reader.sharedPrefix; level < reader.depth; level++) {
+                node = stackTrie.getChild(node, frameIds[reader.path[level]]);
+                pathNodes[level] = node;
+            }
+            for (StackCounter counter : StackCounter.values()) {
+                long value = reader.values[counter.ordinal()];
+                if (value != 0) {
+                    stackTrie.add(node, counter, value);
+                }
+            }
+        }
+        return collapsedStacks;
+    }
+
+    private static boolean isPresent(StackTrie stackTrie, int node, int counterMask) {
+        for (StackCounter counter : StackCounter.values()) {
+            if ((counterMask & (1 << counter.ordinal())) != 0 && stackTrie.isPresent(node, counter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static void writeVarLong(DataOutputStream output, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            output.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        output.write((int) value);
+    }
+
+    static long readVarLong(DataInputStream input) throws IOException {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            int b = input.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    /**
+     * Reads the stacks of a file one at a time, without building a stack trie. The path and the values are
+     * overwritten by every {@link #next()} call.
+     */
+    static class StackReader implements Closeable {
+        private final DataInputStream input;
+        final String[] frames;
+        final int counterMask;
+        private long remainingStacks;
+        int[] path = new int[64];
+        int depth;
+        int sharedPrefix;
+        final long[] values = new long[StackCounter.values().length];
+
+        private StackReader(DataInputStream input) throws IOException {
+            this.input = input;
+            byte[] magic = new byte[MAGIC.length];
+            input.readFully(magic);
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (magic[i] != MAGIC[i]) {
+                    throw new IOException("Not a binary stacks file");
+                }
+            }
+            int version = input.read();
+            if (version != VERSION) {
+                throw new IOException("Unsupported binary stacks file version: " + version);
+            }
+
+            frames = new String[(int) readVarLong(input)];
+            for (int i = 0; i < frames.length; i++) {
+                byte[] frame = new byte[(int) readVarLong(input)];
+                input.readFully(frame);
+                frames[i] = new String(frame, StandardCharsets.UTF_8);
+            }
+            counterMask = (int) readVarLong(input);
+            remainingStacks = readVarLong(input);
+        }
+
+        static StackReader open(Path file) throws IOException {
+            InputStream inputStream = Files.newInputStream(file);
+            if (file.getFileName().toString().toLowerCase().endsWith(".gz")) {
+                inputStream = new GZIPInputStream(inputStream, 64 * 1024);
+            }
+            DataInputStream input = new DataInputStream(new BufferedInputStream(inputStream, 64 * 1024));
+            try {
+                return new StackReader(input);
+            } catch (IOException e) {
+                input.close();
+                throw e;
+            }
+        }
+
+        boolean next() throws IOException {
+            if (remainingStacks == 0) {
+                return false;
+            }
+            remainingStacks--;
+            sharedPrefix = (int) readVarLong(input);
+            depth = sharedPrefix + (int) readVarLong(input);
+            if (depth > path.length) {
+                path = Arrays.copyOf(path, Math.max(depth, path.length * 2));
+            }
+            for (int level = sharedPrefix; level < depth; level++) {
+                path[level] = (int) readVarLong(input);
+            }
+            for (StackCounter counter : StackCounter.values()) {
+                values[counter.ordinal()] = (counterMask & (1 << counter.ordinal())) != 0 ? readVarLong(input) : 0;
+            }
+            return true;
+        }
+
+        String getFrame(int level) {
+            return frames[path[level]];
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+}
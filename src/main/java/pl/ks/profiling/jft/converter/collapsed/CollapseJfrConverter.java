@@ -0,0 +1,179 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import org.openjdk.jmc.flightrecorder.CouldNotLoadRecordingException;
+import org.openjdk.jmc.flightrecorder.internal.EventArrays;
+import org.openjdk.jmc.flightrecorder.internal.FlightRecordingLoader;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Converts JFR recordings to collapsed stacks inside an application, without files written. Nothing static of
+ * the command line tool is used, its options and {@code --stats} counters stay untouched. A converter is
+ * immutable and the {@code with} methods return configured copies, so one instance can be shared. Every
+ * conversion aggregates into its own {@link CollapseJfrResult}, so conversions can run in many threads at once.
+ * <pre>
+ * CollapseJfrResult result = new CollapseJfrConverter()
+ *         .withEvents(EventType.WALL, EventType.CPU)
+ *         .withThread("main")
+ *         .convert(Paths.get("recording.jfr"));
+ * result.forEachStack(StackCounter.CPU, (stack, count) -&gt; ...);
+ * </pre>
+ */
+public class CollapseJfrConverter {
+    private final Set<EventType> eventTypes;
+    private final String thread;
+    private final StartEndDate startEndDate;
+    private final int warmUp;
+    private final int coolDown;
+    private final StackNormalizer stackNormalizer;
+
+    public CollapseJfrConverter() {
+        this(EnumSet.allOf(EventType.class), null, null, 0, 0, StackNormalizer.NONE);
+    }
+
+    private CollapseJfrConverter(Set<EventType> eventTypes, String thread, StartEndDate startEndDate, int warmUp, int coolDown, StackNormalizer stackNormalizer) {
+        this.eventTypes = eventTypes;
+        this.thread = thread;
+        this.startEndDate = startEndDate;
+        this.warmUp = warmUp;
+        this.coolDown = coolDown;
+        this.stackNormalizer = stackNormalizer;
+    }
+
+    /**
+     * Only the given event types are decoded, all of them by default.
+     */
+    public CollapseJfrConverter withEvents(EventType... eventTypes) {
+        if (eventTypes.length == 0) {
+            throw new IllegalArgumentException("No event types to convert");
+        }
+        return new CollapseJfrConverter(EnumSet.copyOf(Arrays.asList(eventTypes)), thread, startEndDate, warmUp, coolDown, stackNormalizer);
+    }
+
+    /**
+     * @param thread name of the only thread to convert, case insensitive, null for all the threads
+     */
+    public CollapseJfrConverter withThread(String thread) {
+        String threadLowerCase = thread == null ? null : thread.trim().toLowerCase();
+        return new CollapseJfrConverter(eventTypes, threadLowerCase, startEndDate, warmUp, coolDown, stackNormalizer);
+    }
+
+    /**
+     * Only events recorded between the dates, inclusive, are converted.
+     */
+    public CollapseJfrConverter withTimeRange(Instant startDate, Instant endDate) {
+        StartEndDate range = new StartEndDate();
+        range.startDate = startDate;
+        range.endDate = endDate;
+        return new CollapseJfrConverter(eventTypes, thread, range, warmUp, coolDown, stackNormalizer);
+    }
+
+    /**
+     * Events of the first and the last seconds of the converted recordings are skipped.
+     */
+    public CollapseJfrConverter withWarmUpCoolDown(int warmUpSeconds, int coolDownSeconds) {
+        return new CollapseJfrConverter(eventTypes, thread, startEndDate, warmUpSeconds, coolDownSeconds, stackNormalizer);
+    }
+
+    /**
+     * @param rules rules file or "default", the same as the -norm option of the command line tool
+     */
+    public CollapseJfrConverter withNormalization(String rules) throws IOException {
+        return new CollapseJfrConverter(eventTypes, thread, startEndDate, warmUp, coolDown, StackNormalizer.load(rules));
+    }
+
+    /**
+     * Converts .jfr or .jfr.gz files into one result.
+     */
+    public CollapseJfrResult convert(List<Path> files) throws IOException {
+        Conversion conversion = new Conversion();
+        for (Path file : files) {
+            try (InputStream input = JftToCollapseStacks.getInputStream(file)) {
+                conversion.add(input);
+            }
+        }
+        return conversion.finish();
+    }
+
+    public CollapseJfrResult convert(Path file) throws IOException {
+        return convert(Collections.singletonList(file));
+    }
+
+    /**
+     * Converts a recording read from the stream, plain or gzip compressed. The stream is not closed.
+     */
+    public CollapseJfrResult convert(InputStream recording) throws IOException {
+        Conversion conversion = new Conversion();
+        conversion.add(recording);
+        return conversion.finish();
+    }
+
+    private class Conversion {
+        private final EventSelection eventSelection = EventSelection.of(eventTypes);
+        private final CollapsedStacks collapsedStacks = new CollapsedStacks(warmUp, coolDown);
+        private final SymbolCache symbolCache = new SymbolCache(collapsedStacks.frameDictionary, stackNormalizer);
+        // counted like in the command line tool, but not reported, the tool's own stats are not shared
+        private final ProcessingStats stats = new ProcessingStats();
+
+        void add(InputStream recording) throws IOException {
+            // chunks are loaded one by one, like in the streaming mode, so only one decoded chunk is kept in memory
+            JfrChunkReader chunkReader = new JfrChunkReader(decompress(recording));
+            byte[] chunk;
+            while ((chunk = chunkReader.nextChunk()) != null) {
+                EventArrays flightRecording;
+                try {
+                    flightRecording = FlightRecordingLoader.loadStream(new ByteArrayInputStream(chunk), eventSelection.getParserExtensions(), false, false);
+                } catch (CouldNotLoadRecordingException e) {
+                    throw new IOException("Could not load JFR chunk", e);
+                }
+                JftToCollapseStacks.processFlightRecording(flightRecording, startEndDate, thread, eventSelection, collapsedStacks, symbolCache, stats);
+                symbolCache.clear();
+            }
+        }
+
+        CollapseJfrResult finish() {
+            if (collapsedStacks.trimmer != null) {
+                WarmUpCoolDownTrimmer.finish(Collections.singletonList(collapsedStacks.trimmer));
+            }
+            return new CollapseJfrResult(collapsedStacks);
+        }
+
+        private InputStream decompress(InputStream recording) throws IOException {
+            InputStream input = recording.markSupported() ? recording : new BufferedInputStream(recording, 64 * 1024);
+            input.mark(2);
+            int first = input.read();
+            int second = input.read();
+            input.reset();
+            if (first == (GZIPInputStream.GZIP_MAGIC & 0xff) && second == (GZIPInputStream.GZIP_MAGIC >> 8)) {
+                return new GZIPInputStream(input, 64 * 1024);
+            }
+            return input;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Stacks aggregated by one conversion of {@link CollapseJfrConverter}. A result is not modified after it is
+ * returned, so it can be read from many threads.
+ */
+public class CollapseJfrResult {
+    private final CollapsedStacks collapsedStacks;
+
+    CollapseJfrResult(CollapsedStacks collapsedStacks) {
+        this.collapsedStacks = collapsedStacks;
+    }
+
+    /**
+     * Passes every recorded stack of the counter to the sink, in the order the stacks were first seen. Frames of
+     * a stack are separated by ';', the thread name is the first one.
+     */
+    public void forEachStack(StackCounter counter, StackSink sink) throws IOException {
+        StackTrie stackTrie = collapsedStacks.stackTrie;
+        StringBuilder stack = new StringBuilder();
+        for (int node = 1; node < stackTrie.size(); node++) {
+            if (!stackTrie.isPresent(node, counter)) {
+                continue;
+            }
+            stack.setLength(0);
+            collapsedStacks.appendStack(stack, node);
+            sink.accept(stack.toString(), stackTrie.get(node, counter));
+        }
+    }
+
+    /**
+     * Writes the stacks of the counter in the collapsed stack format, one "stack count" line each, in UTF-8.
+     * The stream is flushed but not closed.
+     */
+    public void write(StackCounter counter, OutputStream output) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), 64 * 1024);
+        CollapsedStackWriter.write(writer, collapsedStacks, counter);
+        writer.flush();
+    }
+
+    /**
+     * @return number of distinct stacks recorded for the counter
+     */
+    public int getStackCount(StackCounter counter) {
+        return collapsedStacks.size(counter);
+    }
+
+    /**
+     * @return sum of the counter over all the stacks
+     */
+    public long getTotal(StackCounter counter) {
+        return collapsedStacks.sum(counter);
+    }
+}
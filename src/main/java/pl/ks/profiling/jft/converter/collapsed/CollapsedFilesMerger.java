@@ -0,0 +1,169 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Merges collapsed stack files, for example outputs of many hosts, without parsing the recordings again. Files with
+ * the same name are merged into one output file. Every input is read into a stack trie which is spilled to sorted
+ * runs, then the runs of a name are merged in streaming passes of at most {@link SpilledStacks#MAX_MERGE_RUNS} runs,
+ * summing counts of equal stacks, so the memory usage is bounded by the node limit of the tries.
+ */
+class CollapsedFilesMerger {
+    // counts of collapsed lines are kept in one counter of the stack trie
+    private static final StackCounter COUNTER = StackCounter.WALL;
+
+    static void merge(Path inputDir, Path outputDir, int threads, int maxNodes, OutputCompression compression) throws IOException, InterruptedException, ExecutionException {
+        Map<String, List<Path>> filesByName;
+        try (Stream<Path> files = Files.walk(inputDir)) {
+            filesByName = files
+                    .filter(Files::isRegularFile)
+                    .filter(file -> file.getFileName().toString().endsWith(".collapsed") || file.getFileName().toString().endsWith(".collapsed.gz"))
+                    // merged files written to the output dir before are not merged again
+                    .filter(file -> !file.toAbsolutePath().getParent().equals(outputDir.toAbsolutePath()))
+                    .collect(Collectors.groupingBy(CollapsedFilesMerger::getOutputName, TreeMap::new, Collectors.toList()));
+        }
+        if (filesByName.isEmpty()) {
+            System.out.println("No .collapsed or .collapsed.gz files found in " + inputDir);
+            return;
+        }
+
+        Path spillDir = SpilledStacks.createDir();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            Map<String, List<Future<SpilledStacks>>> parsedByName = new TreeMap<>();
+            for (Map.Entry<String, List<Path>> entry : filesByName.entrySet()) {
+                List<Future<SpilledStacks>> parsed = new ArrayList<>();
+                for (Path file : entry.getValue()) {
+                    parsed.add(executor.submit(() -> read(file, maxNodes, spillDir)));
+                }
+                parsedByName.put(entry.getKey(), parsed);
+            }
+
+            List<Future<?>> written = new ArrayList<>();
+            for (Map.Entry<String, List<Future<SpilledStacks>>> entry : parsedByName.entrySet()) {
+                SpilledStacks merged = new SpilledStacks(spillDir);
+                for (Future<SpilledStacks> parsed : entry.getValue()) {
+                    merged.addAll(parsed.get());
+                }
+                written.add(executor.submit(() -> {
+                    write(merged, outputDir, entry.getKey(), compression);
+                    return null;
+                }));
+            }
+            for (Future<?> future : written) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+            SpilledStacks.deleteDir(spillDir);
+        }
+        System.out.println("Done");
+    }
+
+    private static String getOutputName(Path file) {
+        String fileName = file.getFileName().toString();
+        return fileName.endsWith(".gz") ? fileName.substring(0, fileName.length() - ".gz".length()) : fileName;
+    }
+
+    /**
+     * @return runs the file was spilled to, its trie and frame dictionary are not kept
+     */
+    private static SpilledStacks read(Path file, int maxNodes, Path spillDir) throws IOException {
+        System.out.println("Input file: " + file);
+        CollapsedStacks collapsedStacks = new CollapsedStacks(0, 0, 0, maxNodes, spillDir);
+        InputStream inputStream = Files.newInputStream(file);
+        if (file.getFileName().toString().endsWith(".gz")) {
+            inputStream = new GZIPInputStream(inputStream, 64 * 1024);
+        }
+        long malformedLines = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8), 64 * 1024)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int countStart = line.lastIndexOf(' ');
+                long count;
+                try {
+                    count = countStart > 0 ? Long.parseLong(line.substring(countStart + 1)) : -1;
+                } catch (NumberFormatException e) {
+                    count = -1;
+                }
+                if (count < 0) {
+                    malformedLines++;
+                    continue;
+                }
+                if (count == 0) {
+                    continue;
+                }
+                collapsedStacks.compactIfNeeded();
+                int node = StackTrie.ROOT;
+                int frameStart = 0;
+                while (frameStart <= countStart) {
+                    int frameEnd = line.indexOf(';', frameStart);
+                    if (frameEnd < 0 || frameEnd > countStart) {
+                        frameEnd = countStart;
+                    }
+                    node = collapsedStacks.stackTrie.getChild(node, collapsedStacks.frameDictionary.getId(line.substring(frameStart, frameEnd)));
+                    frameStart = frameEnd + 1;
+                }
+                collapsedStacks.stackTrie.add(node, COUNTER, count);
+            }
+        }
+        if (malformedLines > 0) {
+            System.out.println("Skipped " + malformedLines + " malformed lines of " + file);
+        }
+        collapsedStacks.spillAll();
+        return collapsedStacks.spilledStacks;
+    }
+
+    private static void write(SpilledStacks spilledStacks, Path outputDir, String fileName, OutputCompression compression) throws IOException {
+        System.out.println("Merging " + spilledStacks.getRunCount() + " sorted runs to dir: " + outputDir + " with file name: " + fileName);
+        try (Writer output = new BufferedWriter(new OutputStreamWriter(compression.create(outputDir.toString(), fileName), StandardCharsets.UTF_8), 64 * 1024)) {
+            StringBuilder line = new StringBuilder();
+            spilledStacks.merge((frames, depth, values) -> {
+                line.setLength(0);
+                for (int level = 0; level < depth; level++) {
+                    if (level > 0) {
+                        line.append(';');
+                    }
+                    line.append(frames[level]);
+                }
+                line.append(' ').append(values[COUNTER.ordinal()]).append('\n');
+                output.write(line.toString());
+            });
+        }
+    }
+}
@@ -15,23 +15,30 @@
  */
 package pl.ks.profiling.jft.converter.collapsed;
 
-import java.io.FileOutputStream;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
-import java.util.Map;
-import java.util.zip.GZIPOutputStream;
 
 class CollapsedStackWriter {
-    static void saveFile(String dir, String fileName, Map<String, LongHolder> stackMap) throws IOException {
+    static void saveFile(String dir, String fileName, CollapsedStacks collapsedStacks, StackCounter counter, OutputCompression compression) throws IOException {
         System.out.println("Writing to dir: " + dir +" with file name: " + fileName);
-        try (Writer wallOutput = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(dir + "/" + fileName + ".gz")))) {
-            for (Map.Entry<String, LongHolder> holderEntry : stackMap.entrySet()) {
-                wallOutput.write(holderEntry.getKey());
-                wallOutput.write(" ");
-                wallOutput.write("" + holderEntry.getValue().getValue());
-                wallOutput.write("\n");
+        try (Writer output = new BufferedWriter(new OutputStreamWriter(compression.create(dir, fileName)), 64 * 1024)) {
+            write(output, collapsedStacks, counter);
+        }
+    }
+
+    static void write(Writer output, CollapsedStacks collapsedStacks, StackCounter counter) throws IOException {
+        StackTrie stackTrie = collapsedStacks.stackTrie;
+        StringBuilder line = new StringBuilder();
+        for (int node = 1; node < stackTrie.size(); node++) {
+            if (!stackTrie.isPresent(node, counter)) {
+                continue;
             }
+            line.setLength(0);
+            collapsedStacks.appendStack(line, node);
+            line.append(' ').append(stackTrie.get(node, counter)).append('\n');
+            output.write(line.toString());
         }
     }
 }
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+class CollapsedStacks {
+    /**
+     * Heap per stack trie node in the worst case: node arrays twice the size of the trie, all the counters present
+     * and the temporary arrays and the new trie built during compaction.
+     */
+    static final int BYTES_PER_NODE = 192;
+
+    final FrameDictionary frameDictionary = new FrameDictionary();
+    StackTrie stackTrie = new StackTrie();
+    final WarmUpCoolDownTrimmer trimmer;
+    final TimeBuckets timeBuckets;
+    final int maxNodes;
+    // runs the trie is spilled to instead of compacting it, null for compaction
+    final SpilledStacks spilledStacks;
+    // the largest count of a stack folded into "other" by every compaction, summed per counter
+    final long[] maxErrors = new long[StackCounter.values().length];
+    int compactions;
+
+    CollapsedStacks() {
+        this(0, 0, 0);
+    }
+
+    CollapsedStacks(int warmUp, int coolDown) {
+        this(warmUp, coolDown, 0);
+    }
+
+    CollapsedStacks(int warmUp, int coolDown, long bucketWidth) {
+        this(warmUp, coolDown, bucketWidth, 0);
+    }
+
+    /**
+     * @param bucketWidth width in ms of time buckets the counters are also aggregated in, 0 to disable them
+     * @param maxNodes    limit of stack trie nodes, the trie is compacted to the heaviest stacks when it is exceeded,
+     *                    0 for exact aggregation
+     */
+    CollapsedStacks(int warmUp, int coolDown, long bucketWidth, int maxNodes) {
+        this(warmUp, coolDown, bucketWidth, maxNodes, null);
+    }
+
+    /**
+     * @param spillDir directory the trie is spilled to when maxNodes is exceeded, so the aggregation stays exact,
+     *                 null to compact the trie instead
+     */
+    CollapsedStacks(int warmUp, int coolDown, long bucketWidth, int maxNodes, Path spillDir) {
+        if (maxNodes > 0 && (warmUp != 0 || coolDown != 0 || bucketWidth > 0)) {
+            throw new IllegalArgumentException("Approximate and spilling aggregation do not support warm-up, cool-down and time buckets");
+        }
+        this.trimmer = warmUp != 0 || coolDown != 0 ? new WarmUpCoolDownTrimmer(warmUp, coolDown, this) : null;
+        this.timeBuckets = bucketWidth > 0 ? new TimeBuckets(bucketWidth) : null;
+        this.maxNodes = maxNodes;
+        this.spilledStacks = spillDir != null ? new SpilledStacks(spillDir) : null;
+    }
+
+    /**
+     * Empty aggregate with the same warm-up, cool-down, time buckets, node limit and spill directory, to merge
+     * aggregates of parallel parsing into.
+     */
+    CollapsedStacks createMergeTarget() {
+        int warmUp = trimmer == null ? 0 : trimmer.warmUp;
+        int coolDown = trimmer == null ? 0 : trimmer.coolDown;
+        long bucketWidth = timeBuckets == null ? 0 : timeBuckets.bucketWidth;
+        return new CollapsedStacks(warmUp, coolDown, bucketWidth, maxNodes, spilledStacks == null ? null : spilledStacks.dir);
+    }
+
+    /**
+     * Called for every event before its stack is looked up, node ids are not changed by compaction until the
+     * next event.
+     */
+    void recordTimestamp(long timestamp) {
+        if (trimmer != null) {
+            trimmer.recordTimestamp(timestamp);
+        }
+        compactIfNeeded();
+    }
+
+    boolean isApproximate() {
+        return compactions > 0;
+    }
+
+    boolean isSpilled() {
+        return spilledStacks != null && spilledStacks.getRunCount() > 0;
+    }
+
+    /**
+     * Writes the rest of the trie to a run too, so all the stacks can be read with {@link SpilledStacks#merge}.
+     */
+    void spillAll() {
+        spilledStacks.spill(stackTrie, frameDictionary);
+        stackTrie = new StackTrie();
+    }
+
+    void compactIfNeeded() {
+        if (maxNodes > 0 && stackTrie.size() > maxNodes && spilledStacks != null) {
+            spillAll();
+        } else if (maxNodes > 0 && stackTrie.size() > maxNodes) {
+            long[] evictedMax = new long[maxErrors.length];
+            stackTrie = StackTrieCompactor.compact(stackTrie, frameDictionary.getId(StackTrieCompactor.OTHER_FRAME), maxNodes, evictedMax);
+            for (int i = 0; i < maxErrors.length; i++) {
+                maxErrors[i] += evictedMax[i];
+            }
+            compactions++;
+        }
+    }
+
+    void add(long timestamp, EventType eventType, int node, long value) {
+        switch (eventType) {
+            case WALL:
+                add(timestamp, StackCounter.WALL, node, 1);
+                break;
+            case CPU:
+                add(timestamp, StackCounter.CPU, node, 1);
+                break;
+            case ALLOC:
+                add(timestamp, StackCounter.ALLOC_COUNT, node, 1);
+                add(timestamp, StackCounter.ALLOC_SIZE, node, value);
+                break;
+            case LOCK:
+                add(timestamp, StackCounter.LOCK, node, 1);
+                break;
+        }
+    }
+
+    void add(long timestamp, StackCounter counter, int node, long value) {
+        if (trimmer != null && trimmer.buffer(timestamp, counter, node, value)) {
+            return;
+        }
+        aggregate(timestamp, counter, node, value);
+    }
+
+    /**
+     * Adds the value skipping warm-up and cool-down trimming.
+     */
+    void aggregate(long timestamp, StackCounter counter, int node, long value) {
+        if (timeBuckets != null) {
+            timeBuckets.add(timestamp, node, counter, value);
+        }
+        stackTrie.add(node, counter, value);
+    }
+
+    /**
+     * Adds the stacks of the other aggregate. Stacks still buffered by its warm-up/cool-down trimmer are moved to
+     * the trimmer of this aggregate, without one they have to be finished before.
+     */
+    void merge(CollapsedStacks other) {
+        if (other.spilledStacks != null) {
+            spilledStacks.addAll(other.spilledStacks);
+        }
+        int[] frameIds = new int[other.frameDictionary.size()];
+        for (int i = 0; i < frameIds.length; i++) {
+            frameIds[i] = frameDictionary.getId(other.frameDictionary.getFrame(i));
+        }
+
+        int[] nodes = new int[other.stackTrie.size()];
+        nodes[StackTrie.ROOT] = StackTrie.ROOT;
+        for (int node = 1; node < nodes.length; node++) {
+            nodes[node] = stackTrie.getChild(nodes[other.stackTrie.getParent(node)], frameIds[other.stackTrie.getFrame(node)]);
+            for (StackCounter counter : StackCounter.values()) {
+                long value = other.stackTrie.get(node, counter);
+                if (value != 0) {
+                    stackTrie.add(nodes[node], counter, value);
+                }
+            }
+        }
+        if (timeBuckets != null && other.timeBuckets != null) {
+            timeBuckets.merge(other.timeBuckets, nodes);
+        }
+        if (trimmer != null && other.trimmer != null) {
+            trimmer.merge(other.trimmer, nodes);
+        }
+        for (int i = 0; i < maxErrors.length; i++) {
+            maxErrors[i] += other.maxErrors[i];
+        }
+        compactions += other.compactions;
+        compactIfNeeded();
+    }
+
+    /**
+     * @param threadFilter called once for every thread, the first frame of a stack
+     * @return new aggregate with the stacks of the accepted threads
+     */
+    CollapsedStacks copyThreads(Predicate<String> threadFilter) {
+        CollapsedStacks copy = new CollapsedStacks();
+        int[] frameIds = new int[frameDictionary.size()];
+        Arrays.fill(frameIds, -1);
+        // -1 for nodes of threads not accepted
+        int[] nodes = new int[stackTrie.size()];
+        nodes[StackTrie.ROOT] = StackTrie.ROOT;
+        for (int node = 1; node < nodes.length; node++) {
+            int parent = stackTrie.getParent(node);
+            int frame = stackTrie.getFrame(node);
+            if (nodes[parent] < 0 || (parent == StackTrie.ROOT && !threadFilter.test(frameDictionary.getFrame(frame)))) {
+                nodes[node] = -1;
+                continue;
+            }
+            if (frameIds[frame] < 0) {
+                frameIds[frame] = copy.frameDictionary.getId(frameDictionary.getFrame(frame));
+            }
+            nodes[node] = copy.stackTrie.getChild(nodes[parent], frameIds[frame]);
+            for (StackCounter counter : StackCounter.values()) {
+                long value = stackTrie.get(node, counter);
+                if (value != 0) {
+                    copy.stackTrie.add(nodes[node], counter, value);
+                }
+            }
+        }
+        return copy;
+    }
+
+    int size(StackCounter counter) {
+        int size = 0;
+        for (int node = 1; node < stackTrie.size(); node++) {
+            if (stackTrie.isPresent(node, counter)) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    long sum(StackCounter counter) {
+        long sum = 0;
+        for (int node = 1; node < stackTrie.size(); node++) {
+            sum += stackTrie.get(node, counter);
+        }
+        return sum;
+    }
+
+    String getStack(int node) {
+        StringBuilder builder = new StringBuilder();
+        appendStack(builder, node);
+        return builder.toString();
+    }
+
+    void appendStack(StringBuilder builder, int node) {
+        int[] path = stackTrie.getPath(node);
+        for (int i = 0; i < path.length; i++) {
+            if (i > 0) {
+                builder.append(';');
+            }
+            builder.append(frameDictionary.getFrame(path[i]));
+        }
+    }
+
+    long estimatedBytes() {
+        return frameDictionary.estimatedBytes() + stackTrie.estimatedBytes() + (timeBuckets == null ? 0 : timeBuckets.estimatedBytes());
+    }
+}
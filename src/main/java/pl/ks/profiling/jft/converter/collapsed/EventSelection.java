@@ -0,0 +1,126 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import org.openjdk.jmc.flightrecorder.parser.IEventSink;
+import org.openjdk.jmc.flightrecorder.parser.IEventSinkFactory;
+import org.openjdk.jmc.flightrecorder.parser.IParserExtension;
+import org.openjdk.jmc.flightrecorder.parser.ParserExtensionRegistry;
+import org.openjdk.jmc.flightrecorder.parser.ValueField;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Event types to convert. Recordings are loaded with a parser extension which drops the events of all the other
+ * types before they are stored, so they never become event arrays.
+ */
+class EventSelection {
+    static final EventSelection ALL = new EventSelection(EnumSet.allOf(EventType.class));
+
+    private static final IEventSink SKIPPING_SINK = values -> {
+    };
+
+    private final Set<EventType> eventTypes;
+    private final Set<String> identifiers = new HashSet<>();
+    private final List<IParserExtension> parserExtensions;
+
+    private EventSelection(Set<EventType> eventTypes) {
+        this.eventTypes = eventTypes;
+        if (eventTypes.contains(EventType.WALL) || eventTypes.contains(EventType.CPU)) {
+            identifiers.add("jdk.ExecutionSample");
+        }
+        if (eventTypes.contains(EventType.ALLOC)) {
+            identifiers.add("jdk.ObjectAllocationInNewTLAB");
+            identifiers.add("jdk.ObjectAllocationOutsideTLAB");
+        }
+        if (eventTypes.contains(EventType.LOCK)) {
+            identifiers.add("jdk.JavaMonitorEnter");
+        }
+        // extensions wrap the sink factory in order, the last one sees new event types first
+        parserExtensions = new ArrayList<>(ParserExtensionRegistry.getParserExtensions());
+        parserExtensions.add(new SelectingParserExtension());
+    }
+
+    static EventSelection of(Set<EventType> eventTypes) {
+        return new EventSelection(EnumSet.copyOf(eventTypes));
+    }
+
+    /**
+     * @param eventTypes comma separated list of wall, cpu, alloc, lock
+     */
+    static EventSelection parse(String eventTypes) {
+        Set<EventType> selected = EnumSet.noneOf(EventType.class);
+        for (String eventType : eventTypes.split(",")) {
+            try {
+                selected.add(EventType.valueOf(eventType.trim().toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown event type: " + eventType + ", expected wall, cpu, alloc or lock");
+            }
+        }
+        return new EventSelection(selected);
+    }
+
+    boolean isSelected(EventType eventType) {
+        return eventTypes.contains(eventType);
+    }
+
+    boolean isSelected(StackCounter counter) {
+        switch (counter) {
+            case WALL:
+                return isSelected(EventType.WALL);
+            case CPU:
+                return isSelected(EventType.CPU);
+            case ALLOC_COUNT:
+            case ALLOC_SIZE:
+                return isSelected(EventType.ALLOC);
+            default:
+                return isSelected(EventType.LOCK);
+        }
+    }
+
+    List<IParserExtension> getParserExtensions() {
+        return parserExtensions;
+    }
+
+    private class SelectingParserExtension implements IParserExtension {
+        @Override
+        public IEventSinkFactory getEventSinkFactory(IEventSinkFactory subFactory) {
+            return new IEventSinkFactory() {
+                @Override
+                public IEventSink create(String identifier, String label, String[] category, String description, List<ValueField> dataStructure) {
+                    if (!identifiers.contains(identifier)) {
+                        return SKIPPING_SINK;
+                    }
+                    return subFactory.create(identifier, label, category, description, dataStructure);
+                }
+
+                @Override
+                public void flush() {
+                    subFactory.flush();
+                }
+            };
+        }
+
+        @Override
+        public String getValueInterpretation(String eventTypeId, String fieldId) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package pl.ks.profiling.jft.converter.collapsed;
+
+public enum EventType {
+    WALL,
+    CPU,
+    ALLOC,
+    LOCK,
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Renders a flame graph of one counter straight from the stack trie, as a standalone SVG or an HTML page with the
+ * SVG inlined and a script for zooming. Frames narrower than the minimal width are pruned together with their
+ * children, so the size of the output does not depend on the number of stacks.
+ */
+class FlameGraphWriter {
+    private static final int WIDTH = 1200;
+    private static final int PADDING = 10;
+    private static final int TITLE_HEIGHT = 40;
+    private static final int FRAME_HEIGHT = 16;
+    private static final double CHAR_WIDTH = 7;
+    private static final String ROOT_FRAME = "all";
+
+    private static final String SCRIPT = ""
+            + "<script>\n"
+            + "const svg = document.getElementById('flamegraph');\n"
+            + "const details = document.getElementById('details');\n"
+            + "const width = " + (WIDTH - 2 * PADDING) + ";\n"
+            + "function frameName(g) {\n"
+            + "  const title = g.querySelector('title').textContent;\n"
+            + "  return title.substring(0, title.lastIndexOf(' ('));\n"
+            + "}\n"
+            + "function label(name, w) {\n"
+            + "  const chars = Math.floor((w - 3) / " + CHAR_WIDTH + ");\n"
+            + "  return chars < 3 ? '' : name.length <= chars ? name : name.substring(0, chars - 2) + '..';\n"
+            + "}\n"
+            + "function zoom(target) {\n"
+            + "  const x0 = +target.dataset.x, w0 = +target.dataset.w, d0 = +target.dataset.d;\n"
+            + "  for (const g of svg.querySelectorAll('g[data-w]')) {\n"
+            + "    const x = +g.dataset.x, w = +g.dataset.w, d = +g.dataset.d;\n"
+            + "    const inside = d >= d0 && x >= x0 && x + w <= x0 + w0;\n"
+            + "    const ancestor = d < d0 && x <= x0 && x + w >= x0 + w0;\n"
+            + "    g.style.display = inside || ancestor ? '' : 'none';\n"
+            + "    if (inside || ancestor) {\n"
+            + "      const nx = inside ? (x - x0) * width / w0 : 0, nw = inside ? w * width / w0 : width;\n"
+            + "      g.querySelector('rect').setAttribute('x', " + PADDING + " + nx);\n"
+            + "      g.querySelector('rect').setAttribute('width', nw);\n"
+            + "      g.querySelector('text').setAttribute('x', " + PADDING + " + nx + 3);\n"
+            + "      g.querySelector('text').textContent = label(frameName(g), nw);\n"
+            + "    }\n"
+            + "  }\n"
+            + "}\n"
+            + "svg.addEventListener('click', e => { const g = e.target.closest('g[data-w]'); if (g) zoom(g); });\n"
+            + "svg.addEventListener('mouseover', e => { const g = e.target.closest('g[data-w]'); details.textContent = g ? g.querySelector('title').textContent : ''; });\n"
+            + "</script>\n";
+
+    static String getFileName(StackCounter counter, OutputFormat outputFormat) {
+        return counter.getName() + (outputFormat == OutputFormat.HTML ? ".html" : ".svg");
+    }
+
+    static void saveFile(String dir, String fileName, CollapsedStacks collapsedStacks, StackCounter counter, boolean html, double minWidthPercent) throws IOException {
+        System.out.println("Writing to dir: " + dir + " with file name: " + fileName);
+        try (Writer output = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(dir + "/" + fileName), StandardCharsets.UTF_8), 64 * 1024)) {
+            write(output, collapsedStacks, counter, html, minWidthPercent);
+        }
+    }
+
+    static void write(Writer output, CollapsedStacks collapsedStacks, StackCounter counter, boolean html, double minWidthPercent) throws IOException {
+        StackTrie stackTrie = collapsedStacks.stackTrie;
+        int size = stackTrie.size();
+        // parents have smaller ids than their children, so one backward pass sums the subtrees
+        long[] totals = new long[size];
+        for (int node = size - 1; node > 0; node--) {
+            totals[node] += stackTrie.get(node, counter);
+            totals[stackTrie.getParent(node)] += totals[node];
+        }
+        long minTotal = Math.max(1, (long) Math.ceil(totals[StackTrie.ROOT] * minWidthPercent / 100));
+        int[] depths = new int[size];
+        int maxDepth = 0;
+        for (int node = 1; node < size; node++) {
+            depths[node] = depths[stackTrie.getParent(node)] + 1;
+            if (totals[node] >= minTotal) {
+                maxDepth = Math.max(maxDepth, depths[node]);
+            }
+        }
+
+        int height = TITLE_HEIGHT + (maxDepth + 1) * FRAME_HEIGHT + PADDING;
+        String title = counter.getName() + " flame graph";
+        if (html) {
+            output.write("<!DOCTYPE html>\n<html lang=\"en\">\n<head>\n<meta charset=\"utf-8\">\n<title>" + title + "</title>\n");
+            output.write("<style>body { margin: 0; padding: 10px; font-family: Verdana, sans-serif; } svg g { cursor: pointer; } #details { font-size: 12px; height: 16px; }</style>\n");
+            output.write("</head>\n<body>\n");
+        } else {
+            output.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n");
+        }
+        output.write("<svg id=\"flamegraph\" xmlns=\"http://www.w3.org/2000/svg\" width=\"" + WIDTH + "\" height=\"" + height + "\" viewBox=\"0 0 " + WIDTH + " " + height + "\">\n");
+        output.write("<rect x=\"0\" y=\"0\" width=\"" + WIDTH + "\" height=\"" + height + "\" fill=\"#f8f8f8\"/>\n");
+        output.write("<text x=\"" + (WIDTH / 2) + "\" y=\"24\" font-family=\"Verdana\" font-size=\"17\" text-anchor=\"middle\">" + title + "</text>\n");
+        output.write("<g font-family=\"Verdana\" font-size=\"12\">\n");
+
+        if (totals[StackTrie.ROOT] > 0) {
+            double scale = (double) (WIDTH - 2 * PADDING) / totals[StackTrie.ROOT];
+            long[] starts = new long[size];
+            writeFrame(output, ROOT_FRAME, 0, 0, totals[StackTrie.ROOT], totals[StackTrie.ROOT], scale, height, counter);
+
+            int[] sortedChildren = stackTrie.getChildrenSortedByFrame(collapsedStacks.frameDictionary.getRanksByName());
+            int[] childStarts = stackTrie.getChildStarts();
+            // children start where the previous sibling ends, parents are laid out before their children
+            for (int parent = 0; parent < size; parent++) {
+                if (totals[parent] < minTotal) {
+                    continue;
+                }
+                long start = starts[parent];
+                for (int i = childStarts[parent]; i < childStarts[parent + 1]; i++) {
+                    int node = sortedChildren[i];
+                    starts[node] = start;
+                    start += totals[node];
+                }
+            }
+            for (int i = 0; i < sortedChildren.length; i++) {
+                int node = sortedChildren[i];
+                if (totals[node] >= minTotal) {
+                    String frame = collapsedStacks.frameDictionary.getFrame(stackTrie.getFrame(node));
+                    writeFrame(output, frame, depths[node], starts[node], totals[node], totals[StackTrie.ROOT], scale, height, counter);
+                }
+            }
+        }
+
+        output.write("</g>\n</svg>\n");
+        if (html) {
+            output.write("<div id=\"details\"></div>\n");
+            output.write(SCRIPT);
+            output.write("</body>\n</html>\n");
+        }
+    }
+
+    private static void writeFrame(Writer output, String frame, int depth, long start, long total, long rootTotal, double scale, int height, StackCounter counter) throws IOException {
+        double x = PADDING + start * scale;
+        double width = total * scale;
+        int y = height - PADDING - (depth + 1) * FRAME_HEIGHT;
+        String escapedFrame = escape(frame);
+        int chars = (int) ((width - 3) / CHAR_WIDTH);
+        String label = chars < 3 ? "" : frame.length() <= chars ? frame : frame.substring(0, chars - 2) + "..";
+        output.write(String.format(Locale.US,
+                "<g data-x=\"%d\" data-w=\"%d\" data-d=\"%d\"><title>%s (%d %s, %.2f%%)</title><rect x=\"%.2f\" y=\"%d\" width=\"%.2f\" height=\"%d\" fill=\"%s\" rx=\"2\"/><text x=\"%.2f\" y=\"%.1f\">%s</text></g>\n",
+                start, total, depth, escapedFrame, total, counter.getName(), total * 100.0 / rootTotal,
+                x, y, width, FRAME_HEIGHT - 1, getColor(frame, depth), x + 3, y + 11.5, escape(label)));
+    }
+
+    /**
+     * Java frames are green, kernel frames orange, native frames and the rest red to yellow, like in FlameGraph.
+     */
+    private static String getColor(String frame, int depth) {
+        int hash = frame.hashCode();
+        int v1 = (hash >>> 8) & 0xFF;
+        int v2 = (hash >>> 16) & 0xFF;
+        if (depth <= 1) {
+            return "rgb(200,200,200)";
+        }
+        if (frame.endsWith("_[k]")) {
+            return "rgb(" + (200 + v1 % 55) + "," + (120 + v2 % 60) + ",40)";
+        }
+        if (frame.indexOf('/') > 0) {
+            return "rgb(" + (50 + v1 % 60) + "," + (170 + v2 % 60) + "," + (50 + v1 % 60) + ")";
+        }
+        return "rgb(" + (205 + v1 % 50) + "," + (v2 % 230) + "," + (v1 % 55) + ")";
+    }
+
+    private static String escape(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '<':
+                    escaped.append("&lt;");
+                    break;
+                case '>':
+                    escaped.append("&gt;");
+                    break;
+                case '&':
+                    escaped.append("&amp;");
+                    break;
+                case '"':
+                    escaped.append("&quot;");
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+}
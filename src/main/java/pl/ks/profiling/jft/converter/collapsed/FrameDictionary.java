@@ -0,0 +1,71 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+class FrameDictionary {
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> frames = new ArrayList<>();
+
+    int getId(String frame) {
+        Integer id = ids.get(frame);
+        if (id == null) {
+            id = frames.size();
+            ids.put(frame, id);
+            frames.add(frame);
+        }
+        return id;
+    }
+
+    String getFrame(int id) {
+        return frames.get(id);
+    }
+
+    /**
+     * @return ranks of the frame ids when the frames are sorted by name, indexed by frame id
+     */
+    int[] getRanksByName() {
+        Integer[] idsByName = new Integer[frames.size()];
+        for (int i = 0; i < idsByName.length; i++) {
+            idsByName[i] = i;
+        }
+        Arrays.sort(idsByName, Comparator.comparing(frames::get));
+        int[] ranks = new int[idsByName.length];
+        for (int rank = 0; rank < idsByName.length; rank++) {
+            ranks[idsByName[rank]] = rank;
+        }
+        return ranks;
+    }
+
+    int size() {
+        return frames.size();
+    }
+
+    long estimatedBytes() {
+        long bytes = 0;
+        for (String frame : frames) {
+            // String + char[] headers, the array content and the map entry with the boxed id
+            bytes += 40 + 2L * frame.length() + 48;
+        }
+        return bytes;
+    }
+}
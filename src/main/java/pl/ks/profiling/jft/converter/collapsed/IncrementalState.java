@@ -0,0 +1,147 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aggregated stacks of all the recordings processed so far, saved in the binary format, and a manifest of these
+ * recordings with their size and modification time. Only recordings missing in the manifest are parsed and
+ * merged into the saved state, so an update costs as much as the new recordings. The manifest is a text file
+ * next to the state, a "rules hash" line with the hash of the normalization rules, a "state size mtime" line of the
+ * state file it was saved with and then one "size mtime path" line per recording. Stacks of the state are
+ * normalized, so it is updated only with the same rules, a manifest without the rules line is taken as saved
+ * without normalization.
+ */
+class IncrementalState {
+    private static final String RULES_HASH = "rules";
+    private static final String STATE = "state";
+
+    private final Path stateFile;
+    private final Path manifestFile;
+    private final long rulesHash;
+    private final Map<String, String> processedFiles = new LinkedHashMap<>();
+    private CollapsedStacks collapsedStacks = new CollapsedStacks();
+
+    private IncrementalState(Path stateFile, long rulesHash) {
+        this.stateFile = stateFile;
+        this.rulesHash = rulesHash;
+        this.manifestFile = stateFile.resolveSibling(stateFile.getFileName() + ".manifest");
+    }
+
+    /**
+     * @param stackNormalizer rules new recordings are normalized with, they must be the ones of the saved state
+     */
+    static IncrementalState load(Path stateFile, StackNormalizer stackNormalizer) throws IOException {
+        IncrementalState state = new IncrementalState(stateFile, stackNormalizer.getRulesHash());
+        if (Files.exists(stateFile) != Files.exists(state.manifestFile)) {
+            throw new IllegalArgumentException("Found only one of " + stateFile + " and " + state.manifestFile + ", remove it or use a new state file");
+        }
+        if (Files.exists(stateFile)) {
+            long savedRulesHash = 0;
+            String savedState = null;
+            for (String line : Files.readAllLines(state.manifestFile, StandardCharsets.UTF_8)) {
+                String[] fields = line.split(" ", 3);
+                if (fields.length == 2 && fields[0].equals(RULES_HASH)) {
+                    savedRulesHash = Long.parseUnsignedLong(fields[1], 16);
+                } else if (fields.length == 3 && fields[0].equals(STATE)) {
+                    savedState = fields[1] + " " + fields[2];
+                } else if (fields.length == 3) {
+                    state.processedFiles.put(fields[2], fields[0] + " " + fields[1]);
+                }
+            }
+            if (savedRulesHash != state.rulesHash) {
+                throw new IllegalArgumentException("State " + stateFile + " was saved with other stack normalization rules, use the same -norm option or a new state file");
+            }
+            if (savedState != null && !savedState.equals(getFingerprint(stateFile))) {
+                throw new IllegalArgumentException("State " + stateFile + " does not match its manifest, the last save was interrupted, use a new state file");
+            }
+            state.collapsedStacks = BinaryStacksFormat.read(stateFile);
+            System.out.println("Loaded state of " + state.processedFiles.size() + " recordings from " + stateFile);
+        }
+        return state;
+    }
+
+    CollapsedStacks getCollapsedStacks() {
+        return collapsedStacks;
+    }
+
+    /**
+     * Recordings not processed yet. Processed recordings which have changed since are reported and skipped,
+     * their old events are already in the state and can not be taken out.
+     */
+    List<Path> getNewFiles(List<Path> files) throws IOException {
+        List<Path> newFiles = new ArrayList<>();
+        for (Path file : files) {
+            String processed = processedFiles.get(getKey(file));
+            if (processed == null) {
+                newFiles.add(file);
+            } else if (!processed.equals(getFingerprint(file))) {
+                System.out.println("Skipping " + file + ", it has changed since it was processed");
+            }
+        }
+        return newFiles;
+    }
+
+    /**
+     * @param fileStacks stacks of the recording alone, parsed without errors
+     */
+    void add(Path file, CollapsedStacks fileStacks) throws IOException {
+        collapsedStacks.merge(fileStacks);
+        processedFiles.put(getKey(file), getFingerprint(file));
+    }
+
+    /**
+     * Saves the state and then the manifest, both through temporary files moved in place. The manifest is replaced
+     * atomically and names the state file it belongs to, so a save interrupted between the two moves is detected
+     * by {@link #load} instead of parsing the recordings of the new state again.
+     */
+    void save() throws IOException {
+        Path tmpStateFile = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+        try (OutputStream output = Files.newOutputStream(tmpStateFile)) {
+            BinaryStacksFormat.write(collapsedStacks, output);
+        }
+        Path tmpManifestFile = manifestFile.resolveSibling(manifestFile.getFileName() + ".tmp");
+        try (Writer output = Files.newBufferedWriter(tmpManifestFile, StandardCharsets.UTF_8)) {
+            output.write(RULES_HASH + " " + Long.toHexString(rulesHash) + "\n");
+            output.write(STATE + " " + getFingerprint(tmpStateFile) + "\n");
+            for (Map.Entry<String, String> processedFile : processedFiles.entrySet()) {
+                output.write(processedFile.getValue() + " " + processedFile.getKey() + "\n");
+            }
+        }
+        Files.move(tmpStateFile, stateFile, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(tmpManifestFile, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.println("Saved state of " + processedFiles.size() + " recordings to " + stateFile);
+    }
+
+    private static String getKey(Path file) {
+        return file.toAbsolutePath().normalize().toString();
+    }
+
+    private static String getFingerprint(Path file) throws IOException {
+        return Files.size(file) + " " + Files.getLastModifiedTime(file).toMillis();
+    }
+}
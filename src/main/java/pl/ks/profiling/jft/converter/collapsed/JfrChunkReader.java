@@ -0,0 +1,139 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Splits a JFR file into chunks. Every chunk is a complete recording with its own metadata and constant
+ * pools, so it can be loaded by {@link org.openjdk.jmc.flightrecorder.internal.FlightRecordingLoader} on its
+ * own. The chunk header starts with the magic bytes, the major and minor version and the size of the whole
+ * chunk in bytes.
+ */
+class JfrChunkReader implements Closeable {
+    private static final byte[] MAGIC = {'F', 'L', 'R', 0};
+    private static final int HEADER_SIZE = 16;
+
+    private final InputStream input;
+
+    JfrChunkReader(InputStream input) {
+        this.input = input;
+    }
+
+    /**
+     * @return next chunk or null if there are no more chunks
+     */
+    byte[] nextChunk() throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        int read = readFully(header);
+        if (read == 0) {
+            return null;
+        }
+        long chunkSize = getChunkSize(header, read);
+        if (chunkSize < HEADER_SIZE) {
+            // size of the last chunk is not written if the recording was not finished
+            return readRemaining(header);
+        }
+
+        byte[] chunk = Arrays.copyOf(header, (int) chunkSize);
+        if (readFully(chunk, HEADER_SIZE) < chunk.length - HEADER_SIZE) {
+            throw new EOFException("Truncated JFR chunk");
+        }
+        return chunk;
+    }
+
+    /**
+     * Maps the next chunk of a not compressed file, so it is read by the operating system straight from the page
+     * cache instead of being copied through stream buffers.
+     *
+     * @return the mapped chunk or null if there are no more chunks
+     */
+    static MappedByteBuffer mapChunk(FileChannel channel, long position) throws IOException {
+        long remaining = channel.size() - position;
+        if (remaining <= 0) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        int read;
+        do {
+            read = channel.read(header, position + header.position());
+        } while (read > 0 && header.hasRemaining());
+        long chunkSize = getChunkSize(header.array(), header.position());
+        if (chunkSize < HEADER_SIZE) {
+            chunkSize = remaining;
+        } else if (chunkSize > remaining) {
+            throw new EOFException("Truncated JFR chunk");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, chunkSize);
+    }
+
+    /**
+     * @return size of the chunk from its header, less than the header size if the recording was not finished
+     */
+    private static long getChunkSize(byte[] header, int read) throws IOException {
+        if (read < HEADER_SIZE || !Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC)) {
+            throw new IOException("Not a JFR chunk");
+        }
+        long chunkSize = 0;
+        for (int i = 8; i < HEADER_SIZE; i++) {
+            chunkSize = (chunkSize << 8) | (header[i] & 0xFF);
+        }
+        if (chunkSize > Integer.MAX_VALUE - 8) {
+            throw new IOException("Chunk too big: " + chunkSize);
+        }
+        return chunkSize;
+    }
+
+    private byte[] readRemaining(byte[] header) throws IOException {
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        chunk.write(header);
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            chunk.write(buffer, 0, read);
+        }
+        return chunk.toByteArray();
+    }
+
+    private int readFully(byte[] buffer) throws IOException {
+        return readFully(buffer, 0);
+    }
+
+    private int readFully(byte[] buffer, int offset) throws IOException {
+        int position = offset;
+        while (position < buffer.length) {
+            int read = input.read(buffer, position, buffer.length - position);
+            if (read == -1) {
+                break;
+            }
+            position += read;
+        }
+        return position - offset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+}
@@ -16,7 +16,6 @@
 package pl.ks.profiling.jft.converter.collapsed;
 
 import org.openjdk.jmc.common.IDescribable;
-import org.openjdk.jmc.common.IMCFrame;
 import org.openjdk.jmc.common.IMCMethod;
 import org.openjdk.jmc.common.IMCStackTrace;
 import org.openjdk.jmc.common.IMCThread;
@@ -28,7 +27,6 @@ import org.openjdk.jmc.common.unit.IQuantity;
 import org.openjdk.jmc.common.unit.StructContentType;
 import org.openjdk.jmc.flightrecorder.internal.EventArray;
 
-import java.util.List;
 import java.util.Map;
 
 class JfrParser {
@@ -64,44 +62,44 @@ class JfrParser {
         return false;
     }
 
-    static String fetchFlatStackTrace(IItem event, IMemberAccessor<IMCStackTrace, IItem> stackTraceAccessor, IMemberAccessor<IMCThread, IItem> threadAccessor) {
+    static String fetchFlatStackTrace(IItem event, IMemberAccessor<IMCStackTrace, IItem> stackTraceAccessor, IMemberAccessor<IMCThread, IItem> threadAccessor, SymbolCache symbolCache) {
         String threadName = threadAccessor.getMember(event).getThreadName();
-        List<? extends IMCFrame> frames = stackTraceAccessor.getMember(event).getFrames();
-
-        StringBuilder builder = new StringBuilder();
-        builder.append(threadName).append(";");
-        for (int i = frames.size() - 1; i >= 0; i--) {
-            IMCFrame frame = frames.get(i);
-            IMCMethod method = frame.getMethod();
+        return threadName + ";" + symbolCache.getFlatStackTrace(stackTraceAccessor.getMember(event));
+    }
 
-            if (i != frames.size() - 1) {
-                builder.append(";");
-            }
+    static int fetchStackNode(IItem event, IMemberAccessor<IMCStackTrace, IItem> stackTraceAccessor, IMemberAccessor<IMCThread, IItem> threadAccessor, SymbolCache symbolCache, StackTrie stackTrie) {
+        int node = stackTrie.getChild(StackTrie.ROOT, symbolCache.getThreadFrameId(threadAccessor.getMember(event)));
+        for (int frameId : symbolCache.getFrameIds(stackTraceAccessor.getMember(event))) {
+            node = stackTrie.getChild(node, frameId);
+        }
+        return node;
+    }
 
-            try {
-                String packageName = method.getType().getPackage().getName() == null ? "" : method.getType().getPackage().getName().replace(".", "/");
-                if (packageName.length() > 0) {
-                    builder.append(packageName);
-                    builder.append("/");
-                }
-            } catch (RuntimeException e) {
-                e.printStackTrace();
-                throw e;
-            }
-            if (!method.getFormalDescriptor().equals("()L;")) {
-                String className = method.getType().getTypeName().replace(".", "/");
-                if (className.length() > 0) {
-                    builder.append(className);
-                    builder.append(".");
-                }
+    static String createFrame(IMCMethod method) {
+        StringBuilder builder = new StringBuilder();
+        try {
+            String packageName = method.getType().getPackage().getName() == null ? "" : method.getType().getPackage().getName().replace(".", "/");
+            if (packageName.length() > 0) {
+                builder.append(packageName);
+                builder.append("/");
             }
-            builder.append(method.getMethodName());
-            if (method.getFormalDescriptor().equals("(Lk;)L;")) {
-                builder.append("_[k]");
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            throw e;
+        }
+        String formalDescriptor = method.getFormalDescriptor();
+        if (!formalDescriptor.equals("()L;")) {
+            String className = method.getType().getTypeName().replace(".", "/");
+            if (className.length() > 0) {
+                builder.append(className);
+                builder.append(".");
             }
         }
-        String s = builder.toString();
-        return s;
+        builder.append(method.getMethodName());
+        if (formalDescriptor.equals("(Lk;)L;")) {
+            builder.append("_[k]");
+        }
+        return builder.toString();
     }
 
     static IMemberAccessor<String, IItem> findStateAccessor(EventArray eventArray) {
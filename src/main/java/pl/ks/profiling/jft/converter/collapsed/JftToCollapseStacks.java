@@ -27,41 +27,58 @@ import org.openjdk.jmc.flightrecorder.internal.EventArray;
 import org.openjdk.jmc.flightrecorder.internal.EventArrays;
 import org.openjdk.jmc.flightrecorder.internal.FlightRecordingLoader;
 
-import java.io.FileOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import static pl.ks.profiling.jft.converter.collapsed.JfrParser.fetchFlatStackTrace;
+import static pl.ks.profiling.jft.converter.collapsed.JfrParser.fetchStackNode;
 import static pl.ks.profiling.jft.converter.collapsed.JfrParser.isAsyncAllocNewTLABEvent;
 import static pl.ks.profiling.jft.converter.collapsed.JfrParser.isAsyncAllocOutsideTLABEvent;
 import static pl.ks.profiling.jft.converter.collapsed.JfrParser.isAsyncWallEvent;
 import static pl.ks.profiling.jft.converter.collapsed.JfrParser.isLockEvent;
 
 public class JftToCollapseStacks {
-    private static final Map<String, LongHolder> WALL_MAP = new HashMap<>();
-    private static final Map<String, LongHolder> CPU_MAP = new HashMap<>();
-    private static final Map<String, LongHolder> ALLOC_COUNT_MAP = new HashMap<>();
-    private static final Map<String, LongHolder> ALLOC_SIZE_MAP = new HashMap<>();
-    private static final Map<String, LongHolder> MONITOR_MAP = new HashMap<>();
     private static final SimpleDateFormat ACCESS_LOG_FORMAT = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z", Locale.US);
-    private static final SimpleDateFormat OUTPUT_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS", Locale.US);
+    private static final long WATCH_QUIET_PERIOD_MS = 5000;
+    private static final ProcessingStats STATS = new ProcessingStats();
+    private static EventSelection eventSelection = EventSelection.ALL;
+    private static double flameGraphMinWidth = 0.01;
+    private static ThreadGroups threadGroups = null;
+    private static StackNormalizer stackNormalizer = StackNormalizer.NONE;
 
     public static void main(String[] args) throws Exception {
         if (args.length < 2) {
@@ -70,14 +87,87 @@ public class JftToCollapseStacks {
         }
 
         Arguments arguments = ArgumentsParser.parse(args);
-        StartEndDate startEndDate = calculateDates(arguments, getPaths(arguments));
+        flameGraphMinWidth = arguments.flameGraphMinWidth;
+        if (arguments.normalizationRules != null) {
+            stackNormalizer = StackNormalizer.load(arguments.normalizationRules);
+        }
+        if (!arguments.threadGroups.isEmpty()) {
+            threadGroups = ThreadGroups.parse(arguments.threadGroups);
+        }
+        if (arguments.stats && (arguments.serverPort > 0 || arguments.watch)) {
+            throw new IllegalArgumentException("--stats cannot be used with -server or -watch, they run until stopped");
+        }
+        try {
+            run(arguments);
+        } finally {
+            if (arguments.stats) {
+                Path statsFile = Paths.get("").toAbsolutePath().resolve("stats.json");
+                STATS.writeJson(statsFile);
+                System.out.println("Stats saved to: " + statsFile);
+            }
+        }
+    }
+
+    private static void run(Arguments arguments) throws Exception {
+        if (arguments.parserType == ParserType.BINARY) {
+            System.out.println("Input file: " + arguments.path);
+            writeOutput(BinaryStacksFormat.read(Paths.get(arguments.path)), arguments.outputFormat == OutputFormat.BINARY ? OutputFormat.COLLAPSED : arguments.outputFormat, OutputCompression.of(arguments));
+            return;
+        }
+        if (arguments.mergeDir != null) {
+            CollapsedFilesMerger.merge(Paths.get(arguments.mergeDir), Paths.get("").toAbsolutePath(), arguments.threads, getMergeMaxNodes(arguments), OutputCompression.of(arguments));
+            return;
+        }
+        if (arguments.buildIndex) {
+            buildIndexes(getPaths(arguments).collect(Collectors.toList()), arguments.indexBucketWidth, arguments.streaming, arguments.threads);
+            return;
+        }
+
+        if (arguments.serverPort > 0) {
+            StacksServer server = new StacksServer(
+                    () -> getPaths(arguments).collect(Collectors.toList()),
+                    file -> loadRecordingIndex(file, arguments.indexBucketWidth, arguments.streaming),
+                    arguments.cacheSizeMb * 1024 * 1024
+            );
+            server.start(arguments.serverPort, arguments.threads);
+            return;
+        }
+        if (arguments.incrementalState != null) {
+            IncrementalState state = IncrementalState.load(Paths.get(arguments.incrementalState), stackNormalizer);
+            boolean pending = updateIncrementalState(state, arguments);
+            if (arguments.watch) {
+                watchDirectory(state, arguments, pending);
+            }
+            return;
+        }
+        // indexes and saved states above always keep all the event types
+        if (arguments.events != null) {
+            eventSelection = EventSelection.parse(arguments.events);
+        }
+        if (arguments.accessLogFile != null) {
+            writeCollapsedPerRequest(getPaths(arguments).collect(Collectors.toList()), arguments.accessLogFile, arguments.accessLogMinDurationMs, arguments.streaming, OutputCompression.of(arguments));
+            return;
+        }
+
+        StartEndDate startEndDate = calculateDates(arguments);
         String threadLowerCase = arguments.thread == null ? null : arguments.thread.trim().toLowerCase();
 
         if (arguments.timestampFeature == TimestampFeature.DISABLED) {
-            getPaths(arguments).forEach(file1 -> parseFile(file1, startEndDate, threadLowerCase));
-            writeToFile();
+            int maxNodes = getMaxNodes(arguments);
+            Path spillDir = arguments.spillMemoryMb > 0 ? SpilledStacks.createDir() : null;
+            long bucketWidth = arguments.timeSeriesBucketWidth;
+            Supplier<CollapsedStacks> collapsedStacksSupplier = startEndDate == null ?
+                    () -> new CollapsedStacks(arguments.warmUp, arguments.coolDown, bucketWidth, maxNodes, spillDir) :
+                    () -> new CollapsedStacks(0, 0, bucketWidth, maxNodes, spillDir);
+            long parseStart = System.nanoTime();
+            CollapsedStacks collapsedStacks = parseFiles(getPaths(arguments).collect(Collectors.toList()), startEndDate, threadLowerCase, arguments.streaming, arguments.pipeline, arguments.threads, collapsedStacksSupplier);
+            STATS.recordPhase("parse", System.nanoTime() - parseStart);
+            STATS.recordAggregate(collapsedStacks);
+            long writeStart = System.nanoTime();
+            writeOutput(collapsedStacks, arguments.outputFormat, OutputCompression.of(arguments));
+            STATS.recordPhase("write", System.nanoTime() - writeStart);
         } else {
-            getPaths(arguments).forEach(JftToCollapseStacks::writeCollapsedWithTimestamp);
+            writeCollapsedWithTimestamp(getPaths(arguments).collect(Collectors.toList()), arguments.streaming, OutputCompression.of(arguments));
         }
     }
 
@@ -85,98 +175,564 @@ public class JftToCollapseStacks {
         if (arguments.parserType == ParserType.DIRECTORY) {
             return Files.walk(Paths.get(arguments.path))
                     .filter(Files::isRegularFile)
-                    .filter(file -> file.getFileName().toString().toLowerCase().endsWith(".jfr") || file.getFileName().toString().toLowerCase().endsWith(".jfr.gz"));
+                    .filter(file -> file.getFileName().toString().toLowerCase().endsWith(".jfr") || isCompressed(file));
         }
         return Stream.of(Paths.get(arguments.path));
     }
 
-    private static StartEndDate calculateDates(Arguments arguments, Stream<Path> paths) throws ParseException, CouldNotLoadRecordingException, IOException {
+    /**
+     * Stack trie node limit of one aggregate for the approximate or spilling mode memory budget. With many threads
+     * every thread has its own aggregate and there is one more to merge them into.
+     */
+    private static int getMaxNodes(Arguments arguments) {
+        if (arguments.timeSeriesBucketWidth > 0 && (arguments.approximateMemoryMb > 0 || arguments.spillMemoryMb > 0)) {
+            throw new IllegalArgumentException("-tsb cannot be used with -a or -spill");
+        }
+        if (arguments.approximateMemoryMb > 0 && arguments.spillMemoryMb > 0) {
+            throw new IllegalArgumentException("-a and -spill can't be used together");
+        }
+        long memoryMb = Math.max(arguments.approximateMemoryMb, arguments.spillMemoryMb);
+        if (memoryMb <= 0) {
+            return 0;
+        }
+        int aggregates = arguments.threads > 1 ? arguments.threads + 1 : 1;
+        return (int) Math.min(Integer.MAX_VALUE / 2, memoryMb * 1024 * 1024 / CollapsedStacks.BYTES_PER_NODE / aggregates);
+    }
+
+    /**
+     * Stack trie node limit of every file read in parallel by the merge, from -spill or half of the heap.
+     */
+    private static int getMergeMaxNodes(Arguments arguments) {
+        long memoryMb = arguments.spillMemoryMb > 0 ? arguments.spillMemoryMb : Runtime.getRuntime().maxMemory() / 2 / 1024 / 1024;
+        return (int) Math.max(1024, Math.min(Integer.MAX_VALUE / 2, memoryMb * 1024 * 1024 / CollapsedStacks.BYTES_PER_NODE / Math.max(1, arguments.threads)));
+    }
+
+    private static StartEndDate calculateDates(Arguments arguments) throws ParseException {
         if (arguments.commonLogDateStr != null) {
             return calculateDatesFromAccessLog(arguments);
-        } else if (arguments.coolDown != 0 || arguments.warmUp != 0) {
-            return calculateDatesWithCoolDownAndWarmUp(arguments, paths);
         }
         return null;
     }
 
-    private static StartEndDate calculateDatesWithCoolDownAndWarmUp(Arguments arguments, Stream<Path> paths) throws CouldNotLoadRecordingException, IOException {
+    static StartEndDate calculateDatesFromAccessLog(Arguments arguments) throws ParseException {
         StartEndDate startEndDate = new StartEndDate();
-        for (Path path : paths.collect(Collectors.toList())) {
-            EventArrays flightRecording = getFlightRecording(path);
-            for (EventArray eventArray : flightRecording.getArrays()) {
-                if (!isAsyncWallEvent(eventArray) && !isLockEvent(eventArray) && !isAsyncAllocNewTLABEvent(eventArray) && !isAsyncAllocOutsideTLABEvent(eventArray)) {
-                    continue;
+        startEndDate.endDate = getCommonLogDate(arguments.commonLogDateStr).plus(1, ChronoUnit.SECONDS);
+        Long timeMs = Long.parseLong(arguments.durationTimeMsStr);
+        startEndDate.startDate = startEndDate.endDate.minus(1, ChronoUnit.SECONDS).minus(timeMs, ChronoUnit.MILLIS);
+        return startEndDate;
+    }
+
+    private static CollapsedStacks parseFiles(List<Path> files, StartEndDate startEndDate, String thread, boolean streaming, boolean pipeline, int threads, Supplier<CollapsedStacks> collapsedStacksSupplier) throws InterruptedException, ExecutionException, IOException {
+        if (threads > 1 && files.size() == 1 && !RecordingIndex.isUpToDate(files.get(0), stackNormalizer)) {
+            return parseFileChunks(files.get(0), startEndDate, thread, threads, collapsedStacksSupplier);
+        }
+        if (threads <= 1 || files.size() <= 1) {
+            CollapsedStacks collapsedStacks = collapsedStacksSupplier.get();
+            if (pipeline) {
+                parseFilesPipelined(files, startEndDate, thread, collapsedStacks);
+            } else {
+                files.forEach(file -> parseFile(file, startEndDate, thread, streaming, collapsedStacks));
+            }
+            finishTrimming(Collections.singletonList(collapsedStacks));
+            return collapsedStacks;
+        }
+
+        System.out.println("Parsing " + files.size() + " files with " + threads + " threads");
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            ParallelResultMerger merger = new ParallelResultMerger(threads);
+            for (Path file : files) {
+                merger.awaitCapacity();
+                merger.add(executor.submit(() -> {
+                    CollapsedStacks fileStacks = collapsedStacksSupplier.get();
+                    parseFile(file, startEndDate, thread, streaming, fileStacks);
+                    return fileStacks;
+                }));
+            }
+            return merger.finish();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Chunks of one recording are independent, so they are decoded and aggregated in parallel. The next chunk is
+     * read only when fewer than {@code threads} chunks are read and not merged yet, so the memory usage does not
+     * depend on the file size. A chunk which can't be decoded is reported and skipped, like in the streaming mode a
+     * read error ends the file and the chunks read before it are kept.
+     */
+    private static CollapsedStacks parseFileChunks(Path file, StartEndDate startEndDate, String thread, int threads, Supplier<CollapsedStacks> collapsedStacksSupplier) throws InterruptedException, ExecutionException, IOException {
+        STATS.recordFile();
+        System.out.println("Input file: " + file.getFileName());
+        System.out.println("Converting JFR to collapsed stack with " + threads + " threads ...");
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ParallelResultMerger merger = new ParallelResultMerger(threads);
+        try (JfrChunkReader chunkReader = new JfrChunkReader(getInputStream(file))) {
+            while (true) {
+                merger.awaitCapacity();
+                byte[] chunk;
+                try {
+                    chunk = readChunk(chunkReader);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    break;
                 }
-                IMemberAccessor<IQuantity, IItem> startTimeAccessor = JfrAttributes.START_TIME.getAccessor(eventArray.getType());
-                for (IItem event : eventArray.getEvents()) {
-                    long startTimestamp = startTimeAccessor.getMember(event).longValue();
-                    Instant eventDate = Instant.ofEpochMilli(startTimestamp / 1000000);
-                    if (startEndDate.endDate == null || startEndDate.endDate.isBefore(eventDate)) {
-                        startEndDate.endDate = eventDate;
+                if (chunk == null) {
+                    break;
+                }
+                merger.add(executor.submit(() -> {
+                    CollapsedStacks chunkStacks = collapsedStacksSupplier.get();
+                    try {
+                        EventArrays flightRecording = loadChunk(chunk);
+                        processFlightRecording(flightRecording, startEndDate, thread, chunkStacks, new SymbolCache(chunkStacks.frameDictionary, stackNormalizer));
+                    } catch (Exception e) {
+                        e.printStackTrace();
                     }
-                    if (startEndDate.startDate == null || startEndDate.startDate.isAfter(eventDate)) {
-                        startEndDate.startDate = eventDate;
+                    return chunkStacks;
+                }));
+            }
+            return merger.finish();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Saves next to every recording an index of its stacks aggregated in time buckets, later runs with -al/-w/-c/-t
+     * read the index instead of decoding the recording again.
+     */
+    private static void buildIndexes(List<Path> files, long bucketWidth, boolean streaming, int threads) throws InterruptedException, ExecutionException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, files.size())));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Path file : files) {
+                futures.add(executor.submit(() -> {
+                    CollapsedStacks collapsedStacks = new CollapsedStacks(0, 0, bucketWidth);
+                    parseRecording(file, null, null, streaming, collapsedStacks);
+                    if (collapsedStacks.timeBuckets.isEmpty()) {
+                        System.out.println("No events found in " + file.getFileName() + ", index not saved");
+                        return null;
                     }
-                }
+                    Path indexFile = RecordingIndex.of(collapsedStacks, stackNormalizer).save(file);
+                    System.out.println("Index saved: " + indexFile + ", size: " + (Files.size(indexFile) / 1024) + " kB");
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
             }
+        } finally {
+            executor.shutdownNow();
         }
+        System.out.println("Done");
+    }
 
-        startEndDate.startDate = startEndDate.startDate.plus(arguments.warmUp, ChronoUnit.SECONDS);
-        startEndDate.endDate = startEndDate.endDate.minus(arguments.coolDown, ChronoUnit.SECONDS);
+    private static RecordingIndex loadRecordingIndex(Path file, long bucketWidth, boolean streaming) throws IOException {
+        if (RecordingIndex.isUpToDate(file, stackNormalizer)) {
+            System.out.println("Input file: " + file.getFileName() + ", reading index " + RecordingIndex.getIndexFile(file).getFileName());
+            return RecordingIndex.read(RecordingIndex.getIndexFile(file));
+        }
+        CollapsedStacks collapsedStacks = new CollapsedStacks(0, 0, bucketWidth);
+        parseRecording(file, null, null, streaming, collapsedStacks);
+        return RecordingIndex.of(collapsedStacks, stackNormalizer);
+    }
 
-        return startEndDate;
+    /**
+     * Every new recording is parsed into its own aggregate and saved in the state only if it was parsed without
+     * errors, so a recording which is truncated or still being written is parsed again by a later update instead of
+     * being skipped as changed. Recordings modified within the quiet period are left for a later update too.
+     *
+     * @return true if some recordings were left for a later update because they were modified recently
+     */
+    private static boolean updateIncrementalState(IncrementalState state, Arguments arguments) throws IOException, InterruptedException, ExecutionException {
+        List<Path> newFiles = new ArrayList<>();
+        boolean pending = false;
+        long modifiedBefore = System.currentTimeMillis() - WATCH_QUIET_PERIOD_MS;
+        for (Path file : state.getNewFiles(getPaths(arguments).collect(Collectors.toList()))) {
+            if (Files.getLastModifiedTime(file).toMillis() > modifiedBefore) {
+                System.out.println("Skipping " + file + " for now, it was modified less than " + WATCH_QUIET_PERIOD_MS + " ms ago");
+                pending = true;
+            } else {
+                newFiles.add(file);
+            }
+        }
+        if (newFiles.isEmpty()) {
+            System.out.println("No new recordings");
+            return pending;
+        }
+        System.out.println("New recordings: " + newFiles.size());
+
+        int added = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(arguments.threads, newFiles.size())));
+        try {
+            List<Future<CollapsedStacks>> futures = new ArrayList<>();
+            for (Path file : newFiles) {
+                futures.add(executor.submit(() -> {
+                    CollapsedStacks fileStacks = new CollapsedStacks();
+                    return parseFile(file, null, null, arguments.streaming, fileStacks) ? fileStacks : null;
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                CollapsedStacks fileStacks = futures.get(i).get();
+                if (fileStacks == null) {
+                    System.out.println("Could not parse " + newFiles.get(i) + ", it is not saved in the state and will be parsed again by the next update");
+                } else {
+                    state.add(newFiles.get(i), fileStacks);
+                    added++;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        if (added > 0) {
+            state.save();
+            writeOutput(state.getCollapsedStacks(), arguments.outputFormat, OutputCompression.of(arguments));
+        }
+        return pending;
     }
 
-    private static StartEndDate calculateDatesFromAccessLog(Arguments arguments) throws ParseException {
-        StartEndDate startEndDate = new StartEndDate();
-        startEndDate.endDate = getCommonLogDate(arguments.commonLogDateStr).plus(1, ChronoUnit.SECONDS);
-        Long timeMs = Long.parseLong(arguments.durationTimeMsStr);
-        startEndDate.startDate = startEndDate.endDate.minus(1, ChronoUnit.SECONDS).minus(timeMs, ChronoUnit.MILLIS);
-        return startEndDate;
+    /**
+     * Updates the state with recordings added to the directory. Recordings are processed after the directory
+     * is quiet for a while, so files still being written are not read. While some recordings are left for a later
+     * update, the state is updated again after every quiet period, even if no new changes are seen.
+     */
+    private static void watchDirectory(IncrementalState state, Arguments arguments, boolean pending) throws IOException, InterruptedException, ExecutionException {
+        if (arguments.parserType != ParserType.DIRECTORY) {
+            System.out.println("Only a directory (-d) can be watched");
+            return;
+        }
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            try (Stream<Path> dirs = Files.walk(Paths.get(arguments.path))) {
+                for (Path dir : (Iterable<Path>) dirs.filter(Files::isDirectory)::iterator) {
+                    dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                }
+            }
+            System.out.println("Watching " + arguments.path + " for new recordings ...");
+            while (true) {
+                WatchKey key = pending ? watchService.poll(WATCH_QUIET_PERIOD_MS, TimeUnit.MILLISECONDS) : watchService.take();
+                while (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        Path changed = ((Path) key.watchable()).resolve((Path) event.context());
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+                            changed.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                        }
+                    }
+                    key.reset();
+                    key = watchService.poll(WATCH_QUIET_PERIOD_MS, TimeUnit.MILLISECONDS);
+                }
+                pending = updateIncrementalState(state, arguments);
+            }
+        }
     }
 
-    private static void writeToFile() throws IOException {
-        System.out.println("Saving to collapsed stack files...");
+    private static void finishTrimming(List<CollapsedStacks> results) {
+        List<WarmUpCoolDownTrimmer> trimmers = results.stream()
+                .map(collapsedStacks -> collapsedStacks.trimmer)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        if (!trimmers.isEmpty()) {
+            WarmUpCoolDownTrimmer.finish(trimmers);
+        }
+    }
+
+    private static void writeOutput(CollapsedStacks collapsedStacks, OutputFormat outputFormat, OutputCompression compression) throws IOException {
+        System.out.println("Aggregated stacks: " + collapsedStacks.stackTrie.size() + " nodes, " + collapsedStacks.frameDictionary.size() + " frames, "
+                + "estimated size: " + (collapsedStacks.estimatedBytes() / 1024 / 1024) + " MB");
+        if (collapsedStacks.isApproximate()) {
+            writeApproximationReport(collapsedStacks);
+        }
         String saveDir = Paths.get("").toAbsolutePath().toString();
+        if (collapsedStacks.timeBuckets != null) {
+            if (outputFormat != OutputFormat.COLLAPSED || threadGroups != null) {
+                System.out.println("Time series are written as collapsed stack files of all the threads");
+            }
+            writeTimeSeries(collapsedStacks, compression, saveDir);
+        } else if (collapsedStacks.isSpilled()) {
+            if (outputFormat != OutputFormat.COLLAPSED) {
+                System.out.println("Output format " + outputFormat.name().toLowerCase() + " is not supported for spilled stacks, writing collapsed stack files");
+            }
+            if (threadGroups != null) {
+                System.out.println("Thread groups are not supported for spilled stacks, writing all the threads");
+            }
+            writeSpilledToFiles(collapsedStacks, compression, saveDir);
+        } else if (threadGroups != null) {
+            writeThreadGroups(collapsedStacks, outputFormat, compression, saveDir);
+        } else {
+            writeOutput(collapsedStacks, outputFormat, compression, saveDir);
+        }
+    }
+
+    private static void writeOutput(CollapsedStacks collapsedStacks, OutputFormat outputFormat, OutputCompression compression, String saveDir) throws IOException {
+        if (outputFormat == OutputFormat.BINARY) {
+            writeBinaryFile(collapsedStacks, compression, saveDir);
+        } else {
+            writeToFile(collapsedStacks, compression, outputFormat, saveDir);
+        }
+    }
+
+    /**
+     * Writes the stacks of every thread group to its own directory. Thread names are the first frames of the
+     * stacks, so a group is matched against a thread once, not for every event.
+     */
+    private static void writeThreadGroups(CollapsedStacks collapsedStacks, OutputFormat outputFormat, OutputCompression compression, String saveDir) throws IOException {
+        for (int group = 0; group < threadGroups.size(); group++) {
+            int groupIndex = group;
+            CollapsedStacks groupStacks = collapsedStacks.copyThreads(threadName -> threadGroups.isInGroup(threadName, groupIndex));
+            Path groupDir = Paths.get(saveDir, threadGroups.getName(group));
+            Files.createDirectories(groupDir);
+            System.out.println("Thread group " + threadGroups.getName(group) + ": " + groupStacks.stackTrie.size() + " nodes");
+            writeOutput(groupStacks, outputFormat, compression, groupDir.toString());
+        }
+    }
+
+    private static void writeApproximationReport(CollapsedStacks collapsedStacks) throws IOException {
+        StringBuilder report = new StringBuilder();
+        report.append("Approximate aggregation, the stack trie was compacted ").append(collapsedStacks.compactions).append(" times.\n");
+        report.append("Stacks outside of the heaviest ones are folded into the " + StackTrieCompactor.OTHER_FRAME + " frame under their deepest kept frame,\n");
+        report.append("totals are exact. A count of a stack (other than " + StackTrieCompactor.OTHER_FRAME + ") is not higher than the real one and lower by at most\n");
+        report.append("the error below, stacks with a real count up to the error may be missing.\n");
+        for (StackCounter counter : StackCounter.values()) {
+            long sum = collapsedStacks.sum(counter);
+            if (sum == 0) {
+                continue;
+            }
+            long maxError = collapsedStacks.maxErrors[counter.ordinal()];
+            report.append(counter.getName()).append(": total ").append(sum).append(", max error per stack ").append(maxError)
+                    .append(String.format(Locale.US, " (%.4f%% of total)", maxError * 100.0 / sum)).append("\n");
+        }
+        System.out.print(report);
+        Files.write(Paths.get("").toAbsolutePath().resolve("approximation.txt"), report.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeBinaryFile(CollapsedStacks collapsedStacks, OutputCompression compression, String saveDir) throws IOException {
+        System.out.println("Writing to dir: " + saveDir + " with file name: " + BinaryStacksFormat.FILE_NAME);
+        long start = System.nanoTime();
+        try (OutputStream output = compression.create(saveDir, BinaryStacksFormat.FILE_NAME)) {
+            BinaryStacksFormat.write(collapsedStacks, output);
+        }
+        recordOutput(saveDir, BinaryStacksFormat.FILE_NAME, compression, start);
+        System.out.println("Done");
+    }
+
+    private static void writeToFile(CollapsedStacks collapsedStacks, OutputCompression compression, OutputFormat outputFormat, String saveDir) throws IOException {
+        System.out.println(outputFormat == OutputFormat.COLLAPSED ? "Saving to collapsed stack files..." : "Saving to flame graph files...");
         boolean wallDifferentThenCpu = true;
-        if (WALL_MAP.size() == CPU_MAP.size()) {
-            Long wallStackCount = WALL_MAP.values().stream()
-                    .map(LongHolder::getValue)
-                    .reduce(0L, Long::sum);
-            Long cpuStackCount = WALL_MAP.values().stream()
-                    .map(LongHolder::getValue)
-                    .reduce(0L, Long::sum);
-            if (Objects.equals(cpuStackCount, wallStackCount)) {
+        if (eventSelection.isSelected(EventType.CPU) && collapsedStacks.size(StackCounter.WALL) == collapsedStacks.size(StackCounter.CPU)) {
+            if (collapsedStacks.sum(StackCounter.WALL) == collapsedStacks.sum(StackCounter.CPU)) {
                 wallDifferentThenCpu = false;
             }
         }
-        if (wallDifferentThenCpu) {
-            CollapsedStackWriter.saveFile(saveDir, "wall.collapsed", WALL_MAP);
+        if (!eventSelection.isSelected(EventType.WALL)) {
+            System.out.println("Omitting wall file, not selected");
+        } else if (wallDifferentThenCpu) {
+            saveFile(saveDir, "wall.collapsed", collapsedStacks, StackCounter.WALL, compression, outputFormat);
         } else {
             System.out.println("Omitting wall file, has same frames as CPU");
         }
-        CollapsedStackWriter.saveFile(saveDir, "cpu.collapsed", CPU_MAP);
-        if (ALLOC_COUNT_MAP.size() > 0) {
-            CollapsedStackWriter.saveFile(saveDir, "alloc.count.collapsed", ALLOC_COUNT_MAP);
+        if (eventSelection.isSelected(EventType.CPU)) {
+            saveFile(saveDir, "cpu.collapsed", collapsedStacks, StackCounter.CPU, compression, outputFormat);
+        }
+        if (eventSelection.isSelected(EventType.ALLOC) && collapsedStacks.size(StackCounter.ALLOC_COUNT) > 0) {
+            saveFile(saveDir, "alloc.count.collapsed", collapsedStacks, StackCounter.ALLOC_COUNT, compression, outputFormat);
+        }
+        if (eventSelection.isSelected(EventType.ALLOC) && collapsedStacks.size(StackCounter.ALLOC_SIZE) > 0) {
+            saveFile(saveDir, "alloc.size.collapsed", collapsedStacks, StackCounter.ALLOC_SIZE, compression, outputFormat);
+        }
+        if (eventSelection.isSelected(EventType.LOCK) && collapsedStacks.size(StackCounter.LOCK) > 0) {
+            saveFile(saveDir, "lock.collapsed", collapsedStacks, StackCounter.LOCK, compression, outputFormat);
+        }
+        System.out.println("Done");
+    }
+
+    /**
+     * Merges the spilled runs once, writing every counter file at the same time. Whether the wall file is the same
+     * as the CPU one or a file is empty is known only at the end, such files are deleted then.
+     */
+    private static void writeSpilledToFiles(CollapsedStacks collapsedStacks, OutputCompression compression, String saveDir) throws IOException {
+        collapsedStacks.spillAll();
+        System.out.println("Merging " + collapsedStacks.spilledStacks.getRunCount() + " spilled runs to collapsed stack files...");
+        StackCounter[] counters = StackCounter.values();
+        Writer[] outputs = new Writer[counters.length];
+        int[] sizes = new int[counters.length];
+        long[] sums = new long[counters.length];
+        long start = System.nanoTime();
+        try {
+            for (StackCounter counter : counters) {
+                if (eventSelection.isSelected(counter)) {
+                    System.out.println("Writing to dir: " + saveDir + " with file name: " + counter.getName() + ".collapsed");
+                    outputs[counter.ordinal()] = new BufferedWriter(new OutputStreamWriter(compression.create(saveDir, counter.getName() + ".collapsed")), 64 * 1024);
+                }
+            }
+            StringBuilder stack = new StringBuilder();
+            collapsedStacks.spilledStacks.merge((frames, depth, values) -> {
+                stack.setLength(0);
+                for (int level = 0; level < depth; level++) {
+                    if (level > 0) {
+                        stack.append(';');
+                    }
+                    stack.append(frames[level]);
+                }
+                for (StackCounter counter : counters) {
+                    long value = values[counter.ordinal()];
+                    if (values[counter.getPresenceCounter().ordinal()] != 0 && outputs[counter.ordinal()] != null) {
+                        outputs[counter.ordinal()].write(stack + " " + value + "\n");
+                        sizes[counter.ordinal()]++;
+                        sums[counter.ordinal()] += value;
+                    }
+                }
+            });
+        } finally {
+            for (Writer output : outputs) {
+                if (output != null) {
+                    output.close();
+                }
+            }
+            collapsedStacks.spilledStacks.delete();
+        }
+
+        boolean wallSameAsCpu = outputs[StackCounter.CPU.ordinal()] != null
+                && sizes[StackCounter.WALL.ordinal()] == sizes[StackCounter.CPU.ordinal()]
+                && sums[StackCounter.WALL.ordinal()] == sums[StackCounter.CPU.ordinal()];
+        long nanos = (System.nanoTime() - start) / Math.max(1, counters.length);
+        for (StackCounter counter : counters) {
+            if (outputs[counter.ordinal()] == null) {
+                continue;
+            }
+            Path file = Paths.get(saveDir, compression.getFileName(counter.getName() + ".collapsed"));
+            if (counter == StackCounter.WALL && wallSameAsCpu) {
+                System.out.println("Omitting wall file, has same frames as CPU");
+                Files.delete(file);
+            } else if (counter != StackCounter.WALL && counter != StackCounter.CPU && sizes[counter.ordinal()] == 0) {
+                Files.delete(file);
+            } else {
+                STATS.recordOutput(file.getFileName().toString(), Files.size(file), nanos);
+            }
         }
-        if (ALLOC_SIZE_MAP.size() > 0) {
-            CollapsedStackWriter.saveFile(saveDir, "alloc.size.collapsed", ALLOC_SIZE_MAP);
+        System.out.println("Done");
+    }
+
+    /**
+     * Writes "bucket start;stack count" lines of every non-empty time bucket of a stack, in the same format as -ts but
+     * with one line per bucket instead of one per event. Keys are sorted by bucket and node, so all the counters are
+     * written in one pass and the stack of a node is built once for all its counters in a bucket.
+     */
+    private static void writeTimeSeries(CollapsedStacks collapsedStacks, OutputCompression compression, String saveDir) throws IOException {
+        TimeBuckets timeBuckets = collapsedStacks.timeBuckets;
+        StackCounter[] counters = StackCounter.values();
+        TimestampedCollapsedWriter[] outputs = new TimestampedCollapsedWriter[counters.length];
+        long[] lines = new long[counters.length];
+        long start = System.nanoTime();
+        try {
+            for (StackCounter counter : counters) {
+                if (eventSelection.isSelected(counter)) {
+                    outputs[counter.ordinal()] = new TimestampedCollapsedWriter(saveDir, getTimeSeriesFileName(counter), compression);
+                }
+            }
+            int lastNode = -1;
+            String stack = null;
+            for (long key : timeBuckets.getSortedKeys()) {
+                StackCounter counter = TimeBuckets.getCounter(key);
+                TimestampedCollapsedWriter output = outputs[counter.ordinal()];
+                if (output == null) {
+                    continue;
+                }
+                int node = TimeBuckets.getNode(key);
+                if (node != lastNode) {
+                    stack = collapsedStacks.getStack(node);
+                    lastNode = node;
+                }
+                output.write(timeBuckets.getBucketStart(key), stack, timeBuckets.getValue(key));
+                lines[counter.ordinal()]++;
+            }
+        } finally {
+            for (TimestampedCollapsedWriter output : outputs) {
+                if (output != null) {
+                    output.close();
+                }
+            }
         }
-        if (MONITOR_MAP.size() > 0) {
-            CollapsedStackWriter.saveFile(saveDir, "lock.collapsed", MONITOR_MAP);
+
+        long nanos = (System.nanoTime() - start) / Math.max(1, counters.length);
+        for (StackCounter counter : counters) {
+            if (outputs[counter.ordinal()] == null) {
+                continue;
+            }
+            Path file = Paths.get(saveDir, compression.getFileName(getTimeSeriesFileName(counter)));
+            if (counter != StackCounter.WALL && counter != StackCounter.CPU && lines[counter.ordinal()] == 0) {
+                Files.delete(file);
+            } else {
+                STATS.recordOutput(file.getFileName().toString(), Files.size(file), nanos);
+            }
         }
         System.out.println("Done");
     }
 
+    private static String getTimeSeriesFileName(StackCounter counter) {
+        return counter.getName() + ".buckets.collapsed";
+    }
+
+    private static void saveFile(String saveDir, String fileName, CollapsedStacks collapsedStacks, StackCounter counter, OutputCompression compression, OutputFormat outputFormat) throws IOException {
+        long start = System.nanoTime();
+        if (outputFormat == OutputFormat.HTML || outputFormat == OutputFormat.SVG) {
+            String flameGraphFileName = FlameGraphWriter.getFileName(counter, outputFormat);
+            FlameGraphWriter.saveFile(saveDir, flameGraphFileName, collapsedStacks, counter, outputFormat == OutputFormat.HTML, flameGraphMinWidth);
+            recordOutput(saveDir, flameGraphFileName, OutputCompression.NONE, start);
+            return;
+        }
+        CollapsedStackWriter.saveFile(saveDir, fileName, collapsedStacks, counter, compression);
+        recordOutput(saveDir, fileName, compression, start);
+    }
+
+    private static void recordOutput(String saveDir, String fileName, OutputCompression compression, long startNanos) throws IOException {
+        long nanos = System.nanoTime() - startNanos;
+        Path file = Paths.get(saveDir, compression.getFileName(fileName));
+        STATS.recordOutput(Paths.get("").toAbsolutePath().relativize(file).toString(), Files.size(file), nanos);
+    }
+
     private static void printInfo() {
         System.out.println("Options:");
         System.out.println("  -d <arg> - scan the <arg> directory to find .jfr and .jfr.gz files");
         System.out.println("  -f <arg> - parse only the <arg> file");
         System.out.println("  -ts - add timestamps to collapsed stack files");
+        System.out.println("  -tsb <arg> - time series, counts of every stack per <arg> ms bucket written as \"bucket start;stack count\" lines");
+        System.out.println("               of non-empty buckets to *.buckets.collapsed files. Much smaller than -ts, doesn't work with -a/-spill");
         System.out.println("  -al <arg1> <arg2> - filter by access log mode, see example below");
+        System.out.println("  -alf <arg1> <arg2> - access log batch mode, writes collapsed stacks of every request from the <arg1> access log file");
+        System.out.println("                       lasting at least <arg2> ms to the requests dir, in one pass over the recordings");
         System.out.println("  -t - filter by thread (doesn't work with -ts)");
-        System.out.println("  -w - warmup in seconds - how many seconds from the beginning should be omitted");
-        System.out.println("  -c - cooldown in seconds - how many seconds from the end should be omitted");
+        System.out.println("  -tg <arg> - thread group as <name>=<regex>, can be repeated. Stacks of threads with names matching the regex are");
+        System.out.println("              written to the <name> directory, one directory per group, all the groups in one pass");
+        System.out.println("  -s - streaming mode, reads the recordings one JFR chunk at a time, so the memory usage does not depend on the file size");
+        System.out.println("  -pipeline - read and decode the next chunks of the recordings in background threads while the current chunk is");
+        System.out.println("              aggregated, not compressed recordings are memory mapped. Used when the files are parsed with one thread");
+        System.out.println("  -p <arg> - number of threads used to parse files in parallel, default 1. A single file is split by JFR chunks");
+        System.out.println("             output files are gzipped in parallel with the same number of threads");
+        System.out.println("  -z <arg> - gzip compression level of output files, 0-9");
+        System.out.println("  -u - write uncompressed output files");
+        System.out.println("  -o <arg> - output format: collapsed (default), html, svg or binary - all the stacks and counters in one " + BinaryStacksFormat.FILE_NAME + " file");
+        System.out.println("             html and svg are wall/cpu/alloc/lock flame graphs rendered straight from the aggregated stacks, html zooms on click");
+        System.out.println("  -minwidth <arg> - frames narrower than <arg> percent of the flame graph are not rendered, default 0.01");
+        System.out.println("  -b <arg> - convert the <arg> binary file back to collapsed stack files");
+        System.out.println("  -w - warmup in seconds - how many seconds from the beginning should be omitted, from the first event of the types selected with -e");
+        System.out.println("  -c - cooldown in seconds - how many seconds from the end should be omitted, from the last event of the types selected with -e");
+        System.out.println("  -i - build <recording>.idx index files and exit, later -al/-w/-c/-t runs read the index instead of the recording");
+        System.out.println("  -ib <arg> - time bucket width of the index in ms, default 100, it is also the precision of -al/-w/-c filters answered from the index");
+        System.out.println("  -server <arg> - serve collapsed stack queries of the recordings on the local <arg> port, see http://localhost:<arg>/");
+        System.out.println("  -m <arg> - memory in MB for decoded recordings and query results cached by the server, default half of the heap");
+        System.out.println("  -inc <arg> - incremental mode, parses only recordings not saved yet in the <arg> state file and merges them into it");
+        System.out.println("               the state keeps all the events, -al/-w/-c/-t are not applied");
+        System.out.println("  -watch - with -inc and -d, keep watching the directory and process new recordings when they appear");
+        System.out.println("  -e <arg> - comma separated event types to convert: wall, cpu, alloc, lock, default all. Other events are dropped while loading");
+        System.out.println("  -norm <arg> - normalize stacks with the rules from the <arg> file before aggregation, or with the default rules");
+        System.out.println("                for -norm default: mask lambda, proxy, CGLIB and reflection accessor class names, collapse direct recursion");
+        System.out.println("  -a <arg> - approximate aggregation in <arg> MB of memory, only the heaviest stacks are kept, the rest is folded into");
+        System.out.println("             " + StackTrieCompactor.OTHER_FRAME + " frames, error bounds are saved to approximation.txt. Doesn't work with -w/-c");
+        System.out.println("  -spill <arg> - exact aggregation in about <arg> MB of memory, stacks over the limit are spilled to sorted temporary files");
+        System.out.println("                 in java.io.tmpdir and merged when the output is written. Doesn't work with -w/-c, writes only collapsed files");
+        System.out.println("  -merge <arg> - merge .collapsed and .collapsed.gz files found in the <arg> directory into the current directory,");
+        System.out.println("                 files with the same name are summed into one file. Uses -p threads and -spill memory, default half of the heap");
+        System.out.println("  --stats - save processing metrics (load, per event type, output times and sizes) to stats.json, in every mode except -server and -watch");
         System.out.println("Proper usage:");
         System.out.println("  java -jar collapse-jfr-full.jar -d <dir> - will merge all files with .jfr extensions to cpu/wall/lock/alloc collapsed stack files");
         System.out.println("  java -jar collapse-jfr-full.jar -f <file> - will convert one file to cpu/wall/lock/alloc collapsed stack files");
@@ -189,179 +745,433 @@ public class JftToCollapseStacks {
         System.out.println("Example:");
         System.out.println("  access log entry: [17/Sep/2020:13:03:23 +0200] [POST /app/request HTTP/1.1] [302] [- bytes] [23513 ms] [http-nio-8080-exec-250]");
         System.out.println("  java -jar collapse-jfr-full.jar -d . -al \"17/Sep/2020:13:03:23 +0200\" 23513 -t http-nio-8080-exec-250");
+        System.out.println("  java -jar collapse-jfr-full.jar -d . -alf access.log 5000");
+        System.out.println("  java -jar collapse-jfr-full.jar -merge hosts -p 4");
     }
 
-    private static void writeCollapsedWithTimestamp(Path file) {
-        System.out.println("Input file: " + file.getFileName());
-        System.out.println("Converting JFR to collapsed stack ...");
-
+    private static void writeCollapsedWithTimestamp(List<Path> files, boolean streaming, OutputCompression compression) throws IOException {
         String saveDir = Paths.get("").toAbsolutePath().toString();
 
         try (
-                Writer wallOutput = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(saveDir + "/" + "wall.timestamps.collapsed.gz")));
-                Writer cpuOutput = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(saveDir + "/" + "cpu.timestamps.collapsed.gz")));
-                Writer monitorOutput = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(saveDir + "/" + "lock.timestamps.collapsed.gz")));
-                Writer allocCountOutput = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(saveDir + "/" + "alloc.count.timestamps.collapsed.gz")));
-                Writer allocSizeOutput = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(saveDir + "/" + "alloc.size.timestamps.collapsed.gz")));
+                TimestampedCollapsedWriter wallOutput = createTimestampedWriter(saveDir, StackCounter.WALL, compression);
+                TimestampedCollapsedWriter cpuOutput = createTimestampedWriter(saveDir, StackCounter.CPU, compression);
+                TimestampedCollapsedWriter monitorOutput = createTimestampedWriter(saveDir, StackCounter.LOCK, compression);
+                TimestampedCollapsedWriter allocCountOutput = createTimestampedWriter(saveDir, StackCounter.ALLOC_COUNT, compression);
+                TimestampedCollapsedWriter allocSizeOutput = createTimestampedWriter(saveDir, StackCounter.ALLOC_SIZE, compression);
         ) {
-            EventArrays flightRecording = getFlightRecording(file);
-
-            for (EventArray eventArray : flightRecording.getArrays()) {
-                if (isAsyncWallEvent(eventArray)) {
-                    processWallEventWithTimeStamps(wallOutput, cpuOutput, eventArray);
-                } else if (isLockEvent(eventArray)) {
-                    processLockEventWithTimeStamps(monitorOutput, eventArray);
-                } else if (isAsyncAllocNewTLABEvent(eventArray)) {
-                    processAllocEventWithTimeStamps(allocCountOutput, allocSizeOutput, eventArray, false);
-                } else if (isAsyncAllocOutsideTLABEvent(eventArray)) {
-                    processAllocEventWithTimeStamps(allocCountOutput, allocSizeOutput, eventArray, true);
+            for (Path file : files) {
+                STATS.recordFile();
+                System.out.println("Input file: " + file.getFileName());
+                System.out.println("Converting JFR to collapsed stack ...");
+                try {
+                    SymbolCache symbolCache = new SymbolCache(new FrameDictionary(), stackNormalizer);
+                    readFlightRecording(file, streaming, flightRecording -> {
+                        for (EventArray eventArray : flightRecording.getArrays()) {
+                            if (isAsyncWallEvent(eventArray)) {
+                                processWallEventWithTimeStamps(wallOutput, cpuOutput, eventArray, symbolCache);
+                            } else if (isLockEvent(eventArray)) {
+                                processLockEventWithTimeStamps(monitorOutput, eventArray, symbolCache);
+                            } else if (isAsyncAllocNewTLABEvent(eventArray)) {
+                                processAllocEventWithTimeStamps(allocCountOutput, allocSizeOutput, eventArray, false, symbolCache);
+                            } else if (isAsyncAllocOutsideTLABEvent(eventArray)) {
+                                processAllocEventWithTimeStamps(allocCountOutput, allocSizeOutput, eventArray, true, symbolCache);
+                            }
+                        }
+                        symbolCache.clear();
+                    });
+                    symbolCache.printReport();
+                } catch (Exception e) {
+                    e.printStackTrace();
                 }
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
+        System.out.println("Done");
+    }
 
+    /**
+     * @return null when the event type is not selected, such resources are skipped by try-with-resources
+     */
+    private static TimestampedCollapsedWriter createTimestampedWriter(String saveDir, StackCounter counter, OutputCompression compression) throws IOException {
+        if (!eventSelection.isSelected(counter)) {
+            return null;
+        }
+        return new TimestampedCollapsedWriter(saveDir, counter.getName() + ".timestamps.collapsed", compression);
     }
 
-    private static void processAllocEventWithTimeStamps(Writer allocCountOutput, Writer allocSizeOutput, EventArray eventArray, boolean outsideTlab) throws IOException {
+    private static void processAllocEventWithTimeStamps(TimestampedCollapsedWriter allocCountOutput, TimestampedCollapsedWriter allocSizeOutput, EventArray eventArray, boolean outsideTlab, SymbolCache symbolCache) throws IOException {
         IMemberAccessor<IQuantity, IItem> startTimeAccessor = JfrAttributes.START_TIME.getAccessor(eventArray.getType());
         IMemberAccessor<IMCStackTrace, IItem> stackTraceAccessor = JfrAttributes.EVENT_STACKTRACE.getAccessor(eventArray.getType());
         IMemberAccessor<IMCThread, IItem> threadAccessor = JfrAttributes.EVENT_THREAD.getAccessor(eventArray.getType());
         IMemberAccessor<IQuantity, IItem> allocationSizeAccessor = JfrParser.findAllocSizeAccessor(eventArray);
         IMemberAccessor<IMCType, IItem> objectClassAccessor = JfrParser.findObjectClassAccessor(eventArray);
 
+        long start = System.nanoTime();
+        long events = 0;
         for (IItem event : eventArray.getEvents()) {
-            long startTimestamp = startTimeAccessor.getMember(event).longValue();
-            Instant eventDate = Instant.ofEpochMilli(startTimestamp / 1000000);
+            events++;
+            long timestamp = startTimeAccessor.getMember(event).longValue() / 1000000;
             String objectClass = objectClassAccessor.getMember(event).getFullName();
-            String stacktrace = fetchFlatStackTrace(event, stackTraceAccessor, threadAccessor) + ";" + objectClass + (outsideTlab ? "_[i]" : "_[k]");
+            String stacktrace = fetchFlatStackTrace(event, stackTraceAccessor, threadAccessor, symbolCache) + ";" + objectClass + (outsideTlab ? "_[i]" : "_[k]");
             long size = allocationSizeAccessor.getMember(event).longValue();
-            writeStackTrace(allocCountOutput, eventDate, stacktrace);
-            writeStackTrace(allocSizeOutput, eventDate, stacktrace, size);
+            allocCountOutput.write(timestamp, stacktrace);
+            allocSizeOutput.write(timestamp, stacktrace, size);
         }
+        STATS.recordEvents(EventType.ALLOC, events, 0, System.nanoTime() - start);
     }
 
-    private static void processLockEventWithTimeStamps(Writer monitorOutput, EventArray eventArray) throws IOException {
+    private static void processLockEventWithTimeStamps(TimestampedCollapsedWriter monitorOutput, EventArray eventArray, SymbolCache symbolCache) throws IOException {
         IMemberAccessor<IQuantity, IItem> startTimeAccessor = JfrAttributes.START_TIME.getAccessor(eventArray.getType());
         IMemberAccessor<IMCStackTrace, IItem> stackTraceAccessor = JfrAttributes.EVENT_STACKTRACE.getAccessor(eventArray.getType());
         IMemberAccessor<IMCThread, IItem> threadAccessor = JfrAttributes.EVENT_THREAD.getAccessor(eventArray.getType());
         IMemberAccessor<IMCType, IItem> monitorClassAccessor = JfrParser.findMonitorClassAccessor(eventArray);
 
+        long start = System.nanoTime();
+        long events = 0;
         for (IItem event : eventArray.getEvents()) {
-            long startTimestamp = startTimeAccessor.getMember(event).longValue();
-            Instant eventDate = Instant.ofEpochMilli(startTimestamp / 1000000);
+            events++;
+            long timestamp = startTimeAccessor.getMember(event).longValue() / 1000000;
             String monitorClass = monitorClassAccessor.getMember(event).getFullName();
-            String stacktrace = fetchFlatStackTrace(event, stackTraceAccessor, threadAccessor) + ";" + monitorClass + "_[i]";
-            writeStackTrace(monitorOutput, eventDate, stacktrace);
+            String stacktrace = fetchFlatStackTrace(event, stackTraceAccessor, threadAccessor, symbolCache) + ";" + monitorClass + "_[i]";
+            monitorOutput.write(timestamp, stacktrace);
         }
+        STATS.recordEvents(EventType.LOCK, events, 0, System.nanoTime() - start);
     }
 
-    private static void processWallEventWithTimeStamps(Writer wallOutput, Writer cpuOutput, EventArray eventArray) throws IOException {
+    private static void processWallEventWithTimeStamps(TimestampedCollapsedWriter wallOutput, TimestampedCollapsedWriter cpuOutput, EventArray eventArray, SymbolCache symbolCache) throws IOException {
         IMemberAccessor<IQuantity, IItem> startTimeAccessor = JfrAttributes.START_TIME.getAccessor(eventArray.getType());
         IMemberAccessor<IMCStackTrace, IItem> stackTraceAccessor = JfrAttributes.EVENT_STACKTRACE.getAccessor(eventArray.getType());
         IMemberAccessor<IMCThread, IItem> threadAccessor = JfrAttributes.EVENT_THREAD.getAccessor(eventArray.getType());
         IMemberAccessor<String, IItem> stateAccessor = JfrParser.findStateAccessor(eventArray);
+
+        long start = System.nanoTime();
+        long events = 0;
+        long cpuEvents = 0;
         for (IItem event : eventArray.getEvents()) {
-            long startTimestamp = startTimeAccessor.getMember(event).longValue();
-            Instant eventDate = Instant.ofEpochMilli(startTimestamp / 1000000);
-            String stacktrace = fetchFlatStackTrace(event, stackTraceAccessor, threadAccessor);
-            writeStackTrace(wallOutput, eventDate, stacktrace);
-            String state = stateAccessor.getMember(event);
-            if (JfrParser.isConsumingCpu(state)) {
-                writeStackTrace(cpuOutput, eventDate, stacktrace);
+            events++;
+            long timestamp = startTimeAccessor.getMember(event).longValue() / 1000000;
+            boolean consumingCpu = cpuOutput != null && stateAccessor != null && JfrParser.isConsumingCpu(stateAccessor.getMember(event));
+            if (wallOutput == null && !consumingCpu) {
+                continue;
+            }
+            String stacktrace = fetchFlatStackTrace(event, stackTraceAccessor, threadAccessor, symbolCache);
+            if (wallOutput != null) {
+                wallOutput.write(timestamp, stacktrace);
+            }
+            if (consumingCpu) {
+                cpuOutput.write(timestamp, stacktrace);
+                cpuEvents++;
+            }
+        }
+        STATS.recordEvents(EventType.WALL, events, 0, System.nanoTime() - start);
+        STATS.recordEvents(EventType.CPU, cpuEvents, 0, 0);
+    }
+
+    private static void writeCollapsedPerRequest(List<Path> files, String accessLogFile, long minDurationMs, boolean streaming, OutputCompression compression) throws IOException {
+        List<AccessLogBatch.Request> requests = AccessLogBatch.readRequests(Paths.get(accessLogFile), minDurationMs);
+        System.out.println("Requests lasting at least " + minDurationMs + " ms in access log: " + requests.size());
+        AccessLogBatch accessLogBatch = new AccessLogBatch(requests);
+        for (Path file : files) {
+            STATS.recordFile();
+            System.out.println("Input file: " + file.getFileName());
+            System.out.println("Converting JFR to collapsed stacks of requests ...");
+            try {
+                SymbolCache symbolCache = new SymbolCache(accessLogBatch.collapsedStacks.frameDictionary, stackNormalizer);
+                readFlightRecording(file, streaming, flightRecording -> {
+                    processEventsOfRequests(flightRecording, accessLogBatch, symbolCache);
+                    symbolCache.clear();
+                });
+                symbolCache.printReport();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        System.out.println("Aggregated stacks of requests, estimated size: " + (accessLogBatch.estimatedBytes() / 1024 / 1024) + " MB");
+        accessLogBatch.saveFiles(Paths.get("").toAbsolutePath().resolve("requests"), eventSelection, compression);
+        System.out.println("Done");
+    }
+
+    /**
+     * Adds the events of one recording chunk to the requests running in their threads at their timestamps.
+     */
+    static void processEventsOfRequests(EventArrays flightRecording, AccessLogBatch accessLogBatch, SymbolCache symbolCache) {
+        for (EventArray eventArray : flightRecording.getArrays()) {
+            if (isAsyncWallEvent(eventArray)) {
+                processWallEventOfRequests(eventArray, accessLogBatch, symbolCache);
+            } else if (isLockEvent(eventArray)) {
+                processLockEventOfRequests(eventArray, accessLogBatch, symbolCache);
+            } else if (isAsyncAllocNewTLABEvent(eventArray)) {
+                processAllocEventOfRequests(eventArray, false, accessLogBatch, symbolCache);
+            } else if (isAsyncAllocOutsideTLABEvent(eventArray)) {
+                processAllocEventOfRequests(eventArray, true, accessLogBatch, symbolCache);
             }
         }
     }
 
-    private static void parseFile(Path file, StartEndDate startEndDate, String thread) {
+    private static void processAllocEventOfRequests(EventArray eventArray, boolean outsideTlab, AccessLogBatch accessLogBatch, SymbolCache symbolCache) {
+        IMemberAccessor<IQuantity, IItem> startTimeAccessor = JfrAttributes.START_TIME.getAccessor(eventArray.getType());
+        IMemberAccessor<IMCStackTrace, IItem> stackTraceAccessor = JfrAttributes.EVENT_STACKTRACE.getAccessor(eventArray.getType());
+        IMemberAccessor<IMCThread, IItem> threadAccessor = JfrAttributes.EVENT_THREAD.getAccessor(eventArray.getType());
+        IMemberAccessor<IQuantity, IItem> allocationSizeAccessor = JfrParser.findAllocSizeAccessor(eventArray);
+        IMemberAccessor<IMCType, IItem> objectClassAccessor = JfrParser.findObjectClassAccessor(eventArray);
+        StackTrie stackTrie = accessLogBatch.collapsedStacks.stackTrie;
+
+        long start = System.nanoTime();
+        long events = 0;
+        long filtered = 0;
+        for (IItem event : eventArray.getEvents()) {
+            events++;
+            long timestamp = startTimeAccessor.getMember(event).longValue() / 1000000;
+            if (accessLogBatch.findRequests(symbolCache.getThreadFrameId(threadAccessor.getMember(event)), timestamp) == 0) {
+                filtered++;
+                continue;
+            }
+            int node = fetchStackNode(event, stackTraceAccessor, threadAccessor, symbolCache, stackTrie);
+            node = stackTrie.getChild(node, symbolCache.getClassFrameId(objectClassAccessor.getMember(event), outsideTlab ? "_[i]" : "_[k]"));
+            accessLogBatch.add(EventType.ALLOC, node, allocationSizeAccessor.getMember(event).longValue());
+        }
+        STATS.recordEvents(EventType.ALLOC, events, filtered, System.nanoTime() - start);
+    }
+
+    private static void processLockEventOfRequests(EventArray eventArray, AccessLogBatch accessLogBatch, SymbolCache symbolCache) {
+        IMemberAccessor<IQuantity, IItem> startTimeAccessor = JfrAttributes.START_TIME.getAccessor(eventArray.getType());
+        IMemberAccessor<IMCStackTrace, IItem> stackTraceAccessor = JfrAttributes.EVENT_STACKTRACE.getAccessor(eventArray.getType());
+        IMemberAccessor<IMCThread, IItem> threadAccessor = JfrAttributes.EVENT_THREAD.getAccessor(eventArray.getType());
+        IMemberAccessor<IMCType, IItem> monitorClassAccessor = JfrParser.findMonitorClassAccessor(eventArray);
+        StackTrie stackTrie = accessLogBatch.collapsedStacks.stackTrie;
+
+        long start = System.nanoTime();
+        long events = 0;
+        long filtered = 0;
+        for (IItem event : eventArray.getEvents()) {
+            events++;
+            long timestamp = startTimeAccessor.getMember(event).longValue() / 1000000;
+            if (accessLogBatch.findRequests(symbolCache.getThreadFrameId(threadAccessor.getMember(event)), timestamp) == 0) {
+                filtered++;
+                continue;
+            }
+            int node = fetchStackNode(event, stackTraceAccessor, threadAccessor, symbolCache, stackTrie);
+            node = stackTrie.getChild(node, symbolCache.getClassFrameId(monitorClassAccessor.getMember(event), "_[i]"));
+            accessLogBatch.add(EventType.LOCK, node, 1);
+        }
+        STATS.recordEvents(EventType.LOCK, events, filtered, System.nanoTime() - start);
+    }
+
+    private static void processWallEventOfRequests(EventArray eventArray, AccessLogBatch accessLogBatch, SymbolCache symbolCache) {
+        IMemberAccessor<IQuantity, IItem> startTimeAccessor = JfrAttributes.START_TIME.getAccessor(eventArray.getType());
+        IMemberAccessor<IMCStackTrace, IItem> stackTraceAccessor = JfrAttributes.EVENT_STACKTRACE.getAccessor(eventArray.getType());
+        IMemberAccessor<IMCThread, IItem> threadAccessor = JfrAttributes.EVENT_THREAD.getAccessor(eventArray.getType());
+        IMemberAccessor<String, IItem> stateAccessor = JfrParser.findStateAccessor(eventArray);
+        boolean wall = eventSelection.isSelected(EventType.WALL);
+        boolean cpu = eventSelection.isSelected(EventType.CPU);
+
+        long start = System.nanoTime();
+        long events = 0;
+        long filtered = 0;
+        long cpuEvents = 0;
+        for (IItem event : eventArray.getEvents()) {
+            events++;
+            long timestamp = startTimeAccessor.getMember(event).longValue() / 1000000;
+            if (accessLogBatch.findRequests(symbolCache.getThreadFrameId(threadAccessor.getMember(event)), timestamp) == 0) {
+                filtered++;
+                continue;
+            }
+            boolean consumingCpu = cpu && stateAccessor != null && JfrParser.isConsumingCpu(stateAccessor.getMember(event));
+            if (!wall && !consumingCpu) {
+                continue;
+            }
+
+            int node = fetchStackNode(event, stackTraceAccessor, threadAccessor, symbolCache, accessLogBatch.collapsedStacks.stackTrie);
+            if (wall) {
+                accessLogBatch.add(EventType.WALL, node, 1);
+            }
+            if (consumingCpu) {
+                accessLogBatch.add(EventType.CPU, node, 1);
+                cpuEvents++;
+            }
+        }
+        STATS.recordEvents(EventType.WALL, events, filtered, System.nanoTime() - start);
+        STATS.recordEvents(EventType.CPU, cpuEvents, 0, 0);
+    }
+
+    /**
+     * @return false if the recording could not be parsed, events read before the error are already added
+     */
+    static boolean parseFile(Path file, StartEndDate startEndDate, String thread, boolean streaming, CollapsedStacks collapsedStacks) {
+        if (RecordingIndex.isUpToDate(file, stackNormalizer)) {
+            System.out.println("Input file: " + file.getFileName() + ", reading index " + RecordingIndex.getIndexFile(file).getFileName());
+            try {
+                RecordingIndex.read(RecordingIndex.getIndexFile(file)).addTo(collapsedStacks, startEndDate, thread);
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return parseRecording(file, startEndDate, thread, streaming, collapsedStacks);
+    }
+
+    /**
+     * Parses the files one chunk at a time like the streaming mode, with the next chunks read and decoded in
+     * background threads while the current one is aggregated.
+     */
+    static void parseFilesPipelined(List<Path> files, StartEndDate startEndDate, String thread, CollapsedStacks collapsedStacks) throws InterruptedException {
+        SymbolCache symbolCache = new SymbolCache(collapsedStacks.frameDictionary, stackNormalizer);
+        try (RecordingPipeline pipeline = new RecordingPipeline(files, file -> RecordingIndex.isUpToDate(file, stackNormalizer), JftToCollapseStacks::loadChunk, STATS)) {
+            RecordingPipeline.Item item;
+            while ((item = pipeline.next()) != null) {
+                if (item.isFileStart() && item.indexed) {
+                    parseFile(item.file, startEndDate, thread, true, collapsedStacks);
+                } else if (item.isFileStart()) {
+                    STATS.recordFile();
+                    System.out.println("Input file: " + item.file.getFileName());
+                    System.out.println("Converting JFR to collapsed stack ...");
+                } else if (item.error != null) {
+                    item.error.printStackTrace();
+                } else {
+                    processFlightRecording(item.recording, startEndDate, thread, collapsedStacks, symbolCache);
+                    symbolCache.clear();
+                }
+            }
+        }
+        symbolCache.printReport();
+    }
+
+    private static boolean parseRecording(Path file, StartEndDate startEndDate, String thread, boolean streaming, CollapsedStacks collapsedStacks) {
+        STATS.recordFile();
         System.out.println("Input file: " + file.getFileName());
         System.out.println("Converting JFR to collapsed stack ...");
 
         try {
-            EventArrays flightRecording = getFlightRecording(file);
-
-            for (EventArray eventArray : flightRecording.getArrays()) {
-                if (isAsyncWallEvent(eventArray)) {
-                    processWallEvent(startEndDate, thread, eventArray);
-                } else if (isLockEvent(eventArray)) {
-                    processLockEvent(startEndDate, thread, eventArray);
-                } else if (isAsyncAllocNewTLABEvent(eventArray)) {
-                    processAllocEvent(startEndDate, thread, eventArray, false);
-                } else if (isAsyncAllocOutsideTLABEvent(eventArray)) {
-                    processAllocEvent(startEndDate, thread, eventArray, true);
-                }
-            }
+            SymbolCache symbolCache = new SymbolCache(collapsedStacks.frameDictionary, stackNormalizer);
+            readFlightRecording(file, streaming, flightRecording -> {
+                processFlightRecording(flightRecording, startEndDate, thread, collapsedStacks, symbolCache);
+                symbolCache.clear();
+            });
+            symbolCache.printReport();
+            return true;
         } catch (Exception e) {
             e.printStackTrace();
+            return false;
         }
     }
 
-    private static void processAllocEvent(StartEndDate startEndDate, String thread, EventArray eventArray, boolean outsideTlab) {
+    static void processFlightRecording(EventArrays flightRecording, StartEndDate startEndDate, String thread, CollapsedStacks collapsedStacks, SymbolCache symbolCache) {
+        processFlightRecording(flightRecording, startEndDate, thread, eventSelection, collapsedStacks, symbolCache, STATS);
+    }
+
+    static void processFlightRecording(EventArrays flightRecording, StartEndDate startEndDate, String thread, EventSelection selection, CollapsedStacks collapsedStacks, SymbolCache symbolCache, ProcessingStats stats) {
+        for (EventArray eventArray : flightRecording.getArrays()) {
+            if (isAsyncWallEvent(eventArray)) {
+                processWallEvent(startEndDate, thread, selection, eventArray, collapsedStacks, symbolCache, stats);
+            } else if (isLockEvent(eventArray)) {
+                processLockEvent(startEndDate, thread, eventArray, collapsedStacks, symbolCache, stats);
+            } else if (isAsyncAllocNewTLABEvent(eventArray)) {
+                processAllocEvent(startEndDate, thread, eventArray, false, collapsedStacks, symbolCache, stats);
+            } else if (isAsyncAllocOutsideTLABEvent(eventArray)) {
+                processAllocEvent(startEndDate, thread, eventArray, true, collapsedStacks, symbolCache, stats);
+            }
+        }
+    }
+
+    private static void processAllocEvent(StartEndDate startEndDate, String thread, EventArray eventArray, boolean outsideTlab, CollapsedStacks collapsedStacks, SymbolCache symbolCache, ProcessingStats stats) {
         IMemberAccessor<IQuantity, IItem> startTimeAccessor = JfrAttributes.START_TIME.getAccessor(eventArray.getType());
         IMemberAccessor<IMCStackTrace, IItem> stackTraceAccessor = JfrAttributes.EVENT_STACKTRACE.getAccessor(eventArray.getType());
         IMemberAccessor<IMCThread, IItem> threadAccessor = JfrAttributes.EVENT_THREAD.getAccessor(eventArray.getType());
         IMemberAccessor<IQuantity, IItem> allocationSizeAccessor = JfrParser.findAllocSizeAccessor(eventArray);
         IMemberAccessor<IMCType, IItem> objectClassAccessor = JfrParser.findObjectClassAccessor(eventArray);
 
+        long start = System.nanoTime();
+        long events = 0;
+        long filtered = 0;
         for (IItem event : eventArray.getEvents()) {
-            if (shouldSkipByFilter(startEndDate, thread, startTimeAccessor, threadAccessor, event)) {
+            events++;
+            long timestamp = startTimeAccessor.getMember(event).longValue() / 1000000;
+            collapsedStacks.recordTimestamp(timestamp);
+            if (shouldSkipByFilter(startEndDate, thread, timestamp, threadAccessor, event, symbolCache)) {
+                filtered++;
                 continue;
             }
 
-            String objectClass = objectClassAccessor.getMember(event).getFullName();
-            String stacktrace = fetchFlatStackTrace(event, stackTraceAccessor, threadAccessor) + ";" + objectClass + (outsideTlab ? "_[i]" : "_[k]");
+            int node = fetchStackNode(event, stackTraceAccessor, threadAccessor, symbolCache, collapsedStacks.stackTrie);
+            node = collapsedStacks.stackTrie.getChild(node, symbolCache.getClassFrameId(objectClassAccessor.getMember(event), outsideTlab ? "_[i]" : "_[k]"));
             long size = allocationSizeAccessor.getMember(event).longValue();
-            addToAllocMaps(stacktrace, size);
+            collapsedStacks.add(timestamp, EventType.ALLOC, node, size);
         }
+        stats.recordEvents(EventType.ALLOC, events, filtered, System.nanoTime() - start);
     }
 
-    private static void processLockEvent(StartEndDate startEndDate, String thread, EventArray eventArray) {
+    private static void processLockEvent(StartEndDate startEndDate, String thread, EventArray eventArray, CollapsedStacks collapsedStacks, SymbolCache symbolCache, ProcessingStats stats) {
         IMemberAccessor<IQuantity, IItem> startTimeAccessor = JfrAttributes.START_TIME.getAccessor(eventArray.getType());
         IMemberAccessor<IMCStackTrace, IItem> stackTraceAccessor = JfrAttributes.EVENT_STACKTRACE.getAccessor(eventArray.getType());
         IMemberAccessor<IMCThread, IItem> threadAccessor = JfrAttributes.EVENT_THREAD.getAccessor(eventArray.getType());
         IMemberAccessor<IMCType, IItem> monitorClassAccessor = JfrParser.findMonitorClassAccessor(eventArray);
 
+        long start = System.nanoTime();
+        long events = 0;
+        long filtered = 0;
         for (IItem event : eventArray.getEvents()) {
-            if (shouldSkipByFilter(startEndDate, thread, startTimeAccessor, threadAccessor, event)) {
+            events++;
+            long timestamp = startTimeAccessor.getMember(event).longValue() / 1000000;
+            collapsedStacks.recordTimestamp(timestamp);
+            if (shouldSkipByFilter(startEndDate, thread, timestamp, threadAccessor, event, symbolCache)) {
+                filtered++;
                 continue;
             }
 
-            String monitorClass = monitorClassAccessor.getMember(event).getFullName();
-            String stacktrace = fetchFlatStackTrace(event, stackTraceAccessor, threadAccessor) + ";" + monitorClass + "_[i]";
-            addToMonitorMap(stacktrace);
+            int node = fetchStackNode(event, stackTraceAccessor, threadAccessor, symbolCache, collapsedStacks.stackTrie);
+            node = collapsedStacks.stackTrie.getChild(node, symbolCache.getClassFrameId(monitorClassAccessor.getMember(event), "_[i]"));
+            collapsedStacks.add(timestamp, EventType.LOCK, node, 1);
         }
+        stats.recordEvents(EventType.LOCK, events, filtered, System.nanoTime() - start);
     }
 
-    private static void processWallEvent(StartEndDate startEndDate, String thread, EventArray eventArray) {
+    private static void processWallEvent(StartEndDate startEndDate, String thread, EventSelection selection, EventArray eventArray, CollapsedStacks collapsedStacks, SymbolCache symbolCache, ProcessingStats stats) {
         IMemberAccessor<IQuantity, IItem> startTimeAccessor = JfrAttributes.START_TIME.getAccessor(eventArray.getType());
         IMemberAccessor<IMCStackTrace, IItem> stackTraceAccessor = JfrAttributes.EVENT_STACKTRACE.getAccessor(eventArray.getType());
         IMemberAccessor<IMCThread, IItem> threadAccessor = JfrAttributes.EVENT_THREAD.getAccessor(eventArray.getType());
         IMemberAccessor<String, IItem> stateAccessor = JfrParser.findStateAccessor(eventArray);
+        boolean wall = selection.isSelected(EventType.WALL);
+        boolean cpu = selection.isSelected(EventType.CPU);
 
+        long start = System.nanoTime();
+        long events = 0;
+        long filtered = 0;
+        long cpuEvents = 0;
         for (IItem event : eventArray.getEvents()) {
-            if (shouldSkipByFilter(startEndDate, thread, startTimeAccessor, threadAccessor, event)) {
+            events++;
+            long timestamp = startTimeAccessor.getMember(event).longValue() / 1000000;
+            collapsedStacks.recordTimestamp(timestamp);
+            if (shouldSkipByFilter(startEndDate, thread, timestamp, threadAccessor, event, symbolCache)) {
+                filtered++;
+                continue;
+            }
+            boolean consumingCpu = cpu && stateAccessor != null && JfrParser.isConsumingCpu(stateAccessor.getMember(event));
+            if (!wall && !consumingCpu) {
                 continue;
             }
 
-            String stacktrace = fetchFlatStackTrace(event, stackTraceAccessor, threadAccessor);
-            addToWallMap(stacktrace);
-            if (stateAccessor != null) {
-                addToCpuMapIfConsumingCpu(stateAccessor.getMember(event), stacktrace);
+            int node = fetchStackNode(event, stackTraceAccessor, threadAccessor, symbolCache, collapsedStacks.stackTrie);
+            if (wall) {
+                collapsedStacks.add(timestamp, EventType.WALL, node, 1);
+            }
+            if (consumingCpu) {
+                collapsedStacks.add(timestamp, EventType.CPU, node, 1);
+                cpuEvents++;
             }
         }
+        stats.recordEvents(EventType.WALL, events, filtered, System.nanoTime() - start);
+        stats.recordEvents(EventType.CPU, cpuEvents, 0, 0);
     }
 
-    private static boolean shouldSkipByFilter(StartEndDate startEndDate, String thread, IMemberAccessor<IQuantity, IItem> startTimeAccessor, IMemberAccessor<IMCThread, IItem> threadAccessor, IItem event) {
+    private static boolean shouldSkipByFilter(StartEndDate startEndDate, String thread, long timestamp, IMemberAccessor<IMCThread, IItem> threadAccessor, IItem event, SymbolCache symbolCache) {
         if (startEndDate != null) {
-            long startTimestamp = startTimeAccessor.getMember(event).longValue();
-            Instant eventDate = Instant.ofEpochMilli(startTimestamp / 1000000);
+            Instant eventDate = Instant.ofEpochMilli(timestamp);
             if (eventDate.isBefore(startEndDate.startDate) || eventDate.isAfter(startEndDate.endDate)) {
                 return true;
             }
         }
 
         if (thread != null) {
-            String threadName = threadAccessor.getMember(event).getThreadName().toLowerCase();
+            String threadName = symbolCache.getLowerCaseThreadName(threadAccessor.getMember(event));
             if (!thread.equals(threadName)) {
                 return true;
             }
@@ -369,49 +1179,68 @@ public class JftToCollapseStacks {
         return false;
     }
 
-    private static void addToCpuMapIfConsumingCpu(String state, String stacktrace) {
-        if (JfrParser.isConsumingCpu(state)) {
-            addToCpuMap(stacktrace);
-        }
+    private static Instant getCommonLogDate(String commonLogDate) throws ParseException {
+        Date parse = ACCESS_LOG_FORMAT.parse(commonLogDate);
+        return Instant.ofEpochMilli(parse.getTime());
     }
 
-    private static void addToCpuMap(String stacktrace) {
-        CPU_MAP.computeIfAbsent(stacktrace, stack -> new LongHolder()).increment();
+    /**
+     * Passes the whole recording to the consumer at once, or in streaming mode one chunk at a time, so only
+     * one decoded chunk is kept in memory.
+     */
+    private static void readFlightRecording(Path file, boolean streaming, FlightRecordingConsumer consumer) throws IOException, CouldNotLoadRecordingException {
+        if (!streaming) {
+            consumer.accept(getFlightRecording(file));
+            return;
+        }
+        try (JfrChunkReader chunkReader = new JfrChunkReader(getInputStream(file))) {
+            byte[] chunk;
+            while ((chunk = readChunk(chunkReader)) != null) {
+                consumer.accept(loadChunk(chunk));
+            }
+        }
     }
 
-    private static void addToWallMap(String stacktrace) {
-        WALL_MAP.computeIfAbsent(stacktrace, stack -> new LongHolder()).increment();
+    private static byte[] readChunk(JfrChunkReader chunkReader) throws IOException {
+        long start = System.nanoTime();
+        byte[] chunk = chunkReader.nextChunk();
+        STATS.recordRead(System.nanoTime() - start);
+        return chunk;
     }
 
-    private static void addToMonitorMap(String stacktrace) {
-        MONITOR_MAP.computeIfAbsent(stacktrace, stack -> new LongHolder()).increment();
+    private static EventArrays loadChunk(byte[] chunk) throws IOException, CouldNotLoadRecordingException {
+        return loadChunk(new ByteArrayInputStream(chunk));
     }
 
-    private static void addToAllocMaps(String stacktrace, long size) {
-        ALLOC_COUNT_MAP.computeIfAbsent(stacktrace, stack -> new LongHolder()).increment();
-        ALLOC_SIZE_MAP.computeIfAbsent(stacktrace, stack -> new LongHolder()).addValue(size);
+    private static EventArrays loadChunk(InputStream chunk) throws IOException, CouldNotLoadRecordingException {
+        long start = System.nanoTime();
+        EventArrays flightRecording = FlightRecordingLoader.loadStream(chunk, eventSelection.getParserExtensions(), false, false);
+        STATS.recordLoad(System.nanoTime() - start);
+        return flightRecording;
     }
 
-    private static Instant getCommonLogDate(String commonLogDate) throws ParseException {
-        Date parse = ACCESS_LOG_FORMAT.parse(commonLogDate);
-        return Instant.ofEpochMilli(parse.getTime());
+    private static EventArrays getFlightRecording(Path file) throws IOException, CouldNotLoadRecordingException {
+        long start = System.nanoTime();
+        EventArrays flightRecording = FlightRecordingLoader.loadStream(getInputStream(file), eventSelection.getParserExtensions(), false, false);
+        STATS.recordLoad(System.nanoTime() - start);
+        return flightRecording;
     }
 
-    private static EventArrays getFlightRecording(Path file) throws IOException, CouldNotLoadRecordingException {
-        if (file.getFileName().toString().toLowerCase().endsWith(".jfr.gz")) {
-            return FlightRecordingLoader.loadStream(new GZIPInputStream(Files.newInputStream(file)), false, false);
-        }
-        return FlightRecordingLoader.loadStream(Files.newInputStream(file), false, false);
+    /**
+     * @return true if the recording is gzip compressed, {@link #getInputStream} decompresses it
+     */
+    static boolean isCompressed(Path file) {
+        return file.getFileName().toString().toLowerCase().endsWith(".jfr.gz");
     }
 
-    private static void writeStackTrace(Writer output, Instant eventDate, String stacktrace) throws IOException {
-        writeStackTrace(output, eventDate, stacktrace, 1);
+    static InputStream getInputStream(Path file) throws IOException {
+        if (isCompressed(file)) {
+            return new GZIPInputStream(Files.newInputStream(file), 64 * 1024);
+        }
+        return new BufferedInputStream(Files.newInputStream(file), 64 * 1024);
     }
 
-    private static void writeStackTrace(Writer output, Instant eventDate, String stacktrace, long count) throws IOException {
-        output.write(OUTPUT_FORMAT.format(Date.from(eventDate)));
-        output.write(";");
-        output.write(stacktrace);
-        output.write(" " + count + "\n");
+    private interface FlightRecordingConsumer {
+        void accept(EventArrays flightRecording) throws IOException;
     }
 }
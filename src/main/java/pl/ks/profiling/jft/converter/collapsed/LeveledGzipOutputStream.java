@@ -15,18 +15,13 @@
  */
 package pl.ks.profiling.jft.converter.collapsed;
 
-class LongHolder {
-    private long value;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
 
-    void increment() {
-        value++;
-    }
-
-    void addValue(long value) {
-        this.value += value;
-    }
-
-    long getValue() {
-        return value;
+class LeveledGzipOutputStream extends GZIPOutputStream {
+    LeveledGzipOutputStream(OutputStream output, int level, int bufferSize) throws IOException {
+        super(output, bufferSize);
+        def.setLevel(level);
     }
 }
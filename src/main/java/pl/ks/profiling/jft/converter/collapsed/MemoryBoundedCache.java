@@ -0,0 +1,78 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache limited by the estimated size of its values. The least recently used values are evicted when the
+ * total size exceeds the limit, the most recently added value is always kept.
+ */
+class MemoryBoundedCache<K, V> {
+    private final long maxBytes;
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    MemoryBoundedCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    synchronized V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    synchronized void put(K key, V value, long valueBytes) {
+        Entry<V> previous = entries.put(key, new Entry<>(value, valueBytes));
+        if (previous != null) {
+            bytes -= previous.bytes;
+        }
+        bytes += valueBytes;
+
+        Iterator<Map.Entry<K, Entry<V>>> iterator = entries.entrySet().iterator();
+        while (bytes > maxBytes && entries.size() > 1) {
+            Map.Entry<K, Entry<V>> eldest = iterator.next();
+            bytes -= eldest.getValue().bytes;
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    synchronized String getReport() {
+        return "entries: " + entries.size() + ", size: " + (bytes / 1024 / 1024) + " MB of " + (maxBytes / 1024 / 1024) + " MB"
+                + ", hits: " + hits + ", misses: " + misses + ", evictions: " + evictions;
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final long bytes;
+
+        Entry(V value, long bytes) {
+            this.value = value;
+            this.bytes = bytes;
+        }
+    }
+}
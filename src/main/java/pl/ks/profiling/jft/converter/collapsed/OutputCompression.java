@@ -0,0 +1,59 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Creates output files: gzip compressed with the given level, compressed in parallel with more than one
+ * thread, or not compressed at all.
+ */
+class OutputCompression {
+    static final OutputCompression NONE = new OutputCompression(false, 0, 1);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final boolean enabled;
+    private final int level;
+    private final int threads;
+
+    OutputCompression(boolean enabled, int level, int threads) {
+        this.enabled = enabled;
+        this.level = level;
+        this.threads = threads;
+    }
+
+    static OutputCompression of(Arguments arguments) {
+        return new OutputCompression(arguments.compression, arguments.compressionLevel, arguments.threads);
+    }
+
+    String getFileName(String fileName) {
+        return enabled ? fileName + ".gz" : fileName;
+    }
+
+    OutputStream create(String dir, String fileName) throws IOException {
+        FileOutputStream output = new FileOutputStream(dir + "/" + getFileName(fileName));
+        if (!enabled) {
+            return output;
+        }
+        if (threads > 1) {
+            return new ParallelGzipOutputStream(output, level, threads);
+        }
+        return new LeveledGzipOutputStream(output, level, BUFFER_SIZE);
+    }
+}
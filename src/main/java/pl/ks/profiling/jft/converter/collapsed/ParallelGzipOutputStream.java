@@ -0,0 +1,141 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Gzip stream compressing blocks of data on many threads. Every block is compressed as a separate gzip member,
+ * members are written in order. A file with many members is a valid gzip file, it is read by gzip, zcat and
+ * {@link java.util.zip.GZIPInputStream} as one stream.
+ */
+class ParallelGzipOutputStream extends OutputStream {
+    private static final int BLOCK_SIZE = 1024 * 1024;
+
+    private final OutputStream output;
+    private final int level;
+    private final int maxPendingBlocks;
+    private final ExecutorService executor;
+    private final Deque<Future<byte[]>> pendingBlocks = new ArrayDeque<>();
+
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int position;
+    private boolean anyBlockWritten;
+    private boolean closed;
+
+    ParallelGzipOutputStream(OutputStream output, int level, int threads) {
+        this.output = output;
+        this.level = level;
+        this.maxPendingBlocks = threads * 2;
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "gzip-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[position++] = (byte) b;
+        if (position == BLOCK_SIZE) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            int toCopy = Math.min(length, BLOCK_SIZE - position);
+            System.arraycopy(bytes, offset, block, position, toCopy);
+            position += toCopy;
+            offset += toCopy;
+            length -= toCopy;
+            if (position == BLOCK_SIZE) {
+                submitBlock();
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (position > 0) {
+            submitBlock();
+        }
+        while (!pendingBlocks.isEmpty()) {
+            writeBlock(pendingBlocks.pollFirst());
+        }
+        output.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (position > 0 || !anyBlockWritten) {
+                submitBlock();
+            }
+            while (!pendingBlocks.isEmpty()) {
+                writeBlock(pendingBlocks.pollFirst());
+            }
+        } finally {
+            executor.shutdownNow();
+            output.close();
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        byte[] data = block;
+        int length = position;
+        pendingBlocks.addLast(executor.submit(() -> compress(data, length, level)));
+        anyBlockWritten = true;
+        block = new byte[BLOCK_SIZE];
+        position = 0;
+        while (pendingBlocks.size() >= maxPendingBlocks) {
+            writeBlock(pendingBlocks.pollFirst());
+        }
+    }
+
+    private void writeBlock(Future<byte[]> compressedBlock) throws IOException {
+        try {
+            output.write(compressedBlock.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static byte[] compress(byte[] data, int length, int level) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 4 + 64);
+        try (LeveledGzipOutputStream gzip = new LeveledGzipOutputStream(compressed, level, 64 * 1024)) {
+            gzip.write(data, 0, length);
+        }
+        return compressed.toByteArray();
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Merges aggregates of files or chunks parsed in parallel in input order, as soon as they are ready, so the output
+ * is the same as of a sequential run. The number of tasks submitted and not merged yet is limited, so at most that
+ * many aggregates and the merged one are in memory, whatever the number of files and chunks.
+ * With warm-up/cool-down only the events close to the edges of the merged time range stay buffered in the merged
+ * trimmer until all the tasks are done, what they trim depends on the time range of all of them.
+ */
+class ParallelResultMerger {
+    private final int maxPending;
+    private final Deque<Future<CollapsedStacks>> pending = new ArrayDeque<>();
+    private CollapsedStacks merged;
+
+    ParallelResultMerger(int maxPending) {
+        this.maxPending = Math.max(1, maxPending);
+    }
+
+    /**
+     * Called before a task is submitted, waits for the oldest tasks and merges them until there is room for it.
+     */
+    void awaitCapacity() throws InterruptedException, ExecutionException {
+        while (pending.size() >= maxPending) {
+            merge(pending.pollFirst().get());
+        }
+        while (!pending.isEmpty() && pending.peekFirst().isDone()) {
+            merge(pending.pollFirst().get());
+        }
+    }
+
+    void add(Future<CollapsedStacks> future) {
+        pending.addLast(future);
+    }
+
+    CollapsedStacks finish() throws InterruptedException, ExecutionException {
+        while (!pending.isEmpty()) {
+            merge(pending.pollFirst().get());
+        }
+        if (merged == null) {
+            return new CollapsedStacks();
+        }
+        if (merged.trimmer != null) {
+            WarmUpCoolDownTrimmer.finish(Collections.singletonList(merged.trimmer));
+        }
+        return merged;
+    }
+
+    private void merge(CollapsedStacks result) {
+        if (merged == null) {
+            merged = result.createMergeTarget();
+        }
+        merged.merge(result);
+    }
+}
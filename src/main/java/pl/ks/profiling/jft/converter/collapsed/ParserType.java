@@ -3,4 +3,5 @@ package pl.ks.profiling.jft.converter.collapsed;
 public enum ParserType {
     DIRECTORY,
     FILE,
+    BINARY,
 }
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and timings of one run, written as a JSON report. Counters are updated by many parsing threads, so
+ * processing and load times are sums over the threads, phases are wall clock times.
+ */
+class ProcessingStats {
+    private final long startNanos = System.nanoTime();
+    private final LongAdder files = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder readNanos = new LongAdder();
+    private final LongAdder loadNanos = new LongAdder();
+    private final Map<EventType, EventTypeStats> eventTypes = new EnumMap<>(EventType.class);
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+    private final List<OutputStats> outputs = new ArrayList<>();
+    private final Map<String, Long> aggregate = new LinkedHashMap<>();
+
+    ProcessingStats() {
+        for (EventType eventType : EventType.values()) {
+            eventTypes.put(eventType, new EventTypeStats());
+        }
+    }
+
+    void recordFile() {
+        files.increment();
+    }
+
+    /**
+     * Reading of a chunk, including decompression, when it is separate from decoding.
+     */
+    void recordRead(long nanos) {
+        readNanos.add(nanos);
+    }
+
+    /**
+     * Decoding of a recording or a chunk, including decompression when it is not read separately.
+     */
+    void recordLoad(long nanos) {
+        loads.increment();
+        loadNanos.add(nanos);
+    }
+
+    void recordEvents(EventType eventType, long events, long filtered, long nanos) {
+        EventTypeStats stats = eventTypes.get(eventType);
+        stats.events.add(events);
+        stats.filtered.add(filtered);
+        stats.nanos.add(nanos);
+    }
+
+    synchronized void recordPhase(String phase, long nanos) {
+        phases.merge(phase, nanos, Long::sum);
+    }
+
+    synchronized void recordOutput(String fileName, long bytes, long nanos) {
+        outputs.add(new OutputStats(fileName, bytes, nanos));
+    }
+
+    synchronized void recordAggregate(CollapsedStacks collapsedStacks) {
+        aggregate.put("nodes", (long) collapsedStacks.stackTrie.size());
+        aggregate.put("frames", (long) collapsedStacks.frameDictionary.size());
+        for (StackCounter counter : StackCounter.values()) {
+            aggregate.put("uniqueStacks." + counter.getName(), (long) collapsedStacks.size(counter));
+        }
+        aggregate.put("estimatedBytes", collapsedStacks.estimatedBytes());
+        aggregate.put("heapUsedBytes", Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+    }
+
+    synchronized void writeJson(Path file) throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"totalMs\": ").append(toMs(System.nanoTime() - startNanos)).append(",\n");
+        json.append("  \"files\": ").append(files.sum()).append(",\n");
+        json.append("  \"loads\": ").append(loads.sum()).append(",\n");
+        json.append("  \"readMs\": ").append(toMs(readNanos.sum())).append(",\n");
+        json.append("  \"loadMs\": ").append(toMs(loadNanos.sum())).append(",\n");
+
+        json.append("  \"phasesMs\": {");
+        String separator = "\n";
+        for (Map.Entry<String, Long> phase : phases.entrySet()) {
+            json.append(separator).append("    ").append(quote(phase.getKey())).append(": ").append(toMs(phase.getValue()));
+            separator = ",\n";
+        }
+        json.append("\n  },\n");
+
+        json.append("  \"events\": {");
+        separator = "\n";
+        for (Map.Entry<EventType, EventTypeStats> eventType : eventTypes.entrySet()) {
+            EventTypeStats stats = eventType.getValue();
+            json.append(separator).append("    ").append(quote(eventType.getKey().name().toLowerCase()))
+                    .append(": {\"events\": ").append(stats.events.sum())
+                    .append(", \"filtered\": ").append(stats.filtered.sum())
+                    .append(", \"processingMs\": ").append(toMs(stats.nanos.sum()));
+            if (stats.nanos.sum() > 0) {
+                json.append(", \"eventsPerSecond\": ").append(stats.events.sum() * 1_000_000_000L / stats.nanos.sum());
+            }
+            json.append("}");
+            separator = ",\n";
+        }
+        json.append("\n  },\n");
+
+        json.append("  \"aggregate\": {");
+        separator = "\n";
+        for (Map.Entry<String, Long> value : aggregate.entrySet()) {
+            json.append(separator).append("    ").append(quote(value.getKey())).append(": ").append(value.getValue());
+            separator = ",\n";
+        }
+        json.append("\n  },\n");
+
+        long outputBytes = 0;
+        json.append("  \"outputs\": [");
+        separator = "\n";
+        for (OutputStats output : outputs) {
+            json.append(separator).append("    {\"file\": ").append(quote(output.fileName))
+                    .append(", \"bytes\": ").append(output.bytes)
+                    .append(", \"writeMs\": ").append(toMs(output.nanos)).append("}");
+            outputBytes += output.bytes;
+            separator = ",\n";
+        }
+        json.append("\n  ],\n");
+        json.append("  \"outputBytes\": ").append(outputBytes).append("\n");
+        json.append("}\n");
+
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(json.toString());
+        }
+    }
+
+    private static String toMs(long nanos) {
+        return String.format(Locale.US, "%.3f", nanos / 1_000_000.0);
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < ' ') {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static class EventTypeStats {
+        final LongAdder events = new LongAdder();
+        final LongAdder filtered = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+    }
+
+    private static class OutputStats {
+        final String fileName;
+        final long bytes;
+        final long nanos;
+
+        OutputStats(String fileName, long bytes, long nanos) {
+            this.fileName = fileName;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+    }
+}
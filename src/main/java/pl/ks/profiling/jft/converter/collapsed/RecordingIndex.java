@@ -0,0 +1,313 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static pl.ks.profiling.jft.converter.collapsed.BinaryStacksFormat.readVarLong;
+import static pl.ks.profiling.jft.converter.collapsed.BinaryStacksFormat.writeVarLong;
+
+/**
+ * Sidecar index of a recording: the stack trie of all its events with the counters aggregated per time bucket.
+ * Thread is the first frame of every stack, so the buckets are also aggregated per thread. Time filters
+ * answered from the index compare the start of a bucket instead of the timestamp of an event, so their
+ * precision is the bucket width. Stacks are kept normalized, an index built with other normalization rules or
+ * of a recording with another size or modification time is not up to date.
+ * <pre>
+ * magic "CJFI", version, hash of the normalization rules, recording size and modification time in millis,
+ * bucket width, first and last event timestamp
+ * frame count, frames as (length, UTF-8 bytes)
+ * node count, nodes as (parent, frame id)
+ * first bucket, record count, records as (bucket delta, node, counter ordinal, value)
+ * </pre>
+ */
+class RecordingIndex {
+    static final String SUFFIX = ".idx";
+
+    private static final byte[] MAGIC = {'C', 'J', 'F', 'I'};
+    private static final int VERSION = 3;
+
+    final long rulesHash;
+    final long bucketWidth;
+    final long minTimestamp;
+    final long maxTimestamp;
+    private final String[] frames;
+    private final int[] parents;
+    private final int[] nodeFrames;
+    private final long[] bucketStarts;
+    private final int[] nodes;
+    private final byte[] counters;
+    private final long[] values;
+
+    private RecordingIndex(long rulesHash, long bucketWidth, long minTimestamp, long maxTimestamp, String[] frames, int[] parents, int[] nodeFrames,
+                           long[] bucketStarts, int[] nodes, byte[] counters, long[] values) {
+        this.rulesHash = rulesHash;
+        this.bucketWidth = bucketWidth;
+        this.minTimestamp = minTimestamp;
+        this.maxTimestamp = maxTimestamp;
+        this.frames = frames;
+        this.parents = parents;
+        this.nodeFrames = nodeFrames;
+        this.bucketStarts = bucketStarts;
+        this.nodes = nodes;
+        this.counters = counters;
+        this.values = values;
+    }
+
+    static Path getIndexFile(Path recording) {
+        return recording.resolveSibling(recording.getFileName().toString() + SUFFIX);
+    }
+
+    /**
+     * @return true if the index was saved for a recording of the same size and modification time and its stacks
+     * were normalized with the same rules
+     */
+    static boolean isUpToDate(Path recording, StackNormalizer stackNormalizer) {
+        Path indexFile = getIndexFile(recording);
+        try {
+            if (!Files.isRegularFile(indexFile)) {
+                return false;
+            }
+            try (DataInputStream input = new DataInputStream(Files.newInputStream(indexFile))) {
+                return readRulesHash(input, indexFile) == stackNormalizer.getRulesHash()
+                        && input.readLong() == Files.size(recording)
+                        && input.readLong() == Files.getLastModifiedTime(recording).toMillis();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Creates the index of collapsed stacks aggregated with time buckets.
+     *
+     * @param stackNormalizer rules the stacks were normalized with
+     */
+    static RecordingIndex of(CollapsedStacks collapsedStacks, StackNormalizer stackNormalizer) {
+        TimeBuckets timeBuckets = collapsedStacks.timeBuckets;
+        FrameDictionary frameDictionary = collapsedStacks.frameDictionary;
+        StackTrie stackTrie = collapsedStacks.stackTrie;
+
+        String[] frames = new String[frameDictionary.size()];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = frameDictionary.getFrame(i);
+        }
+        int[] parents = new int[stackTrie.size()];
+        int[] nodeFrames = new int[stackTrie.size()];
+        for (int node = 1; node < parents.length; node++) {
+            parents[node] = stackTrie.getParent(node);
+            nodeFrames[node] = stackTrie.getFrame(node);
+        }
+        long[] keys = timeBuckets.getSortedKeys();
+        long[] bucketStarts = new long[keys.length];
+        int[] nodes = new int[keys.length];
+        byte[] counters = new byte[keys.length];
+        long[] values = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            bucketStarts[i] = timeBuckets.getBucketStart(keys[i]);
+            nodes[i] = TimeBuckets.getNode(keys[i]);
+            counters[i] = (byte) TimeBuckets.getCounter(keys[i]).ordinal();
+            values[i] = timeBuckets.getValue(keys[i]);
+        }
+        return new RecordingIndex(stackNormalizer.getRulesHash(), timeBuckets.bucketWidth, timeBuckets.getMinTimestamp(), timeBuckets.getMaxTimestamp(), frames, parents, nodeFrames,
+                bucketStarts, nodes, counters, values);
+    }
+
+    /**
+     * Saves the index next to the recording it was created from.
+     *
+     * @return the index file
+     */
+    Path save(Path recording) throws IOException {
+        Path indexFile = getIndexFile(recording);
+        long recordingSize = Files.size(recording);
+        long recordingModified = Files.getLastModifiedTime(recording).toMillis();
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(indexFile), 64 * 1024))) {
+            output.write(MAGIC);
+            output.write(VERSION);
+            output.writeLong(rulesHash);
+            output.writeLong(recordingSize);
+            output.writeLong(recordingModified);
+            output.writeLong(bucketWidth);
+            output.writeLong(minTimestamp);
+            output.writeLong(maxTimestamp);
+
+            writeVarLong(output, frames.length);
+            for (String frame : frames) {
+                byte[] bytes = frame.getBytes(StandardCharsets.UTF_8);
+                writeVarLong(output, bytes.length);
+                output.write(bytes);
+            }
+
+            writeVarLong(output, parents.length);
+            for (int node = 1; node < parents.length; node++) {
+                writeVarLong(output, parents[node]);
+                writeVarLong(output, nodeFrames[node]);
+            }
+
+            long previousBucket = bucketStarts.length == 0 ? 0 : bucketStarts[0] / bucketWidth;
+            output.writeLong(previousBucket);
+            writeVarLong(output, bucketStarts.length);
+            for (int i = 0; i < bucketStarts.length; i++) {
+                long bucket = bucketStarts[i] / bucketWidth;
+                writeVarLong(output, bucket - previousBucket);
+                writeVarLong(output, nodes[i]);
+                output.write(counters[i]);
+                writeVarLong(output, values[i]);
+                previousBucket = bucket;
+            }
+        }
+        return indexFile;
+    }
+
+    static RecordingIndex read(Path indexFile) throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile), 64 * 1024))) {
+            long rulesHash = readRulesHash(input, indexFile);
+            input.readLong();
+            input.readLong();
+            long bucketWidth = input.readLong();
+            long minTimestamp = input.readLong();
+            long maxTimestamp = input.readLong();
+
+            String[] frames = new String[(int) readVarLong(input)];
+            for (int i = 0; i < frames.length; i++) {
+                byte[] frame = new byte[(int) readVarLong(input)];
+                input.readFully(frame);
+                frames[i] = new String(frame, StandardCharsets.UTF_8);
+            }
+
+            int nodeCount = (int) readVarLong(input);
+            int[] parents = new int[nodeCount];
+            int[] nodeFrames = new int[nodeCount];
+            for (int node = 1; node < nodeCount; node++) {
+                parents[node] = (int) readVarLong(input);
+                nodeFrames[node] = (int) readVarLong(input);
+            }
+
+            long bucket = input.readLong();
+            int recordCount = (int) readVarLong(input);
+            long[] bucketStarts = new long[recordCount];
+            int[] nodes = new int[recordCount];
+            byte[] counters = new byte[recordCount];
+            long[] values = new long[recordCount];
+            for (int i = 0; i < recordCount; i++) {
+                bucket += readVarLong(input);
+                bucketStarts[i] = bucket * bucketWidth;
+                nodes[i] = (int) readVarLong(input);
+                counters[i] = input.readByte();
+                values[i] = readVarLong(input);
+            }
+            return new RecordingIndex(rulesHash, bucketWidth, minTimestamp, maxTimestamp, frames, parents, nodeFrames, bucketStarts, nodes, counters, values);
+        }
+    }
+
+    /**
+     * Reads the header up to the hash of the normalization rules, indexes of older versions are rejected.
+     */
+    private static long readRulesHash(DataInputStream input, Path indexFile) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        input.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC) || input.read() != VERSION) {
+            throw new IOException("Not a recording index file of version " + VERSION + ": " + indexFile);
+        }
+        return input.readLong();
+    }
+
+    /**
+     * Adds the records matching the filters to the collapsed stacks.
+     *
+     * @param thread lower case thread name or null
+     */
+    void addTo(CollapsedStacks collapsedStacks, StartEndDate startEndDate, String thread) {
+        if (bucketStarts.length > 0) {
+            collapsedStacks.recordTimestamp(minTimestamp);
+            collapsedStacks.recordTimestamp(maxTimestamp);
+        }
+        long startTimestamp = startEndDate == null ? Long.MIN_VALUE : startEndDate.startDate.toEpochMilli();
+        long endTimestamp = startEndDate == null ? Long.MAX_VALUE : startEndDate.endDate.toEpochMilli();
+
+        int[] frameIds = new int[frames.length];
+        Arrays.fill(frameIds, -1);
+        int[] targetNodes = new int[parents.length];
+        Arrays.fill(targetNodes, -1);
+        targetNodes[StackTrie.ROOT] = StackTrie.ROOT;
+        byte[] threadMatches = new byte[parents.length];
+        StackCounter[] stackCounters = StackCounter.values();
+
+        for (int i = 0; i < bucketStarts.length; i++) {
+            if (bucketStarts[i] < startTimestamp || bucketStarts[i] > endTimestamp) {
+                continue;
+            }
+            if (thread != null && !matchesThread(nodes[i], thread, threadMatches)) {
+                continue;
+            }
+            int node = getTargetNode(nodes[i], collapsedStacks, frameIds, targetNodes);
+            collapsedStacks.add(bucketStarts[i], stackCounters[counters[i]], node, values[i]);
+        }
+        collapsedStacks.compactIfNeeded();
+    }
+
+    long estimatedBytes() {
+        long bytes = 12L * parents.length + 21L * bucketStarts.length;
+        for (String frame : frames) {
+            bytes += 40 + 2L * frame.length();
+        }
+        return bytes;
+    }
+
+    private boolean matchesThread(int node, String thread, byte[] threadMatches) {
+        int threadNode = node;
+        while (parents[threadNode] != StackTrie.ROOT) {
+            threadNode = parents[threadNode];
+        }
+        if (threadMatches[threadNode] == 0) {
+            threadMatches[threadNode] = (byte) (thread.equals(frames[nodeFrames[threadNode]].toLowerCase()) ? 1 : -1);
+        }
+        return threadMatches[threadNode] == 1;
+    }
+
+    private int getTargetNode(int node, CollapsedStacks collapsedStacks, int[] frameIds, int[] targetNodes) {
+        if (targetNodes[node] != -1) {
+            return targetNodes[node];
+        }
+        // parents always have smaller ids, so the missing ancestors are resolved from the top
+        int[] path = new int[16];
+        int depth = 0;
+        for (int current = node; targetNodes[current] == -1; current = parents[current]) {
+            if (depth == path.length) {
+                path = Arrays.copyOf(path, depth * 2);
+            }
+            path[depth++] = current;
+        }
+        for (int i = depth - 1; i >= 0; i--) {
+            int current = path[i];
+            int frame = nodeFrames[current];
+            if (frameIds[frame] == -1) {
+                frameIds[frame] = collapsedStacks.frameDictionary.getId(frames[frame]);
+            }
+            targetNodes[current] = collapsedStacks.stackTrie.getChild(targetNodes[parents[current]], frameIds[frame]);
+        }
+        return targetNodes[node];
+    }
+}
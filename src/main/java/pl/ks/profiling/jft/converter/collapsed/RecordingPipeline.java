@@ -0,0 +1,201 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import org.openjdk.jmc.flightrecorder.internal.EventArrays;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+
+/**
+ * Reads and decodes recordings in background threads while the caller aggregates the decoded chunks, so reading
+ * the next chunks from disk, decoding a chunk and aggregating the previous one overlap. The stages are connected by
+ * bounded queues, at most {@link #READ_AHEAD_CHUNKS} raw chunks and {@link #DECODED_CHUNKS} decoded ones wait
+ * for the next stage. Chunks come out in the order of the files and of the chunks in a file.
+ * <p>
+ * Not compressed recordings are memory mapped chunk by chunk and the pages of a chunk are loaded by the reading
+ * thread, compressed ones are read through a buffered gzip stream.
+ * <p>
+ * Errors of both stages, including {@link Error}s like running out of memory while decoding a large chunk, are passed
+ * to the caller as error items and the end of the items is always signalled, so {@link #next()} never waits for a
+ * stage which is gone.
+ */
+class RecordingPipeline implements AutoCloseable {
+    private static final int READ_AHEAD_CHUNKS = 2;
+    private static final int DECODED_CHUNKS = 1;
+    private static final Item END = new Item(null, false, null, null, null);
+
+    private final BlockingQueue<Item> readChunks = new ArrayBlockingQueue<>(READ_AHEAD_CHUNKS);
+    private final BlockingQueue<Item> decodedChunks = new ArrayBlockingQueue<>(DECODED_CHUNKS);
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+    private final ProcessingStats stats;
+
+    interface ChunkLoader {
+        EventArrays load(InputStream chunk) throws Exception;
+    }
+
+    /**
+     * An item with just the file starts the items of every file. Files read from their index are not read by the
+     * pipeline, only the file item is passed for them.
+     */
+    static class Item {
+        final Path file;
+        final boolean indexed;
+        private final ByteBuffer chunk;
+        final EventArrays recording;
+        final Throwable error;
+
+        private Item(Path file, boolean indexed, ByteBuffer chunk, EventArrays recording, Throwable error) {
+            this.file = file;
+            this.indexed = indexed;
+            this.chunk = chunk;
+            this.recording = recording;
+            this.error = error;
+        }
+
+        boolean isFileStart() {
+            return chunk == null && recording == null && error == null;
+        }
+    }
+
+    /**
+     * @param readFromIndex files which are read from their index by the caller, not by the pipeline
+     */
+    RecordingPipeline(List<Path> files, Predicate<Path> readFromIndex, ChunkLoader chunkLoader, ProcessingStats stats) {
+        this.stats = stats;
+        executor.submit(() -> {
+            read(files, readFromIndex);
+            return null;
+        });
+        executor.submit(() -> {
+            decode(chunkLoader);
+            return null;
+        });
+    }
+
+    /**
+     * @return next item or null when all the files are done
+     */
+    Item next() throws InterruptedException {
+        Item item = decodedChunks.take();
+        return item == END ? null : item;
+    }
+
+    private void read(List<Path> files, Predicate<Path> readFromIndex) throws InterruptedException {
+        try {
+            for (Path file : files) {
+                boolean indexed;
+                try {
+                    indexed = readFromIndex.test(file);
+                } catch (Throwable e) {
+                    readChunks.put(new Item(file, false, null, null, null));
+                    readChunks.put(new Item(file, false, null, null, e));
+                    continue;
+                }
+                readChunks.put(new Item(file, indexed, null, null, null));
+                if (indexed) {
+                    continue;
+                }
+                try {
+                    if (JftToCollapseStacks.isCompressed(file)) {
+                        readCompressed(file);
+                    } else {
+                        readMapped(file);
+                    }
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Throwable e) {
+                    readChunks.put(new Item(file, false, null, null, e));
+                }
+            }
+        } finally {
+            readChunks.put(END);
+        }
+    }
+
+    private void readMapped(Path file) throws IOException, InterruptedException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long position = 0;
+            while (true) {
+                long start = System.nanoTime();
+                MappedByteBuffer chunk = JfrChunkReader.mapChunk(channel, position);
+                if (chunk == null) {
+                    return;
+                }
+                // page faults are taken here instead of in the decoding thread
+                chunk.load();
+                stats.recordRead(System.nanoTime() - start);
+                position += chunk.capacity();
+                readChunks.put(new Item(file, false, chunk, null, null));
+            }
+        }
+    }
+
+    private void readCompressed(Path file) throws IOException, InterruptedException {
+        try (JfrChunkReader chunkReader = new JfrChunkReader(JftToCollapseStacks.getInputStream(file))) {
+            while (true) {
+                long start = System.nanoTime();
+                byte[] chunk = chunkReader.nextChunk();
+                if (chunk == null) {
+                    return;
+                }
+                stats.recordRead(System.nanoTime() - start);
+                readChunks.put(new Item(file, false, ByteBuffer.wrap(chunk), null, null));
+            }
+        }
+    }
+
+    private void decode(ChunkLoader chunkLoader) throws InterruptedException {
+        boolean ended = false;
+        try {
+            while (!ended) {
+                Item item = readChunks.take();
+                if (item.chunk == null) {
+                    decodedChunks.put(item);
+                    ended = item == END;
+                    continue;
+                }
+                Item decoded;
+                try {
+                    decoded = new Item(item.file, false, null, chunkLoader.load(new ByteBufferInputStream(item.chunk)), null);
+                } catch (Throwable e) {
+                    decoded = new Item(item.file, false, null, null, e);
+                }
+                decodedChunks.put(decoded);
+            }
+        } finally {
+            if (!ended) {
+                decodedChunks.put(END);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Exact aggregation over a fixed heap. When the stack trie grows over its node limit it is written to a temporary
+ * run file in {@link BinaryStacksFormat} with the stacks sorted by their frames, and a new trie is started. At the
+ * end the runs are merged in a streaming pass, summing the counters of equal stacks. Frames are compared as
+ * strings, so runs written by aggregates with different frame dictionaries can be merged together. A run keeps
+ * only the frames of its own stacks, and at most {@link #MAX_MERGE_RUNS} runs are open at once: more runs are
+ * first merged in groups into intermediate runs, so the merge memory and open files do not grow with the input.
+ */
+class SpilledStacks {
+    static final int MAX_MERGE_RUNS = 64;
+    private static final int ALL_COUNTERS_MASK = (1 << StackCounter.values().length) - 1;
+
+    final Path dir;
+    private final List<Path> runs = new ArrayList<>();
+
+    SpilledStacks(Path dir) {
+        this.dir = dir;
+    }
+
+    interface MergedStackConsumer {
+        /**
+         * @param frames frames of the stack, only the first depth ones are valid
+         * @param values summed values of all the counters by ordinal
+         */
+        void accept(String[] frames, int depth, long[] values) throws IOException;
+    }
+
+    /**
+     * Creates a temporary directory for the runs, deleted with the runs left in it when the JVM exits.
+     */
+    static Path createDir() throws IOException {
+        Path dir = Files.createTempDirectory("collapse-jfr-spill");
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                deleteDir(dir);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }));
+        return dir;
+    }
+
+    static void deleteDir(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        try (Stream<Path> runs = Files.list(dir)) {
+            for (Path run : runs.collect(Collectors.toList())) {
+                Files.deleteIfExists(run);
+            }
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    int getRunCount() {
+        return runs.size();
+    }
+
+    void addAll(SpilledStacks other) {
+        runs.addAll(other.runs);
+        other.runs.clear();
+    }
+
+    /**
+     * Writes the stacks of the trie to a new run file sorted by their frames, the caller starts a new trie.
+     */
+    void spill(StackTrie stackTrie, FrameDictionary frameDictionary) {
+        StackCounter[] counters = StackCounter.values();
+        int size = stackTrie.size();
+        int counterMask = 0;
+        int stackCount = 0;
+        // the dictionary keeps all the frames seen so far, a run is written with the frames of its own stacks only
+        FrameDictionary runFrames = new FrameDictionary();
+        int[] runFrameIds = new int[frameDictionary.size()];
+        Arrays.fill(runFrameIds, -1);
+        for (int node = 1; node < size; node++) {
+            int frame = stackTrie.getFrame(node);
+            if (runFrameIds[frame] < 0) {
+                runFrameIds[frame] = runFrames.getId(frameDictionary.getFrame(frame));
+            }
+            boolean present = false;
+            for (StackCounter counter : counters) {
+                if (stackTrie.isPresent(node, counter)) {
+                    counterMask |= 1 << counter.ordinal();
+                    present = true;
+                }
+            }
+            if (present) {
+                stackCount++;
+            }
+        }
+        if (stackCount == 0) {
+            return;
+        }
+
+        int[] childNodes = stackTrie.getChildrenSortedByFrame(frameDictionary.getRanksByName());
+        int[] childStart = stackTrie.getChildStarts();
+
+        try {
+            Path run = Files.createTempFile(dir, "run-", ".bin");
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), 64 * 1024))) {
+                BinaryStacksFormat.writeHeader(output, runFrames, counterMask, stackCount);
+                // depth first walk visiting children in frame order, so parents come before children and stacks are sorted
+                int[] path = new int[64];
+                int[] previousPath = new int[64];
+                int previousDepth = 0;
+                int[] pathNodes = new int[64];
+                int[] nextChild = new int[64];
+                long[] values = new long[counters.length];
+                int depth = 0;
+                pathNodes[0] = StackTrie.ROOT;
+                nextChild[0] = childStart[StackTrie.ROOT];
+                while (depth >= 0) {
+                    int parent = pathNodes[depth];
+                    if (nextChild[depth] == childStart[parent + 1]) {
+                        depth--;
+                        continue;
+                    }
+                    int node = childNodes[nextChild[depth]++];
+                    if (depth + 1 == pathNodes.length) {
+                        path = Arrays.copyOf(path, path.length * 2);
+                        previousPath = Arrays.copyOf(previousPath, previousPath.length * 2);
+                        pathNodes = Arrays.copyOf(pathNodes, pathNodes.length * 2);
+                        nextChild = Arrays.copyOf(nextChild, nextChild.length * 2);
+                    }
+                    path[depth] = runFrameIds[stackTrie.getFrame(node)];
+                    depth++;
+                    pathNodes[depth] = node;
+                    nextChild[depth] = childStart[node];
+
+                    boolean present = false;
+                    for (StackCounter counter : counters) {
+                        values[counter.ordinal()] = stackTrie.get(node, counter);
+                        present |= stackTrie.isPresent(node, counter);
+                    }
+                    if (present) {
+                        int sharedPrefix = BinaryStacksFormat.getSharedPrefix(path, depth, previousPath, previousDepth);
+                        BinaryStacksFormat.writeStack(output, path, depth, sharedPrefix, values, counterMask);
+                        System.arraycopy(path, sharedPrefix, previousPath, sharedPrefix, depth - sharedPrefix);
+                        previousDepth = depth;
+                    }
+                }
+            }
+            runs.add(run);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not spill stacks to " + dir, e);
+        }
+    }
+
+    void merge(MergedStackConsumer consumer) throws IOException {
+        merge(consumer, System.out::println);
+    }
+
+    /**
+     * Merges all the runs, every distinct stack is passed to the consumer once, in frame order. Groups of
+     * {@link #MAX_MERGE_RUNS} runs are merged into intermediate runs until the rest can be merged at once.
+     *
+     * @param progress receives a message after every pass of intermediate merges
+     */
+    void merge(MergedStackConsumer consumer, Consumer<String> progress) throws IOException {
+        while (runs.size() > MAX_MERGE_RUNS) {
+            List<Path> mergedRuns = new ArrayList<>();
+            for (int from = 0; from < runs.size(); from += MAX_MERGE_RUNS) {
+                List<Path> group = runs.subList(from, Math.min(runs.size(), from + MAX_MERGE_RUNS));
+                mergedRuns.add(group.size() == 1 ? group.get(0) : mergeToRun(group));
+            }
+            progress.accept("Merged " + runs.size() + " spilled runs into " + mergedRuns.size());
+            runs.clear();
+            runs.addAll(mergedRuns);
+        }
+        merge(runs, consumer);
+    }
+
+    /**
+     * Merges the runs into a new one and deletes them. Stacks are written to a temporary file first, the frames
+     * and the number of stacks of the header are known only after the merge.
+     */
+    private Path mergeToRun(List<Path> group) throws IOException {
+        Path body = Files.createTempFile(dir, "body-", ".bin");
+        Path run = Files.createTempFile(dir, "run-", ".bin");
+        FrameDictionary runFrames = new FrameDictionary();
+        long[] stackCount = new long[1];
+        try {
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(body), 64 * 1024))) {
+                int[][] paths = {new int[64], new int[64]};
+                int[] previousDepth = new int[1];
+                merge(group, (frames, depth, values) -> {
+                    if (depth > paths[0].length) {
+                        paths[0] = Arrays.copyOf(paths[0], Math.max(depth, paths[0].length * 2));
+                        paths[1] = Arrays.copyOf(paths[1], paths[0].length);
+                    }
+                    int[] path = paths[0];
+                    for (int level = 0; level < depth; level++) {
+                        path[level] = runFrames.getId(frames[level]);
+                    }
+                    int sharedPrefix = BinaryStacksFormat.getSharedPrefix(path, depth, paths[1], previousDepth[0]);
+                    BinaryStacksFormat.writeStack(output, path, depth, sharedPrefix, values, ALL_COUNTERS_MASK);
+                    System.arraycopy(path, 0, paths[1], 0, depth);
+                    previousDepth[0] = depth;
+                    stackCount[0]++;
+                });
+            }
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), 64 * 1024))) {
+                BinaryStacksFormat.writeHeader(output, runFrames, ALL_COUNTERS_MASK, stackCount[0]);
+                Files.copy(body, output);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(run);
+            throw e;
+        } finally {
+            Files.deleteIfExists(body);
+        }
+        for (Path merged : group) {
+            Files.deleteIfExists(merged);
+        }
+        return run;
+    }
+
+    private static void merge(List<Path> runs, MergedStackConsumer consumer) throws IOException {
+        PriorityQueue<BinaryStacksFormat.StackReader> readers = new PriorityQueue<>(Math.max(1, runs.size()), SpilledStacks::compare);
+        try {
+            for (Path run : runs) {
+                BinaryStacksFormat.StackReader reader = BinaryStacksFormat.StackReader.open(run);
+                if (reader.next()) {
+                    readers.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+
+            String[] frames = new String[64];
+            long[] values = new long[StackCounter.values().length];
+            while (!readers.isEmpty()) {
+                BinaryStacksFormat.StackReader first = readers.poll();
+                int depth = first.depth;
+                if (depth > frames.length) {
+                    frames = Arrays.copyOf(frames, Math.max(depth, frames.length * 2));
+                }
+                for (int level = 0; level < depth; level++) {
+                    frames[level] = first.getFrame(level);
+                }
+                System.arraycopy(first.values, 0, values, 0, values.length);
+                advance(readers, first);
+                while (!readers.isEmpty() && compare(readers.peek(), frames, depth) == 0) {
+                    BinaryStacksFormat.StackReader same = readers.poll();
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] += same.values[i];
+                    }
+                    advance(readers, same);
+                }
+                consumer.accept(frames, depth, values);
+            }
+        } finally {
+            for (BinaryStacksFormat.StackReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    private static void advance(PriorityQueue<BinaryStacksFormat.StackReader> readers, BinaryStacksFormat.StackReader reader) throws IOException {
+        if (reader.next()) {
+            readers.add(reader);
+        } else {
+            reader.close();
+        }
+    }
+
+    private static int compare(BinaryStacksFormat.StackReader first, BinaryStacksFormat.StackReader second) {
+        int depth = Math.min(first.depth, second.depth);
+        for (int level = 0; level < depth; level++) {
+            int result = first.getFrame(level).compareTo(second.getFrame(level));
+            if (result != 0) {
+                return result;
+            }
+        }
+        return Integer.compare(first.depth, second.depth);
+    }
+
+    private static int compare(BinaryStacksFormat.StackReader reader, String[] frames, int depth) {
+        int minDepth = Math.min(reader.depth, depth);
+        for (int level = 0; level < minDepth; level++) {
+            int result = reader.getFrame(level).compareTo(frames[level]);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return Integer.compare(reader.depth, depth);
+    }
+
+    void delete() {
+        for (Path run : runs) {
+            try {
+                Files.deleteIfExists(run);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        runs.clear();
+        try {
+            Files.deleteIfExists(dir);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
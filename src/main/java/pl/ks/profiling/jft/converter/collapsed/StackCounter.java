@@ -0,0 +1,28 @@
+package pl.ks.profiling.jft.converter.collapsed;
+
+public enum StackCounter {
+    WALL("wall"),
+    CPU("cpu"),
+    ALLOC_COUNT("alloc.count"),
+    ALLOC_SIZE("alloc.size"),
+    LOCK("lock"),
+    ;
+
+    private final String name;
+
+    StackCounter(String name) {
+        this.name = name;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Counter which tells if a stack was recorded at all. Allocation size can be zero for a recorded stack,
+     * so the allocation count is used for it.
+     */
+    StackCounter getPresenceCounter() {
+        return this == ALLOC_SIZE ? ALLOC_COUNT : this;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Rules applied to stacks before they are aggregated, so stacks differing only in generated class names or in
+ * the depth of a recursion are merged. Rules are read from a file, one per line:
+ * <pre>
+ * rename &lt;regex&gt; &lt;replacement&gt;  - replaces all the matches in a frame, applied in the file order, the
+ *                                   replacement can refer to groups with $1 and needs \$ for a literal $
+ * exclude &lt;package&gt;               - drops frames of the package and its subpackages
+ * collapse-direct-recursion         - merges consecutive occurrences of a frame into one
+ * collapse-recursion                - cuts a stack back to the first occurrence of a frame repeated deeper, also
+ *                                   through other frames, so A;B;A;C becomes A;C
+ * max-depth &lt;n&gt;                    - keeps only the first n frames from the outermost one
+ * </pre>
+ * Frame rules are applied once per method and stack rules once per stack trace by {@link SymbolCache}.
+ */
+class StackNormalizer {
+    static final StackNormalizer NONE = new StackNormalizer();
+    static final String DEFAULT_RULES = "default";
+
+    /**
+     * Frame id of a frame dropped by an exclude rule.
+     */
+    static final int EXCLUDED = -1;
+
+    private final List<String> rules = new ArrayList<>();
+    private final List<Pattern> renamePatterns = new ArrayList<>();
+    private final List<String> replacements = new ArrayList<>();
+    private final List<String> excludedPackages = new ArrayList<>();
+    private boolean collapseDirectRecursion;
+    private boolean collapseRecursion;
+    private int maxDepth;
+
+    /**
+     * @param rules rules file or "default" for masking of lambda, proxy, CGLIB and reflection accessor classes
+     * and collapsing direct recursion
+     */
+    static StackNormalizer load(String rules) throws IOException {
+        List<String> lines = DEFAULT_RULES.equals(rules) ? getDefaultRules() : Files.readAllLines(Paths.get(rules), StandardCharsets.UTF_8);
+        StackNormalizer stackNormalizer = new StackNormalizer();
+        for (String line : lines) {
+            stackNormalizer.addRule(line.trim());
+        }
+        return stackNormalizer;
+    }
+
+    private static List<String> getDefaultRules() {
+        return Arrays.asList(
+                "rename \\$\\$Lambda(\\$[0-9]+)?(/(0x)?[0-9a-f]+)? \\$\\$Lambda",
+                "rename \\$Proxy[0-9]+ \\$Proxy",
+                "rename ^jdk/proxy[0-9]+/ jdk/proxy/",
+                "rename \\$\\$(EnhancerBy|FastClassBy)([A-Za-z]*)CGLIB\\$\\$[0-9a-f]+ \\$\\$$1$2CGLIB",
+                "rename GeneratedMethodAccessor[0-9]+ GeneratedMethodAccessor",
+                "rename GeneratedConstructorAccessor[0-9]+ GeneratedConstructorAccessor",
+                "collapse-direct-recursion"
+        );
+    }
+
+    private void addRule(String line) {
+        if (line.isEmpty() || line.startsWith("#")) {
+            return;
+        }
+        String[] parts = line.split("\\s+");
+        if (parts[0].equals("rename") && parts.length == 3) {
+            renamePatterns.add(Pattern.compile(parts[1]));
+            replacements.add(parts[2]);
+        } else if (parts[0].equals("exclude") && parts.length == 2) {
+            excludedPackages.add(parts[1].replace('.', '/') + "/");
+        } else if (parts[0].equals("collapse-direct-recursion") && parts.length == 1) {
+            collapseDirectRecursion = true;
+        } else if (parts[0].equals("collapse-recursion") && parts.length == 1) {
+            collapseRecursion = true;
+        } else if (parts[0].equals("max-depth") && parts.length == 2) {
+            maxDepth = Integer.parseInt(parts[1]);
+        } else {
+            throw new IllegalArgumentException("Unknown stack normalization rule: " + line);
+        }
+        rules.add(String.join(" ", parts));
+    }
+
+    boolean isEnabled() {
+        return this != NONE;
+    }
+
+    /**
+     * Saved with indexes and incremental states, which are used only with the same rules. 64-bit FNV-1a of the
+     * rules, 0 without normalization.
+     */
+    long getRulesHash() {
+        if (!isEnabled()) {
+            return 0;
+        }
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : String.join("\n", rules).getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * @return frame after the rename rules or null if it is excluded
+     */
+    String normalizeFrame(String frame) {
+        for (String excludedPackage : excludedPackages) {
+            if (frame.startsWith(excludedPackage)) {
+                return null;
+            }
+        }
+        for (int i = 0; i < renamePatterns.size(); i++) {
+            frame = renamePatterns.get(i).matcher(frame).replaceAll(replacements.get(i));
+        }
+        return frame;
+    }
+
+    /**
+     * @param frameIds frame ids from the outermost frame, {@link #EXCLUDED} for excluded frames
+     * @return frame ids after the stack rules
+     */
+    int[] normalizeStack(int[] frameIds) {
+        int[] path = new int[frameIds.length];
+        int depth = 0;
+        // depth of every frame in the path, a frame seen again means a recursion which is cut back to the first one
+        Map<Integer, Integer> depths = collapseRecursion ? new HashMap<>() : null;
+        for (int frameId : frameIds) {
+            if (frameId == EXCLUDED || (collapseDirectRecursion && depth > 0 && path[depth - 1] == frameId)) {
+                continue;
+            }
+            if (depths != null) {
+                Integer firstDepth = depths.get(frameId);
+                if (firstDepth != null) {
+                    for (int i = firstDepth + 1; i < depth; i++) {
+                        depths.remove(path[i]);
+                    }
+                    depth = firstDepth + 1;
+                    continue;
+                }
+                depths.put(frameId, depth);
+            }
+            path[depth++] = frameId;
+        }
+        if (maxDepth > 0 && depth > maxDepth) {
+            depth = maxDepth;
+        }
+        return depth == path.length ? path : Arrays.copyOf(path, depth);
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import java.io.IOException;
+
+/**
+ * Receives the stacks of a {@link CollapseJfrResult} one by one, so they can be streamed without the whole
+ * collapsed output built in memory.
+ */
+public interface StackSink {
+    /**
+     * @param stack frames separated by ';', starting with the thread name
+     * @param count value of the counter for the stack
+     */
+    void accept(String stack, long count) throws IOException;
+}
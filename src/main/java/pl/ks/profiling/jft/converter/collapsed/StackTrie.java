@@ -0,0 +1,184 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import java.util.Arrays;
+
+/**
+ * Prefix tree of stacks. Every node is a frame id (see {@link FrameDictionary}) under its parent node, so
+ * stacks sharing a prefix share the nodes. Nodes are kept in primitive arrays indexed by node id, with one
+ * lazily allocated array of values per {@link StackCounter}. Node ids are assigned in insertion order, so the
+ * parent of a node always has a smaller id than the node itself.
+ */
+class StackTrie {
+    static final int ROOT = 0;
+
+    private int size = 1;
+    private int[] parents = new int[1024];
+    private int[] frames = new int[1024];
+    private final long[][] counters = new long[StackCounter.values().length][];
+
+    // open addressing table of node ids keyed by (parent, frame), 0 is an empty slot as root is never a child
+    private int[] children = new int[2048];
+
+    int getChild(int parent, int frame) {
+        int mask = children.length - 1;
+        int slot = hash(parent, frame) & mask;
+        while (true) {
+            int node = children[slot];
+            if (node == 0) {
+                node = addNode(parent, frame);
+                children[slot] = node;
+                if (size * 2 > children.length) {
+                    rehash();
+                }
+                return node;
+            }
+            if (parents[node] == parent && frames[node] == frame) {
+                return node;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    void add(int node, StackCounter counter, long value) {
+        long[] values = counters[counter.ordinal()];
+        if (values == null) {
+            values = new long[parents.length];
+            counters[counter.ordinal()] = values;
+        }
+        values[node] += value;
+    }
+
+    long get(int node, StackCounter counter) {
+        long[] values = counters[counter.ordinal()];
+        return values == null ? 0 : values[node];
+    }
+
+    boolean isPresent(int node, StackCounter counter) {
+        return get(node, counter.getPresenceCounter()) > 0;
+    }
+
+    int getParent(int node) {
+        return parents[node];
+    }
+
+    int getFrame(int node) {
+        return frames[node];
+    }
+
+    /**
+     * Frame ids from the root to the node.
+     */
+    int[] getPath(int node) {
+        int depth = 0;
+        for (int current = node; current != ROOT; current = parents[current]) {
+            depth++;
+        }
+        int[] path = new int[depth];
+        for (int current = node; current != ROOT; current = parents[current]) {
+            path[--depth] = frames[current];
+        }
+        return path;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param frameRanks order of the frames, indexed by frame id
+     * @return all the nodes except the root, grouped by parent in parent order and sorted by frame rank within
+     * a parent, see {@link #getChildStarts()}
+     */
+    int[] getChildrenSortedByFrame(int[] frameRanks) {
+        // a frame of a node is sorted by rank, the node keeps its parent and only the order within a parent matters
+        long[] keys = new long[size - 1];
+        for (int node = 1; node < size; node++) {
+            keys[node - 1] = ((long) parents[node] << 32) | frameRanks[frames[node]];
+        }
+        Arrays.sort(keys);
+        int[] framesByRank = new int[frameRanks.length];
+        for (int frame = 0; frame < frameRanks.length; frame++) {
+            framesByRank[frameRanks[frame]] = frame;
+        }
+        // a parent and a frame identify a node, so the sorted keys are mapped back to nodes with a lookup
+        int[] sortedChildren = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            sortedChildren[i] = getChild((int) (keys[i] >>> 32), framesByRank[(int) keys[i]]);
+        }
+        return sortedChildren;
+    }
+
+    /**
+     * @return index of the first child of every node in {@link #getChildrenSortedByFrame(int[])}, with one more
+     * entry for the end of the last node children
+     */
+    int[] getChildStarts() {
+        int[] childStarts = new int[size + 1];
+        for (int node = 1; node < size; node++) {
+            childStarts[parents[node] + 1]++;
+        }
+        for (int node = 0; node < size; node++) {
+            childStarts[node + 1] += childStarts[node];
+        }
+        return childStarts;
+    }
+
+    long estimatedBytes() {
+        long bytes = 4L * parents.length + 4L * frames.length + 4L * children.length;
+        for (long[] values : counters) {
+            if (values != null) {
+                bytes += 8L * values.length;
+            }
+        }
+        return bytes;
+    }
+
+    private int addNode(int parent, int frame) {
+        if (size == parents.length) {
+            int capacity = parents.length * 2;
+            parents = Arrays.copyOf(parents, capacity);
+            frames = Arrays.copyOf(frames, capacity);
+            for (int i = 0; i < counters.length; i++) {
+                if (counters[i] != null) {
+                    counters[i] = Arrays.copyOf(counters[i], capacity);
+                }
+            }
+        }
+        parents[size] = parent;
+        frames[size] = frame;
+        return size++;
+    }
+
+    private void rehash() {
+        int[] newChildren = new int[children.length * 2];
+        int mask = newChildren.length - 1;
+        for (int node = 1; node < size; node++) {
+            int slot = hash(parents[node], frames[node]) & mask;
+            while (newChildren[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            newChildren[slot] = node;
+        }
+        children = newChildren;
+    }
+
+    private static int hash(int parent, int frame) {
+        int hash = parent * 0x9E3779B9 + frame;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import java.util.Arrays;
+
+/**
+ * Shrinks a stack trie to the heaviest stacks. Stacks are ranked by their largest share of any counter total and
+ * kept, together with their ancestors, while they fit in half of the node limit. Every other stack is folded into an
+ * "other" child of its deepest kept ancestor, so counter totals stay exact and folded counts stay under the
+ * frames they were recorded in, as deep as the kept stacks go.
+ */
+class StackTrieCompactor {
+    static final String OTHER_FRAME = "[other]";
+
+    /**
+     * @param evictedMax for every counter the largest value of a folded stack, the error of a kept stack count
+     * @return the compacted trie with new node ids
+     */
+    static StackTrie compact(StackTrie stackTrie, int otherFrame, int maxNodes, long[] evictedMax) {
+        StackCounter[] counters = StackCounter.values();
+        int size = stackTrie.size();
+        long[] totals = new long[counters.length];
+        for (int node = 1; node < size; node++) {
+            for (StackCounter counter : counters) {
+                totals[counter.ordinal()] += stackTrie.get(node, counter);
+            }
+        }
+
+        // share as float bits in the upper half sorts the same as the share itself, as shares are not negative
+        long[] ranking = new long[size];
+        int stacks = 0;
+        for (int node = 1; node < size; node++) {
+            float share = 0;
+            boolean present = false;
+            for (StackCounter counter : counters) {
+                long value = stackTrie.get(node, counter);
+                if (value != 0) {
+                    present = true;
+                    share = Math.max(share, (float) value / totals[counter.ordinal()]);
+                }
+            }
+            if (present) {
+                ranking[stacks++] = ((long) Float.floatToIntBits(share) << 32) | node;
+            }
+        }
+        Arrays.sort(ranking, 0, stacks);
+
+        // the compacted trie is kept within half of the limit, so the next compaction comes only after the trie has
+        // grown by at least as many nodes as it has, every kept node may get an "other" child too
+        int targetNodes = maxNodes / 2;
+        boolean[] kept = new boolean[size];
+        kept[StackTrie.ROOT] = true;
+        int keptNodes = 1;
+        for (int i = stacks - 1; i >= 0; i--) {
+            int node = (int) ranking[i];
+            int newNodes = 0;
+            for (int current = node; !kept[current]; current = stackTrie.getParent(current)) {
+                newNodes++;
+            }
+            if ((keptNodes + newNodes) * 2 > targetNodes) {
+                break;
+            }
+            for (int current = node; !kept[current]; current = stackTrie.getParent(current)) {
+                kept[current] = true;
+            }
+            keptNodes += newNodes;
+        }
+
+        StackTrie compacted = new StackTrie();
+        int[] nodes = new int[size];
+        int[] otherNodes = new int[size];
+        nodes[StackTrie.ROOT] = StackTrie.ROOT;
+        // parents have smaller ids, so the deepest kept ancestor of a node is known before the node is visited
+        int[] keptAncestors = new int[size];
+        for (int node = 1; node < size; node++) {
+            int parent = stackTrie.getParent(node);
+            keptAncestors[node] = kept[parent] ? parent : keptAncestors[parent];
+            int target;
+            if (kept[node]) {
+                nodes[node] = compacted.getChild(nodes[parent], stackTrie.getFrame(node));
+                target = nodes[node];
+            } else {
+                int ancestor = keptAncestors[node];
+                if (otherNodes[ancestor] == 0) {
+                    otherNodes[ancestor] = compacted.getChild(nodes[ancestor], otherFrame);
+                }
+                target = otherNodes[ancestor];
+            }
+            // "other" node of a kept frame is folded into itself, so nothing is lost
+            boolean folded = !kept[node] && !(kept[parent] && stackTrie.getFrame(node) == otherFrame);
+            for (StackCounter counter : counters) {
+                long value = stackTrie.get(node, counter);
+                if (value != 0) {
+                    compacted.add(target, counter, value);
+                    if (folded) {
+                        evictedMax[counter.ordinal()] = Math.max(evictedMax[counter.ordinal()], value);
+                    }
+                }
+            }
+        }
+        return compacted;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+/**
+ * Local HTTP server answering collapsed stack queries. Recordings are decoded once into {@link RecordingIndex}
+ * and kept in a memory bounded LRU cache together with the aggregates of recent queries, so moving between time
+ * windows of the same recordings does not decode them again.
+ * <pre>
+ * GET /collapsed?event=cpu&amp;from=2020-09-17T11:03:00Z&amp;to=1600340603000&amp;thread=http-nio-8080-exec-250&amp;warmUp=10&amp;coolDown=10
+ * </pre>
+ * Queries running at the same time may decode the same recording twice, the cache keeps one of the results.
+ */
+class StacksServer {
+    private final RecordingsSupplier recordingsSupplier;
+    private final RecordingLoader recordingLoader;
+    private final MemoryBoundedCache<String, Object> cache;
+
+    StacksServer(RecordingsSupplier recordingsSupplier, RecordingLoader recordingLoader, long cacheBytes) {
+        this.recordingsSupplier = recordingsSupplier;
+        this.recordingLoader = recordingLoader;
+        this.cache = new MemoryBoundedCache<>(cacheBytes);
+    }
+
+    void start(int port, int threads) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/collapsed", exchange -> handle(exchange, this::handleCollapsed));
+        server.createContext("/", exchange -> handle(exchange, this::handleStatus));
+        server.setExecutor(Executors.newFixedThreadPool(threads));
+        server.start();
+        System.out.println("Listening on http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/");
+    }
+
+    private void handle(HttpExchange exchange, Handler handler) throws IOException {
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            try {
+                handler.handle(getParameters(exchange.getRequestURI().getRawQuery()), exchange);
+            } catch (IllegalArgumentException | DateTimeParseException e) {
+                byte[] message = (e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(400, message.length);
+                exchange.getResponseBody().write(message);
+            } catch (Exception e) {
+                e.printStackTrace();
+                byte[] message = (e + "\n").getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(500, message.length);
+                exchange.getResponseBody().write(message);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleStatus(Map<String, String> parameters, HttpExchange exchange) throws Exception {
+        exchange.sendResponseHeaders(200, 0);
+        try (Writer output = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8))) {
+            output.write("Query: /collapsed?event=<wall|cpu|alloc.count|alloc.size|lock>&from=<time>&to=<time>&thread=<thread>&warmUp=<s>&coolDown=<s>\n");
+            output.write("Time: epoch ms or ISO-8601 instant, all parameters are optional, default event is wall\n");
+            output.write("Cache: " + cache.getReport() + "\n");
+            output.write("Recordings:\n");
+            for (Path recording : recordingsSupplier.get()) {
+                output.write("  " + recording + "\n");
+            }
+        }
+    }
+
+    private void handleCollapsed(Map<String, String> parameters, HttpExchange exchange) throws Exception {
+        StackCounter counter = getCounter(parameters.getOrDefault("event", StackCounter.WALL.getName()));
+        Instant from = getInstant(parameters.get("from"), Long.MIN_VALUE);
+        Instant to = getInstant(parameters.get("to"), Long.MAX_VALUE);
+        String thread = parameters.containsKey("thread") ? parameters.get("thread").trim().toLowerCase() : null;
+        int warmUp = Integer.parseInt(parameters.getOrDefault("warmUp", "0"));
+        int coolDown = Integer.parseInt(parameters.getOrDefault("coolDown", "0"));
+
+        List<Path> recordings = recordingsSupplier.get();
+        List<String> recordingKeys = new ArrayList<>();
+        for (Path recording : recordings) {
+            recordingKeys.add(getRecordingKey(recording));
+        }
+        String stacksKey = "stacks " + from + " " + to + " " + thread + " " + warmUp + " " + coolDown + " " + recordingKeys;
+        CollapsedStacks collapsedStacks = (CollapsedStacks) cache.get(stacksKey);
+        if (collapsedStacks == null) {
+            collapsedStacks = aggregate(recordings, recordingKeys, from, to, thread, warmUp, coolDown);
+            cache.put(stacksKey, collapsedStacks, collapsedStacks.estimatedBytes());
+        }
+
+        exchange.sendResponseHeaders(200, 0);
+        try (Writer output = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), 64 * 1024)) {
+            CollapsedStackWriter.write(output, collapsedStacks, counter);
+        }
+    }
+
+    private CollapsedStacks aggregate(List<Path> recordings, List<String> recordingKeys, Instant from, Instant to, String thread, int warmUp, int coolDown) throws Exception {
+        StartEndDate startEndDate = null;
+        if (from.toEpochMilli() != Long.MIN_VALUE || to.toEpochMilli() != Long.MAX_VALUE) {
+            startEndDate = new StartEndDate();
+            startEndDate.startDate = from;
+            startEndDate.endDate = to;
+        }
+        CollapsedStacks collapsedStacks = new CollapsedStacks(warmUp, coolDown);
+        for (int i = 0; i < recordings.size(); i++) {
+            RecordingIndex recordingIndex = (RecordingIndex) cache.get(recordingKeys.get(i));
+            if (recordingIndex == null) {
+                recordingIndex = recordingLoader.load(recordings.get(i));
+                cache.put(recordingKeys.get(i), recordingIndex, recordingIndex.estimatedBytes());
+            }
+            recordingIndex.addTo(collapsedStacks, startEndDate, thread);
+        }
+        if (collapsedStacks.trimmer != null) {
+            WarmUpCoolDownTrimmer.finish(Collections.singletonList(collapsedStacks.trimmer));
+        }
+        return collapsedStacks;
+    }
+
+    private static String getRecordingKey(Path recording) throws IOException {
+        return "recording " + recording.toAbsolutePath() + " " + Files.size(recording) + " " + Files.getLastModifiedTime(recording).toMillis();
+    }
+
+    private static StackCounter getCounter(String event) {
+        for (StackCounter counter : StackCounter.values()) {
+            if (counter.getName().equals(event)) {
+                return counter;
+            }
+        }
+        throw new IllegalArgumentException("Unknown event: " + event);
+    }
+
+    private static Instant getInstant(String value, long defaultValue) {
+        if (value == null) {
+            return Instant.ofEpochMilli(defaultValue);
+        }
+        if (value.chars().allMatch(Character::isDigit)) {
+            return Instant.ofEpochMilli(Long.parseLong(value));
+        }
+        return Instant.parse(value);
+    }
+
+    private static Map<String, String> getParameters(String query) throws UnsupportedEncodingException {
+        Map<String, String> parameters = new HashMap<>();
+        if (query == null) {
+            return parameters;
+        }
+        for (String parameter : query.split("&")) {
+            int separator = parameter.indexOf('=');
+            if (separator > 0) {
+                parameters.put(URLDecoder.decode(parameter.substring(0, separator), "UTF-8"), URLDecoder.decode(parameter.substring(separator + 1), "UTF-8"));
+            }
+        }
+        return parameters;
+    }
+
+    interface RecordingsSupplier {
+        List<Path> get() throws IOException;
+    }
+
+    interface RecordingLoader {
+        RecordingIndex load(Path recording) throws Exception;
+    }
+
+    private interface Handler {
+        void handle(Map<String, String> parameters, HttpExchange exchange) throws Exception;
+    }
+}
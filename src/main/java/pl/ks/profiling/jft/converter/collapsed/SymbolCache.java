@@ -0,0 +1,217 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import org.openjdk.jmc.common.IMCFrame;
+import org.openjdk.jmc.common.IMCMethod;
+import org.openjdk.jmc.common.IMCStackTrace;
+import org.openjdk.jmc.common.IMCThread;
+import org.openjdk.jmc.common.IMCType;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches the text of frames and whole stack traces of one recording. The JFR parser creates one object per
+ * constant pool entry, so methods and stack traces repeated by many events are the same instances and can be
+ * looked up by identity. The cache is not thread safe, every parsing thread should use its own instance.
+ */
+class SymbolCache {
+    private final FrameDictionary frameDictionary;
+    private final StackNormalizer stackNormalizer;
+    private final Map<IMCMethod, String> frames = new IdentityHashMap<>();
+    private final Map<IMCMethod, Integer> frameIds = new IdentityHashMap<>();
+    private final Map<IMCStackTrace, String> stackTraces = new IdentityHashMap<>();
+    private final Map<IMCStackTrace, int[]> stackTraceFrameIds = new IdentityHashMap<>();
+    private final Map<IMCThread, Integer> threadFrameIds = new IdentityHashMap<>();
+    private final Map<IMCThread, String> lowerCaseThreadNames = new IdentityHashMap<>();
+    private final Map<String, Map<IMCType, Integer>> classFrameIds = new HashMap<>();
+
+    private long frameHits;
+    private long frameMisses;
+    private long stackTraceHits;
+    private long stackTraceMisses;
+    private long clearedFrames;
+    private long clearedStackTraces;
+
+    SymbolCache() {
+        this(new FrameDictionary());
+    }
+
+    SymbolCache(FrameDictionary frameDictionary) {
+        this(frameDictionary, StackNormalizer.NONE);
+    }
+
+    SymbolCache(FrameDictionary frameDictionary, StackNormalizer stackNormalizer) {
+        this.frameDictionary = frameDictionary;
+        this.stackNormalizer = stackNormalizer;
+    }
+
+    String getFlatStackTrace(IMCStackTrace stackTrace) {
+        String flatStackTrace = stackTraces.get(stackTrace);
+        if (flatStackTrace != null) {
+            stackTraceHits++;
+            return flatStackTrace;
+        }
+        stackTraceMisses++;
+
+        if (stackNormalizer.isEnabled()) {
+            StringBuilder builder = new StringBuilder();
+            for (int frameId : getFrameIds(stackTrace)) {
+                if (builder.length() > 0) {
+                    builder.append(";");
+                }
+                builder.append(frameDictionary.getFrame(frameId));
+            }
+            flatStackTrace = builder.toString();
+            stackTraces.put(stackTrace, flatStackTrace);
+            return flatStackTrace;
+        }
+
+        List<? extends IMCFrame> frames = stackTrace.getFrames();
+        StringBuilder builder = new StringBuilder();
+        for (int i = frames.size() - 1; i >= 0; i--) {
+            if (i != frames.size() - 1) {
+                builder.append(";");
+            }
+            builder.append(getFrame(frames.get(i).getMethod()));
+        }
+        flatStackTrace = builder.toString();
+        stackTraces.put(stackTrace, flatStackTrace);
+        return flatStackTrace;
+    }
+
+    /**
+     * Frame ids of the stack trace, from the outermost frame to the innermost one.
+     */
+    int[] getFrameIds(IMCStackTrace stackTrace) {
+        int[] ids = stackTraceFrameIds.get(stackTrace);
+        if (ids != null) {
+            stackTraceHits++;
+            return ids;
+        }
+        stackTraceMisses++;
+
+        List<? extends IMCFrame> frames = stackTrace.getFrames();
+        ids = new int[frames.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = getFrameId(frames.get(frames.size() - 1 - i).getMethod());
+        }
+        if (stackNormalizer.isEnabled()) {
+            ids = stackNormalizer.normalizeStack(ids);
+        }
+        stackTraceFrameIds.put(stackTrace, ids);
+        return ids;
+    }
+
+    String getFrame(IMCMethod method) {
+        String frame = frames.get(method);
+        if (frame != null) {
+            frameHits++;
+            return frame;
+        }
+        frameMisses++;
+        frame = JfrParser.createFrame(method);
+        frames.put(method, frame);
+        return frame;
+    }
+
+    /**
+     * @return id of the frame after the normalization rules, {@link StackNormalizer#EXCLUDED} if the frame is excluded
+     */
+    int getFrameId(IMCMethod method) {
+        Integer id = frameIds.get(method);
+        if (id != null) {
+            frameHits++;
+            return id;
+        }
+        frameMisses++;
+        String frame = frames.computeIfAbsent(method, JfrParser::createFrame);
+        if (stackNormalizer.isEnabled()) {
+            frame = stackNormalizer.normalizeFrame(frame);
+        }
+        id = frame == null ? StackNormalizer.EXCLUDED : frameDictionary.getId(frame);
+        frameIds.put(method, id);
+        return id;
+    }
+
+    int getThreadFrameId(IMCThread thread) {
+        Integer id = threadFrameIds.get(thread);
+        if (id == null) {
+            id = frameDictionary.getId(thread.getThreadName());
+            threadFrameIds.put(thread, id);
+        }
+        return id;
+    }
+
+    String getLowerCaseThreadName(IMCThread thread) {
+        return lowerCaseThreadNames.computeIfAbsent(thread, key -> key.getThreadName().toLowerCase());
+    }
+
+    int getClassFrameId(IMCType type, String suffix) {
+        Map<IMCType, Integer> ids = classFrameIds.computeIfAbsent(suffix, key -> new IdentityHashMap<>());
+        Integer id = ids.get(type);
+        if (id == null) {
+            id = frameDictionary.getId(type.getFullName() + suffix);
+            ids.put(type, id);
+        }
+        return id;
+    }
+
+    /**
+     * Drops the cached objects of the previous recording chunk, keeps the statistics.
+     */
+    void clear() {
+        clearedFrames += frames.size();
+        clearedStackTraces += stackTraces.size() + stackTraceFrameIds.size();
+        frames.clear();
+        frameIds.clear();
+        stackTraces.clear();
+        stackTraceFrameIds.clear();
+        threadFrameIds.clear();
+        lowerCaseThreadNames.clear();
+        classFrameIds.clear();
+    }
+
+    long getFrameHits() {
+        return frameHits;
+    }
+
+    long getFrameMisses() {
+        return frameMisses;
+    }
+
+    void printReport() {
+        System.out.println(getReport());
+    }
+
+    /**
+     * Frames and stack traces cached in all the chunks, also the cleared ones.
+     */
+    String getReport() {
+        return "Symbol cache: " + (clearedFrames + frames.size()) + " frames, hit rate " + hitRate(frameHits, frameMisses) + "%, "
+                + (clearedStackTraces + stackTraces.size() + stackTraceFrameIds.size()) + " stack traces, hit rate " + hitRate(stackTraceHits, stackTraceMisses) + "%";
+    }
+
+    private static String hitRate(long hits, long misses) {
+        if (hits + misses == 0) {
+            return "0.0";
+        }
+        return String.format("%.1f", 100.0 * hits / (hits + misses));
+    }
+}
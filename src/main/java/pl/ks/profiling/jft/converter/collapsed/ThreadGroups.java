@@ -0,0 +1,68 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Named groups of threads, every group is a regex matched against the whole thread name. A thread can be in many
+ * groups. Groups of a thread are resolved once and cached by the thread name.
+ */
+class ThreadGroups {
+    private final List<String> names = new ArrayList<>();
+    private final List<Pattern> patterns = new ArrayList<>();
+    private final Map<String, boolean[]> groupsByThread = new HashMap<>();
+
+    /**
+     * @param definitions groups as "name=regex"
+     */
+    static ThreadGroups parse(List<String> definitions) {
+        ThreadGroups threadGroups = new ThreadGroups();
+        for (String definition : definitions) {
+            int separator = definition.indexOf('=');
+            if (separator <= 0 || separator == definition.length() - 1) {
+                throw new IllegalArgumentException("Thread group should be <name>=<regex>: " + definition);
+            }
+            threadGroups.names.add(definition.substring(0, separator));
+            threadGroups.patterns.add(Pattern.compile(definition.substring(separator + 1)));
+        }
+        return threadGroups;
+    }
+
+    int size() {
+        return names.size();
+    }
+
+    String getName(int group) {
+        return names.get(group);
+    }
+
+    boolean isInGroup(String threadName, int group) {
+        return groupsByThread.computeIfAbsent(threadName, this::match)[group];
+    }
+
+    private boolean[] match(String threadName) {
+        boolean[] groups = new boolean[patterns.size()];
+        for (int group = 0; group < groups.length; group++) {
+            groups[group] = patterns.get(group).matcher(threadName).matches();
+        }
+        return groups;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+/**
+ * Counters of stack trie nodes per time bucket. A bucket, a node and a counter are packed into one long key:
+ * bucket relative to the first one seen in the upper bits, the node and the counter ordinal in the lower 34 bits.
+ */
+class TimeBuckets {
+    private static final int NODE_SHIFT = 3;
+    private static final int BUCKET_SHIFT = 34;
+    private static final long MAX_RELATIVE_BUCKET = 1L << 28;
+
+    final long bucketWidth;
+    private final LongLongHashMap values = new LongLongHashMap();
+    private long baseBucket = Long.MIN_VALUE;
+    private long minTimestamp = Long.MAX_VALUE;
+    private long maxTimestamp = Long.MIN_VALUE;
+
+    TimeBuckets(long bucketWidth) {
+        this.bucketWidth = bucketWidth;
+    }
+
+    void add(long timestamp, int node, StackCounter counter, long value) {
+        minTimestamp = Math.min(minTimestamp, timestamp);
+        maxTimestamp = Math.max(maxTimestamp, timestamp);
+        addToBucket(timestamp, node, counter, value);
+    }
+
+    void merge(TimeBuckets other, int[] nodes) {
+        for (long key : other.values.getSortedKeys()) {
+            addToBucket(other.getBucketStart(key), nodes[getNode(key)], getCounter(key), other.values.get(key));
+        }
+        minTimestamp = Math.min(minTimestamp, other.minTimestamp);
+        maxTimestamp = Math.max(maxTimestamp, other.maxTimestamp);
+    }
+
+    private void addToBucket(long timestamp, int node, StackCounter counter, long value) {
+        long bucket = Math.floorDiv(timestamp, bucketWidth);
+        if (baseBucket == Long.MIN_VALUE) {
+            baseBucket = bucket;
+        }
+        long relativeBucket = bucket - baseBucket;
+        if (relativeBucket >= MAX_RELATIVE_BUCKET || relativeBucket <= -MAX_RELATIVE_BUCKET) {
+            throw new IllegalArgumentException("Time range too long for bucket width " + bucketWidth + " ms");
+        }
+        values.add((relativeBucket << BUCKET_SHIFT) | ((long) node << NODE_SHIFT) | counter.ordinal(), value);
+    }
+
+    /**
+     * Keys sorted by bucket, node and counter.
+     */
+    long[] getSortedKeys() {
+        return values.getSortedKeys();
+    }
+
+    long getValue(long key) {
+        return values.get(key);
+    }
+
+    long getBucketStart(long key) {
+        return (baseBucket + (key >> BUCKET_SHIFT)) * bucketWidth;
+    }
+
+    static int getNode(long key) {
+        return (int) ((key >>> NODE_SHIFT) & Integer.MAX_VALUE);
+    }
+
+    static StackCounter getCounter(long key) {
+        return StackCounter.values()[(int) (key & 7)];
+    }
+
+    long getMinTimestamp() {
+        return minTimestamp;
+    }
+
+    long getMaxTimestamp() {
+        return maxTimestamp;
+    }
+
+    boolean isEmpty() {
+        return values.size() == 0;
+    }
+
+    long estimatedBytes() {
+        return values.estimatedBytes();
+    }
+}
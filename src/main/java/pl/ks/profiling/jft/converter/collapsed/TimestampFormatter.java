@@ -0,0 +1,49 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Formats epoch millis as yyyy-MM-dd'T'HH:mm:ss.SSS directly into a byte buffer. Events come mostly in time
+ * order, so the formatted text up to the seconds is cached and only the millis are written for every event.
+ */
+class TimestampFormatter {
+    static final int MAX_LENGTH = 32;
+
+    private final SimpleDateFormat secondsFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.", Locale.US);
+    private long cachedSecond = Long.MIN_VALUE;
+    private byte[] cachedPrefix;
+
+    int format(long timestamp, byte[] target, int offset) {
+        long second = Math.floorDiv(timestamp, 1000L);
+        if (second != cachedSecond) {
+            cachedPrefix = secondsFormat.format(new Date(second * 1000)).getBytes(StandardCharsets.US_ASCII);
+            cachedSecond = second;
+        }
+        System.arraycopy(cachedPrefix, 0, target, offset, cachedPrefix.length);
+        offset += cachedPrefix.length;
+
+        int millis = (int) Math.floorMod(timestamp, 1000L);
+        target[offset++] = (byte) ('0' + millis / 100);
+        target[offset++] = (byte) ('0' + millis / 10 % 10);
+        target[offset++] = (byte) ('0' + millis % 10);
+        return offset;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes "timestamp;stack count" lines. Lines are encoded straight into a byte buffer, without creating
+ * intermediate strings.
+ */
+class TimestampedCollapsedWriter implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_LONG_LENGTH = 20;
+
+    private final OutputStream output;
+    private final TimestampFormatter timestampFormatter = new TimestampFormatter();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+
+    TimestampedCollapsedWriter(String dir, String fileName, OutputCompression compression) throws IOException {
+        System.out.println("Writing to dir: " + dir + " with file name: " + fileName);
+        this.output = compression.create(dir, fileName);
+    }
+
+    void write(long timestamp, String stacktrace) throws IOException {
+        write(timestamp, stacktrace, 1);
+    }
+
+    void write(long timestamp, String stacktrace, long count) throws IOException {
+        ensureCapacity(TimestampFormatter.MAX_LENGTH + 1);
+        position = timestampFormatter.format(timestamp, buffer, position);
+        buffer[position++] = ';';
+        writeString(stacktrace);
+        ensureCapacity(MAX_LONG_LENGTH + 2);
+        buffer[position++] = ' ';
+        writeLong(count);
+        buffer[position++] = '\n';
+    }
+
+    private void writeString(String value) throws IOException {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                writeBytes(value.substring(i).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            if (position == buffer.length) {
+                flushBuffer();
+            }
+            buffer[position++] = (byte) c;
+        }
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        if (bytes.length > buffer.length - position) {
+            flushBuffer();
+        }
+        if (bytes.length > buffer.length) {
+            output.write(bytes);
+            return;
+        }
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void writeLong(long value) {
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int start = position;
+        do {
+            buffer[position++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        for (int i = start, j = position - 1; i < j; i++, j--) {
+            byte tmp = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = tmp;
+        }
+    }
+
+    private void ensureCapacity(int bytes) throws IOException {
+        if (buffer.length - position < bytes) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        output.write(buffer, 0, position);
+        position = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            output.close();
+        }
+    }
+}
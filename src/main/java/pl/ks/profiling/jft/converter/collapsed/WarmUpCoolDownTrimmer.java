@@ -0,0 +1,146 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Applies warm-up and cool-down in the same pass that aggregates the events.
+ * <p>
+ * The first and the last event timestamps are known only after all the files are read, but the
+ * timestamps seen so far already bound them: the first timestamp can only get smaller and the last
+ * one can only get bigger. An event which is at least warm-up after the smallest timestamp seen and
+ * at least cool-down before the biggest one will stay in the range, so it is aggregated immediately.
+ * Only the remaining events, close to the edges of the recording, are buffered until the final range
+ * is known.
+ */
+class WarmUpCoolDownTrimmer {
+    final int warmUp;
+    final int coolDown;
+    private final long warmUpMs;
+    private final long coolDownMs;
+    private final CollapsedStacks collapsedStacks;
+    private final List<TimedStack> warmUpStacks = new ArrayList<>();
+    private final Deque<TimedStack> coolDownStacks = new ArrayDeque<>();
+
+    private long minTimestamp = Long.MAX_VALUE;
+    private long maxTimestamp = Long.MIN_VALUE;
+
+    WarmUpCoolDownTrimmer(int warmUp, int coolDown, CollapsedStacks collapsedStacks) {
+        this.warmUp = warmUp;
+        this.coolDown = coolDown;
+        this.warmUpMs = warmUp * 1000L;
+        this.coolDownMs = coolDown * 1000L;
+        this.collapsedStacks = collapsedStacks;
+    }
+
+    void recordTimestamp(long timestamp) {
+        if (timestamp < minTimestamp) {
+            minTimestamp = timestamp;
+        }
+        if (timestamp > maxTimestamp) {
+            maxTimestamp = timestamp;
+            flushCoolDownStacks();
+        }
+    }
+
+    boolean buffer(long timestamp, StackCounter counter, int node, long value) {
+        if (timestamp < minTimestamp + warmUpMs) {
+            warmUpStacks.add(new TimedStack(timestamp, counter, node, value));
+            return true;
+        }
+        if (timestamp > maxTimestamp - coolDownMs) {
+            coolDownStacks.add(new TimedStack(timestamp, counter, node, value));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Moves the stacks buffered by the trimmer of a merged aggregate to this one. The time range seen by this
+     * trimmer grows to include the merged one, so the stacks in the range of both are aggregated right away.
+     *
+     * @param nodes node ids of the merged aggregate's trie in the trie of this one
+     */
+    void merge(WarmUpCoolDownTrimmer other, int[] nodes) {
+        if (other.minTimestamp <= other.maxTimestamp) {
+            recordTimestamp(other.minTimestamp);
+            recordTimestamp(other.maxTimestamp);
+        }
+        merge(other.warmUpStacks, nodes);
+        merge(other.coolDownStacks, nodes);
+        other.warmUpStacks.clear();
+        other.coolDownStacks.clear();
+    }
+
+    private void merge(Collection<TimedStack> stacks, int[] nodes) {
+        for (TimedStack stack : stacks) {
+            collapsedStacks.add(stack.timestamp, stack.counter, nodes[stack.node], stack.value);
+        }
+    }
+
+    static void finish(Collection<WarmUpCoolDownTrimmer> trimmers) {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (WarmUpCoolDownTrimmer trimmer : trimmers) {
+            min = Math.min(min, trimmer.minTimestamp);
+            max = Math.max(max, trimmer.maxTimestamp);
+        }
+        for (WarmUpCoolDownTrimmer trimmer : trimmers) {
+            trimmer.finish(min + trimmer.warmUpMs, max - trimmer.coolDownMs);
+        }
+    }
+
+    private void finish(long startTimestamp, long endTimestamp) {
+        flush(warmUpStacks, startTimestamp, endTimestamp);
+        flush(coolDownStacks, startTimestamp, endTimestamp);
+        warmUpStacks.clear();
+        coolDownStacks.clear();
+    }
+
+    private void flush(Collection<TimedStack> stacks, long startTimestamp, long endTimestamp) {
+        for (TimedStack stack : stacks) {
+            if (stack.timestamp >= startTimestamp && stack.timestamp <= endTimestamp) {
+                collapsedStacks.aggregate(stack.timestamp, stack.counter, stack.node, stack.value);
+            }
+        }
+    }
+
+    private void flushCoolDownStacks() {
+        while (!coolDownStacks.isEmpty() && coolDownStacks.peekFirst().timestamp <= maxTimestamp - coolDownMs) {
+            TimedStack stack = coolDownStacks.pollFirst();
+            collapsedStacks.aggregate(stack.timestamp, stack.counter, stack.node, stack.value);
+        }
+    }
+
+    private static class TimedStack {
+        final long timestamp;
+        final StackCounter counter;
+        final int node;
+        final long value;
+
+        TimedStack(long timestamp, StackCounter counter, int node, long value) {
+            this.timestamp = timestamp;
+            this.counter = counter;
+            this.node = node;
+            this.value = value;
+        }
+    }
+}
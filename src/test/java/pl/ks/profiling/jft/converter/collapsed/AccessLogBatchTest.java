@@ -0,0 +1,197 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openjdk.jmc.common.IMCThread;
+import org.openjdk.jmc.common.item.IItem;
+import org.openjdk.jmc.common.item.IMemberAccessor;
+import org.openjdk.jmc.flightrecorder.JfrAttributes;
+import org.openjdk.jmc.flightrecorder.internal.EventArray;
+import org.openjdk.jmc.flightrecorder.internal.EventArrays;
+import org.openjdk.jmc.flightrecorder.internal.FlightRecordingLoader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AccessLogBatchTest {
+    // 17/Oct/2026:05:14:37 +0000, one second after the start of the wall-lock-alloc.jfr recording
+    private static final long LOG_DATE = 1_792_214_077_000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsRequestsLastingAtLeastMinDuration() throws Exception {
+        List<AccessLogBatch.Request> requests = AccessLogBatch.readRequests(accessLog(
+                "[17/Oct/2026:05:14:37 +0000] [GET /short HTTP/1.1] [200] [- bytes] [999 ms] [worker-0]",
+                "[17/Oct/2026:05:14:37 +0000] [GET /long HTTP/1.1] [200] [- bytes] [1000 ms] [Worker-0 ]",
+                "[17/Oct/2026:05:14:37 +0000] [GET /no-thread HTTP/1.1] [200] [- bytes] [5000 ms]",
+                "[17/Oct/2026:05:14:37 +0000] [GET /no-duration HTTP/1.1] [200] [- bytes] [slow] [worker-0]",
+                "[17/Foo/2026:05:14:37 +0000] [GET /wrong-date HTTP/1.1] [200] [- bytes] [5000 ms] [worker-0]"
+        ), 1000);
+
+        assertEquals(1, requests.size());
+        AccessLogBatch.Request request = requests.get(0);
+        assertEquals(0, request.id);
+        assertEquals(2, request.lineNumber);
+        assertEquals("GET /long HTTP/1.1", request.description);
+        assertEquals("worker-0", request.thread);
+        assertEquals(LOG_DATE - 1000, request.start);
+        assertEquals(LOG_DATE + 1000, request.end);
+    }
+
+    @Test
+    public void findsRequestsAtBoundaryTimestamps() throws Exception {
+        AccessLogBatch accessLogBatch = new AccessLogBatch(AccessLogBatch.readRequests(accessLog(
+                "[17/Oct/2026:05:14:37 +0000] [GET /first HTTP/1.1] [200] [- bytes] [2000 ms] [worker-0]",
+                "[17/Oct/2026:05:14:40 +0000] [GET /second HTTP/1.1] [200] [- bytes] [1500 ms] [worker-0]"
+        ), 0));
+        int thread = accessLogBatch.collapsedStacks.frameDictionary.getId("worker-0");
+
+        assertEquals(0, accessLogBatch.findRequests(thread, LOG_DATE - 2001));
+        assertEquals(1, accessLogBatch.findRequests(thread, LOG_DATE - 2000));
+        assertEquals(1, accessLogBatch.findRequests(thread, LOG_DATE + 1000));
+        assertEquals(0, accessLogBatch.findRequests(thread, LOG_DATE + 1001));
+        assertEquals(1, accessLogBatch.findRequests(thread, LOG_DATE + 1500));
+        assertEquals(1, accessLogBatch.findRequests(thread, LOG_DATE + 4000));
+        assertEquals(0, accessLogBatch.findRequests(thread, LOG_DATE + 4001));
+    }
+
+    @Test
+    public void findsOverlappingRequestsOfThread() throws Exception {
+        AccessLogBatch accessLogBatch = new AccessLogBatch(AccessLogBatch.readRequests(accessLog(
+                "[17/Oct/2026:05:14:37 +0000] [GET /long HTTP/1.1] [200] [- bytes] [10000 ms] [worker-0]",
+                "[17/Oct/2026:05:14:37 +0000] [GET /short HTTP/1.1] [200] [- bytes] [100 ms] [worker-0]"
+        ), 0));
+        int thread = accessLogBatch.collapsedStacks.frameDictionary.getId("worker-0");
+
+        assertEquals(2, accessLogBatch.findRequests(thread, LOG_DATE));
+        assertEquals(1, accessLogBatch.findRequests(thread, LOG_DATE - 5000));
+    }
+
+    @Test
+    public void threadWithoutRequestsHasNoMatches() throws Exception {
+        AccessLogBatch accessLogBatch = new AccessLogBatch(AccessLogBatch.readRequests(accessLog(
+                "[17/Oct/2026:05:14:37 +0000] [GET /a HTTP/1.1] [200] [- bytes] [2000 ms] [worker-0]"
+        ), 0));
+        FrameDictionary frameDictionary = accessLogBatch.collapsedStacks.frameDictionary;
+        for (int i = 0; i < 100; i++) {
+            frameDictionary.getId("frame-" + i);
+        }
+
+        assertEquals(0, accessLogBatch.findRequests(frameDictionary.getId("worker-1"), LOG_DATE));
+        assertEquals(0, accessLogBatch.findRequests(frameDictionary.getId("WORKER-2"), LOG_DATE));
+        assertEquals(1, accessLogBatch.findRequests(frameDictionary.getId("Worker-0"), LOG_DATE));
+    }
+
+    @Test
+    public void countsEventsOfRequestInAllChunks() throws Exception {
+        AccessLogBatch accessLogBatch = new AccessLogBatch(AccessLogBatch.readRequests(accessLog(
+                "[17/Oct/2026:05:14:37 +0000] [GET /a HTTP/1.1] [200] [- bytes] [2000 ms] [worker-0]"
+        ), 0));
+        // the same chunk twice, every chunk is decoded with its own symbol cache
+        for (int chunk = 0; chunk < 2; chunk++) {
+            SymbolCache symbolCache = new SymbolCache(accessLogBatch.collapsedStacks.frameDictionary);
+            JftToCollapseStacks.processEventsOfRequests(loadRecording(), accessLogBatch, symbolCache);
+        }
+        Path dir = folder.newFolder().toPath();
+        accessLogBatch.saveFiles(dir, EventSelection.ALL, OutputCompression.NONE);
+
+        long workerEvents = countWallEvents(loadRecording(), "worker-0");
+        assertTrue(workerEvents > 0);
+        assertEquals(2 * workerEvents, sum(dir.resolve("line-1.wall.collapsed")));
+        assertTrue(read(dir.resolve("requests.txt")).contains("wall samples: " + 2 * workerEvents));
+        for (String line : Files.readAllLines(dir.resolve("line-1.lock.collapsed"))) {
+            assertTrue(line, line.startsWith("worker-0;"));
+        }
+    }
+
+    @Test
+    public void savesOnlySelectedEventTypes() throws Exception {
+        AccessLogBatch accessLogBatch = new AccessLogBatch(AccessLogBatch.readRequests(accessLog(
+                "[17/Oct/2026:05:14:37 +0000] [GET /a HTTP/1.1] [200] [- bytes] [2000 ms] [worker-0]"
+        ), 0));
+        CollapsedStacks collapsedStacks = accessLogBatch.collapsedStacks;
+        int thread = collapsedStacks.frameDictionary.getId("worker-0");
+        int node = collapsedStacks.stackTrie.getChild(collapsedStacks.stackTrie.getChild(StackTrie.ROOT, thread), collapsedStacks.frameDictionary.getId("A.run"));
+        assertEquals(1, accessLogBatch.findRequests(thread, LOG_DATE));
+        accessLogBatch.add(EventType.WALL, node, 1);
+        accessLogBatch.add(EventType.ALLOC, node, 64);
+        accessLogBatch.add(EventType.LOCK, node, 1);
+
+        Path dir = folder.newFolder().toPath();
+        accessLogBatch.saveFiles(dir, EventSelection.parse("alloc,lock"), OutputCompression.NONE);
+
+        assertFalse(Files.exists(dir.resolve("line-1.wall.collapsed")));
+        assertFalse(Files.exists(dir.resolve("line-1.cpu.collapsed")));
+        assertEquals("worker-0;A.run 1\n", read(dir.resolve("line-1.alloc.count.collapsed")));
+        assertEquals("worker-0;A.run 64\n", read(dir.resolve("line-1.alloc.size.collapsed")));
+        assertEquals("worker-0;A.run 1\n", read(dir.resolve("line-1.lock.collapsed")));
+        assertEquals("line 1 [worker-0] [2000 ms] [GET /a HTTP/1.1]\n", read(dir.resolve("requests.txt")));
+    }
+
+    private Path accessLog(String... lines) throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, Arrays.asList(lines), StandardCharsets.UTF_8);
+        return file;
+    }
+
+    private static EventArrays loadRecording() throws Exception {
+        try (InputStream input = AccessLogBatchTest.class.getResourceAsStream("/wall-lock-alloc.jfr")) {
+            return FlightRecordingLoader.loadStream(input, false, false);
+        }
+    }
+
+    private static long countWallEvents(EventArrays flightRecording, String thread) {
+        long events = 0;
+        for (EventArray eventArray : flightRecording.getArrays()) {
+            if (!JfrParser.isAsyncWallEvent(eventArray)) {
+                continue;
+            }
+            IMemberAccessor<IMCThread, IItem> threadAccessor = JfrAttributes.EVENT_THREAD.getAccessor(eventArray.getType());
+            for (IItem event : eventArray.getEvents()) {
+                if (threadAccessor.getMember(event).getThreadName().equals(thread)) {
+                    events++;
+                }
+            }
+        }
+        return events;
+    }
+
+    private static long sum(Path collapsedFile) throws IOException {
+        long sum = 0;
+        for (String line : Files.readAllLines(collapsedFile, StandardCharsets.UTF_8)) {
+            sum += Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+        }
+        return sum;
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class BinaryStacksFormatTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsWrittenStacks() throws Exception {
+        readsWrittenStacks("stacks.bin");
+    }
+
+    @Test
+    public void readsWrittenGzipStacks() throws Exception {
+        readsWrittenStacks("stacks.bin.gz");
+    }
+
+    private void readsWrittenStacks(String fileName) throws Exception {
+        GeneratedStacks generated = GeneratedStacks.generate(7, 5000, 10_000);
+        CollapsedStacks collapsedStacks = new CollapsedStacks();
+        generated.addTo(collapsedStacks);
+
+        Path file = folder.getRoot().toPath().resolve(fileName);
+        try (OutputStream output = fileName.endsWith(".gz") ? new GZIPOutputStream(Files.newOutputStream(file)) : Files.newOutputStream(file)) {
+            BinaryStacksFormat.write(collapsedStacks, output);
+        }
+        CollapsedStacks read = BinaryStacksFormat.read(file);
+
+        for (StackCounter counter : StackCounter.values()) {
+            assertEquals(generated.expected(counter), GeneratedStacks.written(read, counter));
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The recording was made by async-profiler with wall, alloc and lock events of two threads, worker-0 and
+ * worker-1, which synchronize on one lock.
+ */
+public class CollapseJfrConverterTest {
+    private static final String RECORDING = "/wall-lock-alloc.jfr";
+
+    @Test
+    public void convertsRecording() throws Exception {
+        CollapseJfrResult result = new CollapseJfrConverter().convert(getRecording());
+
+        assertEquals(1128, result.getTotal(StackCounter.WALL));
+        assertEquals(139, result.getTotal(StackCounter.CPU));
+        assertEquals(29, result.getTotal(StackCounter.ALLOC_COUNT));
+        assertEquals(116, result.getTotal(StackCounter.LOCK));
+        for (StackCounter counter : StackCounter.values()) {
+            Map<String, Long> stacks = getStacks(result, counter);
+            assertEquals(result.getStackCount(counter), stacks.size());
+            assertEquals(result.getTotal(counter), stacks.values().stream().mapToLong(Long::longValue).sum());
+            assertEquals(stacks, getWrittenStacks(result, counter));
+        }
+        for (String stack : getStacks(result, StackCounter.LOCK).keySet()) {
+            assertTrue(stack, stack.startsWith("worker-0;") || stack.startsWith("worker-1;"));
+        }
+    }
+
+    @Test
+    public void convertsGzipStreamLikeFile() throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream output = new GZIPOutputStream(compressed)) {
+            Files.copy(getRecording(), output);
+        }
+        CollapseJfrResult fromFile = new CollapseJfrConverter().convert(getRecording());
+        CollapseJfrResult fromStream;
+        try (InputStream input = new ByteArrayInputStream(compressed.toByteArray())) {
+            fromStream = new CollapseJfrConverter().convert(input);
+        }
+
+        for (StackCounter counter : StackCounter.values()) {
+            assertEquals(getStacks(fromFile, counter), getStacks(fromStream, counter));
+        }
+    }
+
+    @Test
+    public void sumsFiles() throws Exception {
+        CollapseJfrResult once = new CollapseJfrConverter().convert(getRecording());
+        CollapseJfrResult twice = new CollapseJfrConverter().convert(Arrays.asList(getRecording(), getRecording()));
+
+        for (StackCounter counter : StackCounter.values()) {
+            Map<String, Long> doubled = new HashMap<>();
+            getStacks(once, counter).forEach((stack, value) -> doubled.put(stack, value * 2));
+            assertEquals(doubled, getStacks(twice, counter));
+        }
+    }
+
+    @Test
+    public void filtersThreadAndEvents() throws Exception {
+        CollapseJfrResult all = new CollapseJfrConverter().convert(getRecording());
+        CollapseJfrResult filtered = new CollapseJfrConverter()
+                .withThread("Worker-0")
+                .withEvents(EventType.WALL)
+                .convert(getRecording());
+
+        Map<String, Long> expected = new HashMap<>();
+        getStacks(all, StackCounter.WALL).forEach((stack, value) -> {
+            if (stack.startsWith("worker-0;")) {
+                expected.put(stack, value);
+            }
+        });
+        assertEquals(expected, getStacks(filtered, StackCounter.WALL));
+        for (StackCounter counter : Arrays.asList(StackCounter.CPU, StackCounter.ALLOC_COUNT, StackCounter.ALLOC_SIZE, StackCounter.LOCK)) {
+            assertEquals(0, filtered.getStackCount(counter));
+        }
+    }
+
+    @Test
+    public void concurrentConversionsAreIsolated() throws Exception {
+        CollapseJfrConverter wallOfWorker0 = new CollapseJfrConverter().withThread("worker-0").withEvents(EventType.WALL);
+        CollapseJfrConverter lockAndAllocOfWorker1 = new CollapseJfrConverter().withThread("worker-1").withEvents(EventType.LOCK, EventType.ALLOC);
+        List<Map<String, Long>> expected = Arrays.asList(
+                getAllStacks(wallOfWorker0.convert(getRecording())),
+                getAllStacks(lockAndAllocOfWorker1.convert(getRecording()))
+        );
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Map<String, Long>>> results = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                CollapseJfrConverter converter = i % 2 == 0 ? wallOfWorker0 : lockAndAllocOfWorker1;
+                results.add(executor.submit(() -> getAllStacks(converter.convert(getRecording()))));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals(expected.get(i % 2), results.get(i).get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Path getRecording() throws URISyntaxException {
+        return Paths.get(CollapseJfrConverterTest.class.getResource(RECORDING).toURI());
+    }
+
+    private static Map<String, Long> getStacks(CollapseJfrResult result, StackCounter counter) throws IOException {
+        Map<String, Long> stacks = new HashMap<>();
+        result.forEachStack(counter, (stack, value) -> assertNull("Duplicate stack " + stack, stacks.put(stack, value)));
+        return stacks;
+    }
+
+    /**
+     * @return stacks of all the counters, keyed by the counter and the stack
+     */
+    private static Map<String, Long> getAllStacks(CollapseJfrResult result) throws IOException {
+        Map<String, Long> stacks = new HashMap<>();
+        for (StackCounter counter : StackCounter.values()) {
+            getStacks(result, counter).forEach((stack, value) -> stacks.put(counter + " " + stack, value));
+        }
+        return stacks;
+    }
+
+    private static Map<String, Long> getWrittenStacks(CollapseJfrResult result, StackCounter counter) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        result.write(counter, output);
+        Map<String, Long> stacks = new HashMap<>();
+        for (String line : new String(output.toByteArray(), StandardCharsets.UTF_8).split("\n")) {
+            if (!line.isEmpty()) {
+                int separator = line.lastIndexOf(' ');
+                stacks.put(line.substring(0, separator), Long.parseLong(line.substring(separator + 1)));
+            }
+        }
+        return stacks;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CollapsedFilesMergerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void mergesFilesWithTheSameName() throws Exception {
+        Path inputDir = folder.newFolder("input").toPath();
+        Map<String, Long> expectedWall = new HashMap<>();
+        Map<String, Long> expectedLock = new HashMap<>();
+        Random random = new Random(19);
+        for (int host = 0; host < 5; host++) {
+            Path hostDir = Files.createDirectories(inputDir.resolve("host-" + host));
+            boolean gzip = host % 2 == 1;
+            write(hostDir.resolve(gzip ? "wall.collapsed.gz" : "wall.collapsed"), generate(random, 300, expectedWall), gzip);
+            write(hostDir.resolve("lock.collapsed"), generate(random, 100, expectedLock), false);
+        }
+        Path outputDir = folder.newFolder("output").toPath();
+
+        // small node limit, so every file is spilled to many runs
+        CollapsedFilesMerger.merge(inputDir, outputDir, 3, 64, OutputCompression.NONE);
+
+        assertEquals(expectedWall, read(outputDir.resolve("wall.collapsed")));
+        assertEquals(expectedLock, read(outputDir.resolve("lock.collapsed")));
+        try (Stream<Path> files = Files.list(outputDir)) {
+            assertEquals(2, files.count());
+        }
+    }
+
+    @Test
+    public void skipsMalformedLinesAndOutputsOfEarlierMerges() throws Exception {
+        Path inputDir = folder.newFolder("input").toPath();
+        Path outputDir = Files.createDirectories(inputDir.resolve("merged"));
+        write(inputDir.resolve("wall.collapsed"), Arrays.asList("a;b 2", "a;b;c 1", "no-count", "a;b x", "a;zero 0", "a;b 3"), false);
+        write(outputDir.resolve("wall.collapsed"), Arrays.asList("old;merge 100"), false);
+
+        CollapsedFilesMerger.merge(inputDir, outputDir, 1, 1024, OutputCompression.NONE);
+
+        Map<String, Long> expected = new HashMap<>();
+        expected.put("a;b", 5L);
+        expected.put("a;b;c", 1L);
+        assertEquals(expected, read(outputDir.resolve("wall.collapsed")));
+        assertFalse(Files.exists(outputDir.resolve("wall.collapsed.gz")));
+        assertTrue(Files.exists(inputDir.resolve("wall.collapsed")));
+    }
+
+    private static List<String> generate(Random random, int count, Map<String, Long> expected) {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            StringBuilder stack = new StringBuilder("thread-" + random.nextInt(3));
+            int depth = 1 + random.nextInt(8);
+            for (int level = 0; level < depth; level++) {
+                stack.append(";frame-").append(random.nextInt(6));
+            }
+            long value = 1 + random.nextInt(100);
+            expected.merge(stack.toString(), value, Long::sum);
+            lines.add(stack + " " + value);
+        }
+        return lines;
+    }
+
+    private static void write(Path file, List<String> lines, boolean gzip) throws IOException {
+        byte[] bytes = (String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8);
+        try (OutputStream output = gzip ? new GZIPOutputStream(Files.newOutputStream(file)) : Files.newOutputStream(file)) {
+            output.write(bytes);
+        }
+    }
+
+    private static Map<String, Long> read(Path file) throws IOException {
+        Map<String, Long> stacks = new HashMap<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            int countStart = line.lastIndexOf(' ');
+            assertNull("Duplicate line " + line, stacks.put(line.substring(0, countStart), Long.parseLong(line.substring(countStart + 1))));
+        }
+        return stacks;
+    }
+}
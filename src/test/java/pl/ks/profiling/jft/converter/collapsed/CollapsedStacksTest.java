@@ -0,0 +1,164 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CollapsedStacksTest {
+    @Test
+    public void aggregatesLikeMap() throws Exception {
+        for (int seed = 0; seed < 10; seed++) {
+            GeneratedStacks generated = GeneratedStacks.generate(seed, 5000, 10_000);
+            CollapsedStacks collapsedStacks = new CollapsedStacks();
+            generated.addTo(collapsedStacks);
+
+            for (StackCounter counter : StackCounter.values()) {
+                Map<String, Long> expected = generated.expected(counter);
+                assertEquals(expected, GeneratedStacks.written(collapsedStacks, counter));
+                assertEquals(expected.size(), collapsedStacks.size(counter));
+                assertEquals(expected.values().stream().mapToLong(Long::longValue).sum(), collapsedStacks.sum(counter));
+            }
+        }
+    }
+
+    /**
+     * Deep stacks sharing their outer frames, like stacks of a real application. The map is costed like
+     * {@link FrameDictionary#estimatedBytes} but with one byte per char, as compact strings are the best case for
+     * it.
+     */
+    @Test
+    public void takesLessMemoryThanStringKeyedMap() {
+        Random random = new Random(1);
+        CollapsedStacks collapsedStacks = new CollapsedStacks();
+        Map<String, Long> map = new HashMap<>();
+        String[] frames = new String[40];
+        for (int i = 0; i < 20_000; i++) {
+            frames[0] = "thread-" + random.nextInt(8);
+            int frame = 0;
+            for (int level = 1; level < frames.length; level++) {
+                frame = (frame * 3 + (level < frames.length / 2 ? 0 : random.nextInt(3))) % 500;
+                frames[level] = "org/example/service/Class" + frame + ".method" + level;
+            }
+            int node = StackTrie.ROOT;
+            for (String name : frames) {
+                node = collapsedStacks.stackTrie.getChild(node, collapsedStacks.frameDictionary.getId(name));
+            }
+            collapsedStacks.add(0, StackCounter.WALL, node, 1);
+            map.merge(String.join(";", frames), 1L, Long::sum);
+        }
+
+        long mapBytes = 0;
+        for (String stack : map.keySet()) {
+            // String header, byte[] header and content, map entry and the boxed count
+            mapBytes += 40 + stack.length() + 48 + 16;
+        }
+        assertEquals(map.size(), collapsedStacks.size(StackCounter.WALL));
+        assertTrue(collapsedStacks.estimatedBytes() + " vs " + mapBytes, collapsedStacks.estimatedBytes() * 2 < mapBytes);
+    }
+
+    @Test
+    public void emptyAggregateWritesNothing() throws Exception {
+        CollapsedStacks collapsedStacks = new CollapsedStacks();
+        for (StackCounter counter : StackCounter.values()) {
+            assertEquals(Collections.emptyMap(), GeneratedStacks.written(collapsedStacks, counter));
+        }
+    }
+
+    @Test
+    public void mergeEqualsOneAggregate() throws Exception {
+        GeneratedStacks generated = GeneratedStacks.generate(1, 6000, 10_000);
+        CollapsedStacks whole = new CollapsedStacks();
+        generated.addTo(whole);
+
+        CollapsedStacks merged = new CollapsedStacks();
+        for (GeneratedStacks part : generated.split(3)) {
+            CollapsedStacks partStacks = new CollapsedStacks();
+            part.addTo(partStacks);
+            merged.merge(partStacks);
+        }
+
+        for (StackCounter counter : StackCounter.values()) {
+            assertEquals(generated.expected(counter), GeneratedStacks.written(merged, counter));
+        }
+        assertEquals(whole.stackTrie.size(), merged.stackTrie.size());
+    }
+
+    @Test
+    public void trimsWarmUpAndCoolDownOfWholeRange() throws Exception {
+        GeneratedStacks generated = GeneratedStacks.generate(3, 8000, 20_000);
+        List<GeneratedStacks> parts = generated.split(2);
+        CollapsedStacks first = new CollapsedStacks(2, 3);
+        CollapsedStacks second = new CollapsedStacks(2, 3);
+        parts.get(0).addTo(first);
+        parts.get(1).addTo(second);
+        WarmUpCoolDownTrimmer.finish(Arrays.asList(first.trimmer, second.trimmer));
+        CollapsedStacks merged = new CollapsedStacks();
+        merged.merge(first);
+        merged.merge(second);
+
+        long min = generated.events.stream().mapToLong(event -> event.timestamp).min().getAsLong();
+        long max = generated.events.stream().mapToLong(event -> event.timestamp).max().getAsLong();
+        for (StackCounter counter : StackCounter.values()) {
+            Map<String, Long> expected = generated.expected(counter, event -> event.timestamp >= min + 2000 && event.timestamp <= max - 3000);
+            assertEquals(expected, GeneratedStacks.written(merged, counter));
+        }
+    }
+
+    @Test
+    public void parallelMergeTrimsWarmUpAndCoolDownOfWholeRange() throws Exception {
+        GeneratedStacks generated = GeneratedStacks.generate(4, 8000, 20_000);
+        ParallelResultMerger merger = new ParallelResultMerger(1);
+        for (GeneratedStacks part : generated.split(4)) {
+            CollapsedStacks partStacks = new CollapsedStacks(2, 3);
+            part.addTo(partStacks);
+            merger.awaitCapacity();
+            merger.add(CompletableFuture.completedFuture(partStacks));
+        }
+        CollapsedStacks merged = merger.finish();
+
+        long min = generated.events.stream().mapToLong(event -> event.timestamp).min().getAsLong();
+        long max = generated.events.stream().mapToLong(event -> event.timestamp).max().getAsLong();
+        for (StackCounter counter : StackCounter.values()) {
+            Map<String, Long> expected = generated.expected(counter, event -> event.timestamp >= min + 2000 && event.timestamp <= max - 3000);
+            assertEquals(expected, GeneratedStacks.written(merged, counter));
+        }
+    }
+
+    @Test
+    public void copyThreadsKeepsAcceptedThreads() throws Exception {
+        GeneratedStacks generated = GeneratedStacks.generate(2, 5000, 10_000);
+        CollapsedStacks collapsedStacks = new CollapsedStacks();
+        generated.addTo(collapsedStacks);
+
+        CollapsedStacks copy = collapsedStacks.copyThreads(thread -> thread.equals("thread-1") || thread.equals("thread-3"));
+
+        for (StackCounter counter : StackCounter.values()) {
+            Map<String, Long> expected = generated.expected(counter, event -> event.frames[0].equals("thread-1") || event.frames[0].equals("thread-3"));
+            assertEquals(expected, GeneratedStacks.written(copy, counter));
+        }
+    }
+}
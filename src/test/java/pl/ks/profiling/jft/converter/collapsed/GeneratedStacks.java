@@ -0,0 +1,153 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.assertNull;
+
+/**
+ * Random events with stacks from a small set of frames, so stacks share prefixes and repeat, and a simple map based
+ * aggregation of them to compare the stack trie paths with.
+ */
+class GeneratedStacks {
+    static final long START_TIMESTAMP = 1_600_000_000_000L;
+
+    final List<Event> events = new ArrayList<>();
+
+    static class Event {
+        final long timestamp;
+        final String[] frames;
+        final EventType eventType;
+        final long value;
+
+        Event(long timestamp, String[] frames, EventType eventType, long value) {
+            this.timestamp = timestamp;
+            this.frames = frames;
+            this.eventType = eventType;
+            this.value = value;
+        }
+
+        String getStack() {
+            return String.join(";", frames);
+        }
+    }
+
+    /**
+     * @param durationMs events are spread over this time, not in timestamp order
+     */
+    static GeneratedStacks generate(long seed, int count, long durationMs) {
+        Random random = new Random(seed);
+        GeneratedStacks generated = new GeneratedStacks();
+        EventType[] eventTypes = EventType.values();
+        for (int i = 0; i < count; i++) {
+            int depth = 1 + random.nextInt(10);
+            String[] frames = new String[depth + 1];
+            frames[0] = "thread-" + random.nextInt(4);
+            for (int level = 1; level <= depth; level++) {
+                // few frames near the root and more deeper, with a rare one, like real stacks
+                int frame = random.nextInt(level < 3 ? 3 : 8);
+                frames[level] = "pkg/Class" + frame + ".method" + (random.nextInt(50) == 0 ? "Rare" + random.nextInt(100) : "");
+            }
+            // mostly increasing timestamps with some jitter back
+            long timestamp = START_TIMESTAMP + i * durationMs / count - random.nextInt(50);
+            EventType eventType = eventTypes[random.nextInt(eventTypes.length)];
+            long value = eventType == EventType.ALLOC ? random.nextInt(3) * 1024 : 1;
+            generated.events.add(new Event(timestamp, frames, eventType, value));
+        }
+        return generated;
+    }
+
+    List<GeneratedStacks> split(int parts) {
+        List<GeneratedStacks> split = new ArrayList<>();
+        for (int part = 0; part < parts; part++) {
+            split.add(new GeneratedStacks());
+        }
+        for (int i = 0; i < events.size(); i++) {
+            split.get(i * parts / events.size()).events.add(events.get(i));
+        }
+        return split;
+    }
+
+    /**
+     * Adds the events the way the parser does, the timestamp is recorded before the stack is looked up.
+     */
+    void addTo(CollapsedStacks collapsedStacks) {
+        for (Event event : events) {
+            collapsedStacks.recordTimestamp(event.timestamp);
+            int node = StackTrie.ROOT;
+            for (String frame : event.frames) {
+                node = collapsedStacks.stackTrie.getChild(node, collapsedStacks.frameDictionary.getId(frame));
+            }
+            collapsedStacks.add(event.timestamp, event.eventType, node, event.value);
+        }
+    }
+
+    Map<String, Long> expected(StackCounter counter) {
+        return expected(counter, event -> true);
+    }
+
+    /**
+     * @return values of the counter by stack, a stack is present if an event of its counter type was recorded
+     */
+    Map<String, Long> expected(StackCounter counter, Predicate<Event> filter) {
+        Map<String, Long> expected = new HashMap<>();
+        for (Event event : events) {
+            if (filter.test(event) && getEventType(counter) == event.eventType) {
+                long value = counter == StackCounter.ALLOC_SIZE ? event.value : 1;
+                expected.merge(event.getStack(), value, Long::sum);
+            }
+        }
+        return expected;
+    }
+
+    static EventType getEventType(StackCounter counter) {
+        switch (counter) {
+            case WALL:
+                return EventType.WALL;
+            case CPU:
+                return EventType.CPU;
+            case ALLOC_COUNT:
+            case ALLOC_SIZE:
+                return EventType.ALLOC;
+            default:
+                return EventType.LOCK;
+        }
+    }
+
+    /**
+     * @return stacks written by {@link CollapsedStackWriter}, every stack must be written once
+     */
+    static Map<String, Long> written(CollapsedStacks collapsedStacks, StackCounter counter) throws IOException {
+        StringWriter output = new StringWriter();
+        CollapsedStackWriter.write(output, collapsedStacks, counter);
+        Map<String, Long> written = new HashMap<>();
+        for (String line : output.toString().split("\n")) {
+            if (!line.isEmpty()) {
+                int separator = line.lastIndexOf(' ');
+                assertNull("Duplicate stack " + line, written.put(line.substring(0, separator), Long.parseLong(line.substring(separator + 1))));
+            }
+        }
+        return written;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IncrementalStateTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void savedStateIsLoadedWithItsRecordings() throws Exception {
+        Path stateFile = folder.getRoot().toPath().resolve("collapse.state");
+        Path first = folder.newFile("first.jfr").toPath();
+        Path second = folder.newFile("second.jfr").toPath();
+        GeneratedStacks generated = GeneratedStacks.generate(20, 2_000, 1_000);
+
+        IncrementalState state = IncrementalState.load(stateFile, StackNormalizer.NONE);
+        assertEquals(Arrays.asList(first, second), state.getNewFiles(Arrays.asList(first, second)));
+        state.add(first, createCollapsedStacks(generated));
+        state.save();
+
+        IncrementalState loaded = IncrementalState.load(stateFile, StackNormalizer.NONE);
+        assertEquals(Collections.singletonList(second), loaded.getNewFiles(Arrays.asList(first, second)));
+        for (StackCounter counter : StackCounter.values()) {
+            assertEquals(generated.expected(counter), GeneratedStacks.written(loaded.getCollapsedStacks(), counter));
+        }
+    }
+
+    @Test
+    public void stateWithoutManifestIsRejected() throws Exception {
+        Path stateFile = createSavedState();
+        Files.delete(stateFile.resolveSibling("collapse.state.manifest"));
+
+        assertRejected(stateFile, "Found only one of");
+    }
+
+    @Test
+    public void saveInterruptedBeforeManifestIsRejected() throws Exception {
+        Path stateFile = createSavedState();
+        Path manifestFile = stateFile.resolveSibling("collapse.state.manifest");
+        Path oldManifestFile = folder.getRoot().toPath().resolve("old.manifest");
+        Files.copy(manifestFile, oldManifestFile);
+
+        IncrementalState state = IncrementalState.load(stateFile, StackNormalizer.NONE);
+        state.add(folder.newFile("second.jfr").toPath(), createCollapsedStacks(GeneratedStacks.generate(22, 2_000, 1_000)));
+        state.save();
+        // the new state is in place, the process died before the manifest was replaced
+        Files.move(oldManifestFile, manifestFile, StandardCopyOption.REPLACE_EXISTING);
+
+        assertRejected(stateFile, "does not match its manifest");
+    }
+
+    @Test
+    public void stateOfOtherRulesIsRejected() throws Exception {
+        Path stateFile = createSavedState();
+
+        assertRejected(stateFile, "other stack normalization rules", StackNormalizer.load("default"));
+    }
+
+    private Path createSavedState() throws Exception {
+        Path stateFile = folder.getRoot().toPath().resolve("collapse.state");
+        IncrementalState state = IncrementalState.load(stateFile, StackNormalizer.NONE);
+        state.add(folder.newFile("first.jfr").toPath(), createCollapsedStacks(GeneratedStacks.generate(21, 2_000, 1_000)));
+        state.save();
+        return stateFile;
+    }
+
+    private static void assertRejected(Path stateFile, String message) throws Exception {
+        assertRejected(stateFile, message, StackNormalizer.NONE);
+    }
+
+    private static void assertRejected(Path stateFile, String message, StackNormalizer stackNormalizer) throws Exception {
+        try {
+            IncrementalState.load(stateFile, stackNormalizer);
+            fail("State loaded: " + stateFile);
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    private static CollapsedStacks createCollapsedStacks(GeneratedStacks generated) {
+        CollapsedStacks collapsedStacks = new CollapsedStacks();
+        generated.addTo(collapsedStacks);
+        return collapsedStacks;
+    }
+}
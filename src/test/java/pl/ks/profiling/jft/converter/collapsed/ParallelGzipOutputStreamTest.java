@@ -0,0 +1,146 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelGzipOutputStreamTest {
+    private static final int BLOCK_SIZE = 1024 * 1024;
+
+    @Test
+    public void roundTripsManyBlocks() throws Exception {
+        byte[] data = generate(5 * BLOCK_SIZE + 12345);
+        for (int level : new int[]{0, 1, 6, 9}) {
+            byte[] compressed = compress(data, level, 4);
+            byte[] expected = compressWithJavaUtilZip(data, level);
+
+            assertArrayEquals("level " + level, data, decompress(compressed));
+            assertArrayEquals("level " + level, data, decompress(expected));
+            // every block is a separate member, so the ratio can be only a bit worse than of one stream
+            assertTrue("level " + level + ": " + compressed.length + " vs " + expected.length, compressed.length <= expected.length * 1.05 + 1024);
+        }
+    }
+
+    @Test
+    public void roundTripsBlockBoundaries() throws Exception {
+        for (int size : new int[]{0, 1, BLOCK_SIZE - 1, BLOCK_SIZE, BLOCK_SIZE + 1, 2 * BLOCK_SIZE}) {
+            byte[] data = generate(size);
+            assertArrayEquals("size " + size, data, decompress(compress(data, 6, 2)));
+        }
+    }
+
+    @Test
+    public void higherLevelCompressesBetter() throws Exception {
+        byte[] data = generate(3 * BLOCK_SIZE);
+        int stored = compress(data, 0, 2).length;
+        int fast = compress(data, 1, 2).length;
+        int best = compress(data, 9, 2).length;
+
+        assertTrue(stored > data.length);
+        assertTrue(fast < stored);
+        assertTrue(best <= fast);
+    }
+
+    @Test
+    public void compressionLevelOutsideRangeIsRejected() {
+        assertEquals(0, ArgumentsParser.parse(new String[]{"-z", "0"}).compressionLevel);
+        assertEquals(9, ArgumentsParser.parse(new String[]{"-z", "9"}).compressionLevel);
+        for (String level : new String[]{"-1", "10"}) {
+            try {
+                ArgumentsParser.parse(new String[]{"-z", level});
+                throw new AssertionError("Level " + level + " accepted");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains(level));
+            }
+        }
+    }
+
+    /**
+     * Collapsed stack like lines, compressible but not trivially.
+     */
+    private static byte[] generate(int size) {
+        Random random = new Random(size);
+        StringBuilder builder = new StringBuilder(size + 100);
+        while (builder.length() < size) {
+            builder.append("thread-").append(random.nextInt(8));
+            int depth = 1 + random.nextInt(20);
+            for (int level = 0; level < depth; level++) {
+                builder.append(";pl/ks/Class").append(random.nextInt(50)).append(".method").append(random.nextInt(10));
+            }
+            builder.append(' ').append(random.nextInt(100000)).append('\n');
+        }
+        return builder.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Writes with single bytes and arrays of random lengths, crossing block boundaries.
+     */
+    private static byte[] compress(byte[] data, int level, int threads) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        Random random = new Random(level);
+        try (OutputStream output = new ParallelGzipOutputStream(compressed, level, threads)) {
+            int position = 0;
+            while (position < data.length) {
+                if (random.nextInt(10) == 0) {
+                    output.write(data[position++]);
+                    continue;
+                }
+                int length = Math.min(data.length - position, random.nextInt(300_000));
+                output.write(data, position, length);
+                position += length;
+            }
+        }
+        return compressed.toByteArray();
+    }
+
+    private static byte[] compressWithJavaUtilZip(byte[] data, int level) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream output = new GZIPOutputStream(compressed) {
+            {
+                def.setLevel(level);
+            }
+        }) {
+            output.write(data);
+        }
+        return compressed.toByteArray();
+    }
+
+    private static byte[] decompress(byte[] compressed) throws IOException {
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        try (InputStream input = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = input.read(buffer)) >= 0) {
+                decompressed.write(buffer, 0, read);
+            }
+        }
+        return decompressed.toByteArray();
+    }
+}
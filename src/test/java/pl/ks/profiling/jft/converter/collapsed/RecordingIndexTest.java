@@ -0,0 +1,110 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RecordingIndexTest {
+    private static final long MODIFIED = 1_600_000_000_000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void savedIndexIsReadBack() throws Exception {
+        GeneratedStacks generated = GeneratedStacks.generate(10, 5_000, 10_000);
+        Path recording = createRecording(new byte[100]);
+        RecordingIndex.of(createCollapsedStacks(generated), StackNormalizer.NONE).save(recording);
+
+        assertTrue(RecordingIndex.isUpToDate(recording, StackNormalizer.NONE));
+        RecordingIndex index = RecordingIndex.read(RecordingIndex.getIndexFile(recording));
+        CollapsedStacks collapsedStacks = new CollapsedStacks();
+        index.addTo(collapsedStacks, null, null);
+        for (StackCounter counter : StackCounter.values()) {
+            assertEquals(generated.expected(counter), GeneratedStacks.written(collapsedStacks, counter));
+        }
+    }
+
+    @Test
+    public void indexIsNotUpToDateWhenRecordingSizeChanges() throws Exception {
+        Path recording = createIndexedRecording(StackNormalizer.NONE);
+        Files.write(recording, new byte[101]);
+        Files.setLastModifiedTime(recording, FileTime.fromMillis(MODIFIED));
+
+        assertFalse(RecordingIndex.isUpToDate(recording, StackNormalizer.NONE));
+    }
+
+    @Test
+    public void indexIsNotUpToDateWhenRecordingModificationTimeChanges() throws Exception {
+        Path recording = createIndexedRecording(StackNormalizer.NONE);
+        Files.setLastModifiedTime(recording, FileTime.fromMillis(MODIFIED - 1000));
+        assertFalse(RecordingIndex.isUpToDate(recording, StackNormalizer.NONE));
+
+        Files.setLastModifiedTime(recording, FileTime.fromMillis(MODIFIED + 1000));
+        assertFalse(RecordingIndex.isUpToDate(recording, StackNormalizer.NONE));
+    }
+
+    @Test
+    public void indexIsNotUpToDateWhenNormalizationRulesChange() throws Exception {
+        StackNormalizer defaultRules = StackNormalizer.load("default");
+        Path recording = createIndexedRecording(defaultRules);
+
+        assertTrue(RecordingIndex.isUpToDate(recording, defaultRules));
+        assertTrue(RecordingIndex.isUpToDate(recording, StackNormalizer.load("default")));
+        assertFalse(RecordingIndex.isUpToDate(recording, StackNormalizer.NONE));
+        Path rules = folder.newFile("rules.txt").toPath();
+        Files.write(rules, "max-depth 3\n".getBytes());
+        assertFalse(RecordingIndex.isUpToDate(recording, StackNormalizer.load(rules.toString())));
+    }
+
+    @Test
+    public void missingOrInvalidIndexIsNotUpToDate() throws Exception {
+        Path recording = createRecording(new byte[100]);
+        assertFalse(RecordingIndex.isUpToDate(recording, StackNormalizer.NONE));
+
+        Files.write(RecordingIndex.getIndexFile(recording), "CJFI".getBytes());
+        assertFalse(RecordingIndex.isUpToDate(recording, StackNormalizer.NONE));
+    }
+
+    private Path createIndexedRecording(StackNormalizer stackNormalizer) throws Exception {
+        Path recording = createRecording(new byte[100]);
+        RecordingIndex.of(createCollapsedStacks(GeneratedStacks.generate(11, 100, 1_000)), stackNormalizer).save(recording);
+        return recording;
+    }
+
+    private Path createRecording(byte[] content) throws Exception {
+        Path recording = folder.getRoot().toPath().resolve("recording.jfr");
+        Files.write(recording, content);
+        Files.setLastModifiedTime(recording, FileTime.fromMillis(MODIFIED));
+        return recording;
+    }
+
+    private static CollapsedStacks createCollapsedStacks(GeneratedStacks generated) {
+        CollapsedStacks collapsedStacks = new CollapsedStacks(0, 0, 100);
+        generated.addTo(collapsedStacks);
+        return collapsedStacks;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SpilledStacksTest {
+    @Test
+    public void mergedRunsEqualInMemoryAggregation() throws Exception {
+        GeneratedStacks generated = GeneratedStacks.generate(6, 20_000, 10_000);
+        Path dir = SpilledStacks.createDir();
+        // small enough for more runs than can be merged at once
+        CollapsedStacks collapsedStacks = new CollapsedStacks(0, 0, 0, 50, dir);
+        generated.addTo(collapsedStacks);
+        collapsedStacks.spillAll();
+        assertTrue(collapsedStacks.spilledStacks.getRunCount() > SpilledStacks.MAX_MERGE_RUNS);
+
+        List<Map<String, Long>> merged = new ArrayList<>();
+        for (StackCounter ignored : StackCounter.values()) {
+            merged.add(new HashMap<>());
+        }
+        List<String> order = new ArrayList<>();
+        List<String> progress = new ArrayList<>();
+        collapsedStacks.spilledStacks.merge((frames, depth, values) -> {
+            String stack = String.join(";", Arrays.copyOf(frames, depth));
+            order.add(stack);
+            for (StackCounter counter : StackCounter.values()) {
+                if (values[counter.getPresenceCounter().ordinal()] != 0) {
+                    assertNull("Duplicate stack " + stack, merged.get(counter.ordinal()).put(stack, values[counter.ordinal()]));
+                }
+            }
+        }, progress::add);
+        collapsedStacks.spilledStacks.delete();
+
+        for (StackCounter counter : StackCounter.values()) {
+            assertEquals(generated.expected(counter), merged.get(counter.ordinal()));
+        }
+        for (int i = 1; i < order.size(); i++) {
+            assertTrue(order.get(i - 1) + " before " + order.get(i), compareFrames(order.get(i - 1), order.get(i)) < 0);
+        }
+        assertFalse(progress.isEmpty());
+        assertTrue(progress.get(0), progress.get(0).startsWith("Merged "));
+        assertFalse(Files.exists(dir) && Files.list(dir).findAny().isPresent());
+    }
+
+    private static int compareFrames(String first, String second) {
+        String[] firstFrames = first.split(";");
+        String[] secondFrames = second.split(";");
+        for (int i = 0; i < Math.min(firstFrames.length, secondFrames.length); i++) {
+            int result = firstFrames[i].compareTo(secondFrames[i]);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return Integer.compare(firstFrames.length, secondFrames.length);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+public class StackNormalizerTest {
+    private static final int A = 1;
+    private static final int B = 2;
+    private static final int C = 3;
+    private static final int X = StackNormalizer.EXCLUDED;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void skipsCommentsAndEmptyLines() throws Exception {
+        StackNormalizer stackNormalizer = load("# comment", "", "  max-depth   2  ");
+
+        assertArrayEquals(new int[]{A, B}, stackNormalizer.normalizeStack(new int[]{A, B, C}));
+        assertEquals(load("max-depth 2").getRulesHash(), stackNormalizer.getRulesHash());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownRule() throws Exception {
+        load("collapse-everything");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsRuleWithWrongArguments() throws Exception {
+        load("rename onlyPattern");
+    }
+
+    @Test
+    public void rulesHashDependsOnRules() throws Exception {
+        assertEquals(0, StackNormalizer.NONE.getRulesHash());
+        assertEquals(load("collapse-recursion").getRulesHash(), load("collapse-recursion").getRulesHash());
+        assertNotEquals(load("collapse-recursion").getRulesHash(), load("collapse-direct-recursion").getRulesHash());
+    }
+
+    @Test
+    public void renamesWithGroupsAndEscapedDollar() throws Exception {
+        StackNormalizer stackNormalizer = load("rename Foo([0-9]+) Bar$1", "rename \\$\\$Lambda\\$[0-9]+ \\$\\$Lambda");
+
+        assertEquals("pl/ks/Bar12.run", stackNormalizer.normalizeFrame("pl/ks/Foo12.run"));
+        assertEquals("pl/ks/Main$$Lambda/0x1.run", stackNormalizer.normalizeFrame("pl/ks/Main$$Lambda$35/0x1.run"));
+    }
+
+    @Test
+    public void defaultRulesMaskGeneratedClassNames() throws Exception {
+        StackNormalizer stackNormalizer = StackNormalizer.load(StackNormalizer.DEFAULT_RULES);
+
+        assertEquals("pl/ks/Main$$Lambda.run", stackNormalizer.normalizeFrame("pl/ks/Main$$Lambda$35/0x0000000800c03000.run"));
+        assertEquals("jdk/proxy/$Proxy.invoke", stackNormalizer.normalizeFrame("jdk/proxy2/$Proxy12.invoke"));
+        assertEquals("pl/ks/Service$$EnhancerBySpringCGLIB.call", stackNormalizer.normalizeFrame("pl/ks/Service$$EnhancerBySpringCGLIB$$1a2b3c.call"));
+        assertEquals("jdk/internal/reflect/GeneratedMethodAccessor.invoke", stackNormalizer.normalizeFrame("jdk/internal/reflect/GeneratedMethodAccessor42.invoke"));
+    }
+
+    @Test
+    public void excludesPackageAndSubpackages() throws Exception {
+        StackNormalizer stackNormalizer = load("exclude java.lang.reflect");
+
+        assertNull(stackNormalizer.normalizeFrame("java/lang/reflect/Method.invoke"));
+        assertNull(stackNormalizer.normalizeFrame("java/lang/reflect/sub/Type.get"));
+        assertEquals("java/lang/reflection/Other.run", stackNormalizer.normalizeFrame("java/lang/reflection/Other.run"));
+        assertArrayEquals(new int[]{A, B}, stackNormalizer.normalizeStack(new int[]{X, A, X, B, X}));
+    }
+
+    @Test
+    public void limitsDepthAfterExcludedFrames() throws Exception {
+        StackNormalizer stackNormalizer = load("max-depth 2");
+
+        assertArrayEquals(new int[]{A, B}, stackNormalizer.normalizeStack(new int[]{X, A, X, B, C}));
+        assertArrayEquals(new int[]{A}, stackNormalizer.normalizeStack(new int[]{A}));
+    }
+
+    @Test
+    public void collapsesDirectRecursion() throws Exception {
+        StackNormalizer stackNormalizer = load("collapse-direct-recursion");
+
+        assertArrayEquals(new int[]{A, B, C}, stackNormalizer.normalizeStack(new int[]{A, B, B, B, C}));
+        assertArrayEquals(new int[]{A, B, C}, stackNormalizer.normalizeStack(new int[]{A, B, X, B, C}));
+        assertArrayEquals(new int[]{A, B, A, C}, stackNormalizer.normalizeStack(new int[]{A, B, A, C}));
+    }
+
+    @Test
+    public void collapsesIndirectRecursion() throws Exception {
+        StackNormalizer stackNormalizer = load("collapse-recursion");
+
+        assertArrayEquals(new int[]{A, C}, stackNormalizer.normalizeStack(new int[]{A, B, A, C}));
+        assertArrayEquals(new int[]{A, B, C}, stackNormalizer.normalizeStack(new int[]{A, B, X, C, B, C}));
+        assertArrayEquals(new int[]{A, B, C}, stackNormalizer.normalizeStack(new int[]{A, B, C}));
+    }
+
+    @Test
+    public void defaultRulesCollapseOnlyDirectRecursion() throws Exception {
+        StackNormalizer stackNormalizer = StackNormalizer.load(StackNormalizer.DEFAULT_RULES);
+
+        assertArrayEquals(new int[]{A, B, A, C}, stackNormalizer.normalizeStack(new int[]{A, B, B, A, C}));
+    }
+
+    private StackNormalizer load(String... rules) throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, Arrays.asList(rules), StandardCharsets.UTF_8);
+        return StackNormalizer.load(file.toString());
+    }
+}
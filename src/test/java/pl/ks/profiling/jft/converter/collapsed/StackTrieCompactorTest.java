@@ -0,0 +1,60 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StackTrieCompactorTest {
+    @Test
+    public void approximateAggregationKeepsTotalsAndErrorBounds() throws Exception {
+        GeneratedStacks generated = GeneratedStacks.generate(5, 20_000, 10_000);
+        CollapsedStacks collapsedStacks = new CollapsedStacks(0, 0, 0, 200);
+        generated.addTo(collapsedStacks);
+        assertTrue(collapsedStacks.isApproximate());
+
+        for (StackCounter counter : StackCounter.values()) {
+            Map<String, Long> expected = generated.expected(counter);
+            Map<String, Long> written = GeneratedStacks.written(collapsedStacks, counter);
+            assertEquals(expected.values().stream().mapToLong(Long::longValue).sum(), written.values().stream().mapToLong(Long::longValue).sum());
+            for (Map.Entry<String, Long> stack : written.entrySet()) {
+                if (stack.getKey().contains(StackTrieCompactor.OTHER_FRAME)) {
+                    continue;
+                }
+                long exact = expected.getOrDefault(stack.getKey(), 0L);
+                assertTrue(stack.getKey(), stack.getValue() <= exact);
+                assertTrue(stack.getKey(), stack.getValue() >= exact - collapsedStacks.maxErrors[counter.ordinal()]);
+            }
+        }
+    }
+
+    @Test
+    public void compactsToHalfOfNodeLimit() {
+        GeneratedStacks generated = GeneratedStacks.generate(8, 20_000, 10_000);
+        CollapsedStacks collapsedStacks = new CollapsedStacks();
+        generated.addTo(collapsedStacks);
+        int otherFrame = collapsedStacks.frameDictionary.getId(StackTrieCompactor.OTHER_FRAME);
+
+        for (int maxNodes : new int[]{20, 200, collapsedStacks.stackTrie.size() - 1}) {
+            StackTrie compacted = StackTrieCompactor.compact(collapsedStacks.stackTrie, otherFrame, maxNodes, new long[StackCounter.values().length]);
+            assertTrue(maxNodes + ": " + compacted.size(), compacted.size() <= maxNodes / 2);
+        }
+    }
+}
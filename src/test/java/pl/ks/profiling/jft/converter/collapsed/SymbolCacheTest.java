@@ -0,0 +1,107 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import org.junit.Test;
+import org.openjdk.jmc.common.IMCFrame;
+import org.openjdk.jmc.common.IMCMethod;
+import org.openjdk.jmc.common.IMCStackTrace;
+import org.openjdk.jmc.common.item.IItem;
+import org.openjdk.jmc.common.item.IMemberAccessor;
+import org.openjdk.jmc.flightrecorder.JfrAttributes;
+import org.openjdk.jmc.flightrecorder.internal.EventArray;
+import org.openjdk.jmc.flightrecorder.internal.EventArrays;
+import org.openjdk.jmc.flightrecorder.internal.FlightRecordingLoader;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SymbolCacheTest {
+    @Test
+    public void countsFrameIdHitsAndMisses() throws Exception {
+        List<IMCStackTrace> stackTraces = getWallStackTraces();
+        SymbolCache symbolCache = new SymbolCache();
+        Set<IMCStackTrace> distinctStackTraces = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<IMCMethod> distinctMethods = Collections.newSetFromMap(new IdentityHashMap<>());
+        long lookups = 0;
+        for (IMCStackTrace stackTrace : stackTraces) {
+            symbolCache.getFrameIds(stackTrace);
+            if (distinctStackTraces.add(stackTrace)) {
+                for (IMCFrame frame : stackTrace.getFrames()) {
+                    distinctMethods.add(frame.getMethod());
+                    lookups++;
+                }
+            }
+        }
+
+        assertEquals(distinctMethods.size(), symbolCache.getFrameMisses());
+        assertEquals(lookups - distinctMethods.size(), symbolCache.getFrameHits());
+        assertTrue(symbolCache.getFrameHits() > 0);
+    }
+
+    @Test
+    public void frameIdsMatchFlatStackTrace() throws Exception {
+        FrameDictionary frameDictionary = new FrameDictionary();
+        SymbolCache symbolCache = new SymbolCache(frameDictionary);
+        for (IMCStackTrace stackTrace : getWallStackTraces()) {
+            List<String> frames = new ArrayList<>();
+            for (int frameId : symbolCache.getFrameIds(stackTrace)) {
+                frames.add(frameDictionary.getFrame(frameId));
+            }
+            assertArrayEquals(symbolCache.getFlatStackTrace(stackTrace).split(";"), frames.toArray());
+        }
+    }
+
+    private static List<IMCStackTrace> getWallStackTraces() throws Exception {
+        EventArrays flightRecording;
+        try (InputStream input = SymbolCacheTest.class.getResourceAsStream("/wall-lock-alloc.jfr")) {
+            flightRecording = FlightRecordingLoader.loadStream(input, false, false);
+        }
+        List<IMCStackTrace> stackTraces = new ArrayList<>();
+        for (EventArray eventArray : flightRecording.getArrays()) {
+            if (!JfrParser.isAsyncWallEvent(eventArray)) {
+                continue;
+            }
+            IMemberAccessor<IMCStackTrace, IItem> stackTraceAccessor = JfrAttributes.EVENT_STACKTRACE.getAccessor(eventArray.getType());
+            for (IItem event : eventArray.getEvents()) {
+                stackTraces.add(stackTraceAccessor.getMember(event));
+            }
+        }
+        return stackTraces;
+    }
+
+    @Test
+    public void reportCountsClearedChunks() throws Exception {
+        SymbolCache symbolCache = new SymbolCache();
+        for (IMCStackTrace stackTrace : getWallStackTraces()) {
+            symbolCache.getFrameIds(stackTrace);
+        }
+        String report = symbolCache.getReport();
+        symbolCache.clear();
+
+        assertEquals(report, symbolCache.getReport());
+        assertFalse(report, report.startsWith("Symbol cache: 0 frames"));
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimeBucketsTest {
+    @Test
+    public void aggregatesTimeBuckets() {
+        GeneratedStacks generated = GeneratedStacks.generate(4, 5000, 10_000);
+        // the first event is not the earliest one, so buckets before the base bucket are used too
+        CollapsedStacks collapsedStacks = new CollapsedStacks(0, 0, 250);
+        generated.addTo(collapsedStacks);
+
+        Map<String, Long> expected = new HashMap<>();
+        for (GeneratedStacks.Event event : generated.events) {
+            long bucketStart = Math.floorDiv(event.timestamp, 250L) * 250;
+            for (StackCounter counter : StackCounter.values()) {
+                if (GeneratedStacks.getEventType(counter) == event.eventType) {
+                    long value = counter == StackCounter.ALLOC_SIZE ? event.value : 1;
+                    expected.merge(bucketStart + " " + counter + " " + event.getStack(), value, Long::sum);
+                }
+            }
+        }
+
+        TimeBuckets timeBuckets = collapsedStacks.timeBuckets;
+        Map<String, Long> aggregated = new HashMap<>();
+        long previousBucketStart = Long.MIN_VALUE;
+        for (long key : timeBuckets.getSortedKeys()) {
+            long bucketStart = timeBuckets.getBucketStart(key);
+            assertTrue("Keys sorted by bucket", bucketStart >= previousBucketStart);
+            previousBucketStart = bucketStart;
+            String stack = collapsedStacks.getStack(TimeBuckets.getNode(key));
+            aggregated.put(bucketStart + " " + TimeBuckets.getCounter(key) + " " + stack, timeBuckets.getValue(key));
+        }
+        assertEquals(expected, aggregated);
+        assertEquals(generated.events.stream().mapToLong(event -> event.timestamp).min().getAsLong(), timeBuckets.getMinTimestamp());
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2020 Krzysztof Slusarski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.ks.profiling.jft.converter.collapsed;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+public class TimestampFormatterTest {
+    private static final TimeZone DEFAULT_TIME_ZONE = TimeZone.getDefault();
+    private static final String PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSS";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void restoreTimeZone() {
+        TimeZone.setDefault(DEFAULT_TIME_ZONE);
+    }
+
+    @Test
+    public void formatsLikeSimpleDateFormat() {
+        TimestampFormatter formatter = new TimestampFormatter();
+        SimpleDateFormat expected = new SimpleDateFormat(PATTERN, Locale.US);
+        Random random = new Random(7);
+        long timestamp = 1_600_000_000_000L;
+        for (int i = 0; i < 10_000; i++) {
+            // mostly in order, sometimes back in time or a jump to another second
+            timestamp += random.nextInt(10) == 0 ? random.nextInt(20_000) - 10_000 : random.nextInt(5);
+            assertEquals(expected.format(new Date(timestamp)), format(formatter, timestamp));
+        }
+        for (long edge : new long[]{0, 999, 1000, -1, -999, -1000, -1001, 253_402_300_799_999L}) {
+            assertEquals(expected.format(new Date(edge)), format(formatter, edge));
+        }
+    }
+
+    @Test
+    public void formatsInDefaultTimeZone() {
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+        assertEquals("2020-09-13T12:26:40.007", format(new TimestampFormatter(), 1_600_000_000_007L));
+
+        TimeZone.setDefault(TimeZone.getTimeZone("Asia/Kolkata"));
+        assertEquals("2020-09-13T17:56:40.007", format(new TimestampFormatter(), 1_600_000_000_007L));
+
+        // the end of daylight saving time in Poland, 03:00 CEST becomes 02:00 CET
+        TimeZone.setDefault(TimeZone.getTimeZone("Europe/Warsaw"));
+        TimestampFormatter formatter = new TimestampFormatter();
+        long summerTimeEnd = Instant.parse("2020-10-25T01:00:00Z").toEpochMilli();
+        assertEquals("2020-10-25T02:59:59.999", format(formatter, summerTimeEnd - 1));
+        assertEquals("2020-10-25T02:00:00.000", format(formatter, summerTimeEnd));
+    }
+
+    @Test
+    public void parsesBackToTheSameMillis() throws Exception {
+        for (String timeZone : new String[]{"UTC", "America/New_York", "Asia/Kathmandu"}) {
+            TimeZone.setDefault(TimeZone.getTimeZone(timeZone));
+            TimestampFormatter formatter = new TimestampFormatter();
+            SimpleDateFormat parser = new SimpleDateFormat(PATTERN, Locale.US);
+            Random random = new Random(timeZone.hashCode());
+            for (int i = 0; i < 1000; i++) {
+                long timestamp = 1_500_000_000_000L + (long) (random.nextDouble() * 200_000_000_000L);
+                assertEquals(timeZone, timestamp, parser.parse(format(formatter, timestamp)).getTime());
+            }
+        }
+    }
+
+    @Test
+    public void writesEventNanosTruncatedToMillis() throws Exception {
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+        Path dir = folder.newFolder().toPath();
+        long[] nanos = {1_600_000_000_123_999_999L, 1_600_000_000_124_000_000L, 1_600_000_001_000_000_001L};
+        try (TimestampedCollapsedWriter writer = new TimestampedCollapsedWriter(dir.toString(), "wall.timestamps.collapsed", OutputCompression.NONE)) {
+            for (long eventNanos : nanos) {
+                // the way the -ts mode converts the event start time
+                writer.write(eventNanos / 1_000_000, "thread;a;b");
+            }
+            writer.write(nanos[2] / 1_000_000, "thread;\u0105\u0119", 12);
+        }
+
+        List<String> lines = Files.readAllLines(dir.resolve("wall.timestamps.collapsed"), StandardCharsets.UTF_8);
+        assertEquals("2020-09-13T12:26:40.123;thread;a;b 1", lines.get(0));
+        assertEquals("2020-09-13T12:26:40.124;thread;a;b 1", lines.get(1));
+        assertEquals("2020-09-13T12:26:41.000;thread;a;b 1", lines.get(2));
+        assertEquals("2020-09-13T12:26:41.000;thread;\u0105\u0119 12", lines.get(3));
+        SimpleDateFormat expected = new SimpleDateFormat(PATTERN, Locale.US);
+        assertEquals(expected.format(Date.from(Instant.ofEpochSecond(0, nanos[0]))) + ";thread;a;b 1", lines.get(0));
+    }
+
+    @Test
+    public void accessLogTimeRangeEndsOneSecondAfterLoggedTime() throws Exception {
+        Arguments arguments = ArgumentsParser.parse(new String[]{"-al", "17/Oct/2026:07:14:37 +0200", "1500"});
+
+        StartEndDate startEndDate = JftToCollapseStacks.calculateDatesFromAccessLog(arguments);
+
+        assertEquals(Instant.parse("2026-10-17T05:14:35.500Z"), startEndDate.startDate);
+        assertEquals(Instant.parse("2026-10-17T05:14:38Z"), startEndDate.endDate);
+    }
+
+    private static String format(TimestampFormatter formatter, long timestamp) {
+        byte[] buffer = new byte[TimestampFormatter.MAX_LENGTH];
+        int length = formatter.format(timestamp, buffer, 0);
+        return new String(buffer, 0, length, StandardCharsets.US_ASCII);
+    }
+}